@@ -0,0 +1,121 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two concurrent annotation stages over a stream of questions. The first stage annotates the questions in
+ * batches from a single thread, which may spread each batch over threads of its own, and hands them over
+ * through a bounded queue to the workers of the second stage, each of which annotates the questions waiting,
+ * up to its share of the queue, as one batch. A question is only ever annotated by one stage at a time, and the
+ * total time approaches that of the slower stage rather than the sum of both.
+ */
+public class AnnotationPipeline {
+  private static final Log log = new Log(AnnotationPipeline.class);
+
+  private static final long POLL_MILLIS = 100;
+
+  private final int workers;
+  private final int queueCapacity;
+  private final int batchSize;
+
+  /**
+   * Annotates a batch of questions.
+   */
+  public interface BatchStage {
+    void annotate(List<Document> questions) throws Exception;
+  }
+
+  /**
+   * Creates a new <code>AnnotationPipeline</code> with <var>workers</var> threads in the second stage and up to
+   * <var>queueCapacity</var> questions waiting between the stages.
+   * @throws IllegalArgumentException If either argument is not positive.
+   */
+  public AnnotationPipeline(final int workers, final int queueCapacity) {
+    if (workers < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("workers and queueCapacity must be positive");
+    }
+    this.workers = workers;
+    this.queueCapacity = queueCapacity;
+    this.batchSize = Math.max(1, queueCapacity / workers);
+  }
+
+  /**
+   * Runs the <var>questions</var> through the <var>first</var> stage, <var>firstBatchSize</var> at a time, and
+   * then the <var>second</var>, returning once every question has been through both. If a stage fails the rest
+   * of the pipeline is cancelled and its exception is rethrown.
+   * @throws IllegalArgumentException If <var>firstBatchSize</var> is not positive.
+   */
+  public void run(final List<Document> questions, final int firstBatchSize, final BatchStage first,
+                  final BatchStage second) throws Exception {
+    if (firstBatchSize < 1) {
+      throw new IllegalArgumentException("firstBatchSize must be positive");
+    }
+    final BlockingQueue<Document> queue = new ArrayBlockingQueue<>(queueCapacity);
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(workers + 1, runnable -> {
+      final Thread thread = new Thread(runnable, "annotation-pipeline-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    final ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+    final AtomicBoolean firstDone = new AtomicBoolean(false);
+    try {
+      completion.submit(() -> {
+        for (int start = 0; start < questions.size(); start += firstBatchSize) {
+          final List<Document> batch =
+              questions.subList(start, Math.min(start + firstBatchSize, questions.size()));
+          first.annotate(batch);
+          for (final Document question : batch) {
+            queue.put(question);
+          }
+        }
+        firstDone.set(true);
+        return null;
+      });
+      for (int i = 0; i < workers; i++) {
+        completion.submit(() -> {
+          while (true) {
+            final Document question = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (question == null) {
+              // The first stage queues every question before it is done, so nothing can arrive after this
+              if (firstDone.get() && queue.isEmpty()) {
+                return null;
+              }
+              continue;
+            }
+            final List<Document> batch = new ArrayList<>();
+            batch.add(question);
+            queue.drainTo(batch, batchSize - 1);
+            log.DBG("Annotating a batch of {0} questions", batch.size());
+            second.annotate(batch);
+          }
+        });
+      }
+      for (int i = 0; i < workers + 1; i++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
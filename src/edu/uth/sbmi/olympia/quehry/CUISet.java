@@ -0,0 +1,188 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of CUIs encoded as <code>int</code>s, stored as one sorted array. UMLS CUIs are a
+ * <code>C</code> followed by seven digits, so the digits alone identify them.
+ */
+public class CUISet {
+  private static final Log log = new Log(CUISet.class);
+
+  /**
+   * The encoding of a missing or non-numeric CUI, which no <code>CUISet</code> contains.
+   */
+  public static final int NONE = -1;
+
+  private final int[] codes;
+
+  private CUISet(final int[] codes) {
+    this.codes = codes;
+  }
+
+  /**
+   * Encodes the <var>cui</var>, with or without its leading <code>C</code>, as an <code>int</code>.
+   * Returns {@link #NONE} if it is <code>null</code> or not numeric.
+   */
+  public static int encode(final String cui) {
+    if (cui == null) {
+      return NONE;
+    }
+    final int start = cui.startsWith("C") ? 1 : 0;
+    if (start == cui.length() || cui.length() - start > 9) {
+      return NONE;
+    }
+    int code = 0;
+    for (int i = start; i < cui.length(); i++) {
+      final char c = cui.charAt(i);
+      if (c < '0' || c > '9') {
+        return NONE;
+      }
+      code = code * 10 + (c - '0');
+    }
+    return code;
+  }
+
+  /**
+   * Creates a <code>CUISet</code> of the <var>cuis</var>, skipping those that cannot be encoded.
+   */
+  public static CUISet of(final Collection<String> cuis) {
+    final Builder builder = new Builder();
+    for (final String cui : cuis) {
+      builder.add(encode(cui));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Loads the CUIs in the <var>column</var> of the CSV <var>file</var>. The file is streamed rather than read
+   * into memory, since code lists can have millions of rows.
+   */
+  public static CUISet load(final Place file, final String column) throws IOException {
+    final Builder builder = new Builder();
+    try (final BufferedReader reader = new BufferedReader(file.openReader())) {
+      final int index = getColumnIndex(reader.readLine(), column, file);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.add(encode(getField(line, index)));
+      }
+    }
+    final CUISet set = builder.build();
+    log.info("Loaded {0} CUIs from {1}", set.size(), file);
+    return set;
+  }
+
+  /**
+   * Returns true if this set contains the encoded <var>code</var>.
+   */
+  public boolean contains(final int code) {
+    return code != NONE && Arrays.binarySearch(codes, code) >= 0;
+  }
+
+  /**
+   * Returns true if this set contains the <var>cui</var>.
+   */
+  public boolean contains(final String cui) {
+    return contains(encode(cui));
+  }
+
+  /**
+   * Returns the number of CUIs in this set.
+   */
+  public int size() {
+    return codes.length;
+  }
+
+  /**
+   * Returns the position of the <var>column</var> in the <var>header</var> line of the <var>file</var>.
+   * @throws IOException If there is no such column.
+   */
+  static int getColumnIndex(final String header, final String column, final Place file) throws IOException {
+    if (header != null) {
+      for (int i = 0; ; i++) {
+        final String name = getField(header, i);
+        if (name == null) {
+          break;
+        }
+        if (name.equals(column)) {
+          return i;
+        }
+      }
+    }
+    throw new IOException("No column \"" + column + "\" in " + file);
+  }
+
+  /**
+   * Returns the unquoted value of the field at <var>index</var> in the CSV <var>line</var>, or
+   * <code>null</code> if the line has fewer fields.
+   */
+  static String getField(final String line, final int index) {
+    final StringBuilder field = new StringBuilder();
+    int current = 0;
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      final char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append(c);
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        if (current == index) {
+          return field.toString();
+        }
+        current++;
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    return current == index ? field.toString() : null;
+  }
+
+  /**
+   * Accumulates encoded CUIs into a growable array, sorted and deduplicated once at the end.
+   */
+  public static class Builder {
+    private int[] codes = new int[16];
+    private int size = 0;
+
+    /**
+     * Adds the encoded <var>code</var>, ignoring {@link CUISet#NONE}.
+     */
+    public Builder add(final int code) {
+      if (code == NONE) {
+        return this;
+      }
+      if (size == codes.length) {
+        codes = Arrays.copyOf(codes, size * 2);
+      }
+      codes[size++] = code;
+      return this;
+    }
+
+    public CUISet build() {
+      final int[] sorted = Arrays.copyOf(codes, size);
+      Arrays.sort(sorted);
+      int distinct = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          sorted[distinct++] = sorted[i];
+        }
+      }
+      return new CUISet(distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct));
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to a failing backend. The breaker opens after a number of consecutive failures; while it is
+ * open callers are expected to skip the backend, and a background probe checks it periodically, closing the
+ * breaker once a probe succeeds.
+ */
+public class CircuitBreaker implements AutoCloseable {
+  private static final Log log = new Log(CircuitBreaker.class);
+
+  private final String name;
+  private final int failureThreshold;
+  private final long probeIntervalMillis;
+  private final Probe probe;
+  private final ScheduledExecutorService prober;
+  private int consecutiveFailures = 0;
+  private boolean open = false;
+
+  /**
+   * A test call against the backend, which succeeds if it does not throw.
+   */
+  public interface Probe {
+    void probe() throws Exception;
+  }
+
+  /**
+   * Creates a new <code>CircuitBreaker</code> for the backend called <var>name</var>, opening after
+   * <var>failureThreshold</var> consecutive failures and running the <var>probe</var> every
+   * <var>probeIntervalMillis</var> while open.
+   * @throws IllegalArgumentException If <var>failureThreshold</var> or <var>probeIntervalMillis</var> is not
+   *     positive.
+   */
+  public CircuitBreaker(final String name,
+                        final int failureThreshold,
+                        final long probeIntervalMillis,
+                        final Probe probe) {
+    if (failureThreshold < 1 || probeIntervalMillis < 1) {
+      throw new IllegalArgumentException("failureThreshold and probeIntervalMillis must be positive");
+    }
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.probe = probe;
+    this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, name + "-probe");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Returns <code>true</code> if calls to the backend should be skipped.
+   */
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Records a successful call, resetting the count of consecutive failures.
+   */
+  public synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+  }
+
+  /**
+   * Records a failed call, opening the breaker if it was the last one allowed.
+   */
+  public synchronized void recordFailure() {
+    if (open || ++consecutiveFailures < failureThreshold) {
+      return;
+    }
+    open = true;
+    log.warning("{0} failed {1} times in a row, skipping it until a probe succeeds", name, consecutiveFailures);
+    scheduleProbe();
+  }
+
+  private void scheduleProbe() {
+    if (prober.isShutdown()) {
+      return;
+    }
+    prober.schedule(() -> {
+      try {
+        probe.probe();
+      } catch (Exception e) {
+        log.DBG("{0} probe failed: {1}", name, e);
+        synchronized (this) {
+          scheduleProbe();
+        }
+        return;
+      }
+      synchronized (this) {
+        open = false;
+        consecutiveFailures = 0;
+      }
+      log.info("{0} recovered", name);
+    }, probeIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void close() {
+    prober.shutdownNow();
+  }
+}
@@ -0,0 +1,120 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+import edu.uth.sbmi.olympia.util.Triple;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A lexicon compiled by the {@link LexiconCompiler}: an on-disk cache of the parsed and checked lexicon. Its
+ * entries are read back without parsing their patterns or checking them against the type rules again, and are
+ * all decoded onto the heap when it is opened.
+ */
+public class CompiledLexicon {
+  private static final Log log = new Log(CompiledLexicon.class);
+
+  static final int MAGIC = 0x514c4558;
+  static final int VERSION = 2;
+  private static final int FINGERPRINT_LENGTH = 16;
+
+  private final List<LexiconEntry> entries;
+
+  private CompiledLexicon(final List<LexiconEntry> entries) {
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Loads the <var>lexicon</var> from its compiled file in the configured <code>directory</code>, compiling it
+   * against the <var>typeRules</var> first if it has not been compiled since it or they last changed.
+   */
+  public static CompiledLexicon load(final Place lexicon, final Place typeRules) throws IOException {
+    final File file = getFile(lexicon);
+    final byte[] fingerprint = fingerprint(lexicon, typeRules);
+    CompiledLexicon compiled = open(file, fingerprint);
+    if (compiled == null) {
+      LexiconCompiler.compile(lexicon, typeRules, file);
+      compiled = open(file, fingerprint);
+    }
+    return compiled;
+  }
+
+  /**
+   * Opens the compiled lexicon in <var>file</var>, returning <code>null</code> if there is none or it was
+   * compiled from files with a different <var>fingerprint</var>.
+   */
+  public static CompiledLexicon open(final File file, final byte[] fingerprint) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    if (buffer.remaining() < 8 + FINGERPRINT_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      log.info("Compiled lexicon {0} is from another version, recompiling it", file);
+      return null;
+    }
+    final byte[] stored = new byte[FINGERPRINT_LENGTH];
+    buffer.get(stored);
+    if (!Arrays.equals(stored, fingerprint)) {
+      log.info("Compiled lexicon {0} is out of date, recompiling it", file);
+      return null;
+    }
+
+    final String[] strings = new String[buffer.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = QuestionSnapshot.readString(buffer).intern();
+    }
+
+    final int entryCount = buffer.getInt();
+    final List<LexiconEntry> entries = new ArrayList<>(entryCount);
+    for (int i = 0; i < entryCount; i++) {
+      final String id = strings[buffer.getInt()];
+      final String pattern = strings[buffer.getInt()];
+      final String logicalForm = strings[buffer.getInt()];
+      final int lineNum = buffer.getInt();
+      final List<String> nodes = new ArrayList<>();
+      final int nodeCount = buffer.getInt();
+      for (int j = 0; j < nodeCount; j++) {
+        nodes.add(strings[buffer.getInt()]);
+      }
+      final List<Triple<String,String,String>> edges = new ArrayList<>();
+      final int edgeCount = buffer.getInt();
+      for (int j = 0; j < edgeCount; j++) {
+        edges.add(Triple.of(strings[buffer.getInt()], strings[buffer.getInt()], strings[buffer.getInt()]));
+      }
+      entries.add(new LexiconEntry(id, pattern, nodes, edges, logicalForm, lineNum));
+    }
+
+    log.info("Loaded {0} lexicon entries from {1}", entries.size(), file);
+    return new CompiledLexicon(entries);
+  }
+
+  /**
+   * Returns the compiled file for the <var>lexicon</var> in the configured <code>directory</code>.
+   */
+  public static File getFile(final Place lexicon) {
+    return new File(Config.get(CompiledLexicon.class, "directory").toPlace().toFile(),
+        lexicon.getName() + ".compiled");
+  }
+
+  /**
+   * Returns the fingerprint of the <var>lexicon</var> and of the <var>typeRules</var> it is checked against.
+   */
+  static byte[] fingerprint(final Place lexicon, final Place typeRules) throws IOException {
+    return QuestionSnapshot.fingerprint(lexicon, typeRules);
+  }
+
+  /**
+   * Returns the {@link LexiconEntry}s, in the order of the lexicon file.
+   */
+  public List<LexiconEntry> getEntries() {
+    return entries;
+  }
+}
@@ -16,6 +16,7 @@ public class Concept extends Annotation {
   private final String type;
   private final String pos;
   private final String cui;
+  private final int cuiCode;
   private final String value;
   private final Integer score;
 
@@ -57,6 +58,7 @@ public class Concept extends Annotation {
     this.type = type;
     this.pos = pos;
     this.cui = cui;
+    this.cuiCode = CUISet.encode(cui);
     this.value = value;
     this.score = score;
     if (type == null) {
@@ -92,6 +94,13 @@ public class Concept extends Annotation {
     return cui;
   }
   
+  /**
+   * Returns the CUI of this <code>Concept</code> encoded with {@link CUISet#encode}, or {@link CUISet#NONE}.
+   */
+  public int getCUICode() {
+    return cuiCode;
+  }
+  
   /**
    * Returns the CUI of this <code>Concept</code>.
    */
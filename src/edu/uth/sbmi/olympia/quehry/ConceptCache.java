@@ -0,0 +1,258 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of concept extraction results, keyed by the question text, the version of the
+ * extractor and the options used to extract them. Recent entries are kept in an in-memory LRU tier; all entries
+ * are kept in an append-only file, one entry per line, of which only the offsets are held in memory, by a 64-bit
+ * hash of their key. An entry read from the file is checked against the full key, so a hash collision is a miss
+ * rather than the concepts of another question. Entries of other versions stay in the file but are never
+ * returned.
+ */
+public class ConceptCache implements AutoCloseable {
+  private static final Log log = new Log(ConceptCache.class);
+
+  private static final int RECORD_FIELDS = 6;
+
+  private final Map<String, List<ConceptRecord>> memoryTier;
+  private final Map<Long, Long> diskOffsets = new HashMap<>();
+  private final RandomAccessFile diskTier;
+  private final String version;
+
+  /**
+   * Creates a new <code>ConceptCache</code> for the given <var>version</var> of the extractor, backed by
+   * <var>file</var> and keeping up to <var>memoryEntries</var> entries in memory.
+   */
+  public ConceptCache(final File file, final int memoryEntries, final String version) throws IOException {
+    this.version = version;
+    this.memoryTier = new LinkedHashMap<String, List<ConceptRecord>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<ConceptRecord>> eldest) {
+        return size() > memoryEntries;
+      }
+    };
+    final File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Unable to create cache directory: " + parent);
+    }
+    this.diskTier = new RandomAccessFile(file, "rw");
+    indexDiskTier(file);
+    log.info("Loaded {0} cached concept extractions from {1}", diskOffsets.size(), file);
+  }
+
+  /**
+   * Returns the cached records for the <var>text</var> extracted with <var>options</var>, or <code>null</code>
+   * if there are none.
+   */
+  public synchronized List<ConceptRecord> get(final String text, final String options) {
+    final String key = key(text, versioned(options));
+    List<ConceptRecord> records = memoryTier.get(key);
+    if (records == null) {
+      final Long offset = diskOffsets.get(DependencyCache.hash(key));
+      if (offset != null) {
+        try {
+          final Entry entry = parseEntry(readLine(offset));
+          if (key(entry.text, entry.options).equals(key)) {
+            records = entry.records;
+            memoryTier.put(key, records);
+          }
+        } catch (IOException e) {
+          log.warning("Unable to read cached concepts at offset {0}: {1}", offset, e);
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Caches the <var>records</var> extracted from <var>text</var> with <var>options</var>.
+   */
+  public synchronized void put(final String text, final String options, final List<ConceptRecord> records) {
+    final String key = key(text, versioned(options));
+    final List<ConceptRecord> copy = Collections.unmodifiableList(new ArrayList<>(records));
+    memoryTier.put(key, copy);
+    final long hash = DependencyCache.hash(key);
+    if (!diskOffsets.containsKey(hash)) {
+      try {
+        final long offset = diskTier.length();
+        diskTier.seek(offset);
+        diskTier.write((formatEntry(text, versioned(options), copy) + "\n").getBytes(StandardCharsets.UTF_8));
+        diskOffsets.put(hash, offset);
+      } catch (IOException e) {
+        log.warning("Unable to write cached concepts: {0}", e);
+      }
+    }
+  }
+
+  /**
+   * Normalizes the question <var>text</var> for the cache key. Only trailing whitespace is removed, so the
+   * character offsets of the cached records stay valid for every text sharing the key.
+   */
+  static String normalize(final String text) {
+    int end = text.length();
+    while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+      end--;
+    }
+    return text.substring(0, end);
+  }
+
+  /**
+   * Returns the <var>options</var> qualified with the version of the extractor, as they are stored.
+   */
+  private String versioned(final String options) {
+    return version + " " + options;
+  }
+
+  private static String key(final String text, final String options) {
+    return options + "\t" + normalize(text);
+  }
+
+  private void indexDiskTier(final File file) throws IOException {
+    try (final InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      long offset = 0;
+      long lineStart = 0;
+      int b;
+      while ((b = is.read()) != -1) {
+        offset++;
+        if (b != '\n') {
+          bytes.write(b);
+          continue;
+        }
+        indexLine(new String(bytes.toByteArray(), StandardCharsets.UTF_8), lineStart);
+        bytes.reset();
+        lineStart = offset;
+      }
+      if (bytes.size() > 0) {
+        // An entry cut short by a crash: drop it so the next append starts on a new line
+        log.warning("Truncating incomplete concept cache entry at offset {0}", lineStart);
+        diskTier.setLength(lineStart);
+      }
+    }
+  }
+
+  private void indexLine(final String line, final long offset) {
+    if (line.isEmpty()) {
+      return;
+    }
+    try {
+      final Entry entry = parseEntry(line);
+      diskOffsets.put(DependencyCache.hash(key(entry.text, entry.options)), offset);
+    } catch (IllegalArgumentException e) {
+      log.warning("Skipping malformed concept cache entry at offset {0}: {1}", offset, e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the UTF-8 line starting at <var>offset</var>.
+   */
+  private String readLine(final long offset) throws IOException {
+    diskTier.seek(offset);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int b;
+    while ((b = diskTier.read()) != -1 && b != '\n') {
+      bytes.write(b);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String formatEntry(final String text, final String options, final List<ConceptRecord> records) {
+    final List<String> fields = new ArrayList<>();
+    fields.add(escape(options));
+    fields.add(escape(normalize(text)));
+    fields.add(String.valueOf(records.size()));
+    for (final ConceptRecord record : records) {
+      fields.add(String.valueOf(record.getStartChar()));
+      fields.add(String.valueOf(record.getEndChar()));
+      fields.add(escape(record.getType()));
+      fields.add(escape(record.getCUI()));
+      fields.add(escape(record.getValue()));
+      fields.add(record.getScore() == null ? "\\0" : String.valueOf(record.getScore()));
+    }
+    return String.join("\t", fields);
+  }
+
+  private static Entry parseEntry(final String line) {
+    final String[] fields = line.split("\t", -1);
+    if (fields.length < 3) {
+      throw new IllegalArgumentException("too few fields: " + fields.length);
+    }
+    final int count = Integer.parseInt(fields[2]);
+    if (fields.length != 3 + count * RECORD_FIELDS) {
+      throw new IllegalArgumentException("expected " + count + " records, found " + fields.length + " fields");
+    }
+    final List<ConceptRecord> records = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final int base = 3 + i * RECORD_FIELDS;
+      records.add(new ConceptRecord(
+          Integer.parseInt(fields[base]),
+          Integer.parseInt(fields[base + 1]),
+          unescape(fields[base + 2]),
+          unescape(fields[base + 3]),
+          unescape(fields[base + 4]),
+          fields[base + 5].equals("\\0") ? null : Integer.valueOf(fields[base + 5])));
+    }
+    return new Entry(unescape(fields[1]), unescape(fields[0]), Collections.unmodifiableList(records));
+  }
+
+  /**
+   * Escapes backslashes, tabs and line breaks; <code>null</code> becomes <code>\0</code>.
+   */
+  static String escape(final String value) {
+    if (value == null) {
+      return "\\0";
+    }
+    return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  static String unescape(final String value) {
+    if (value.equals("\\0")) {
+      return null;
+    }
+    final StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        final char next = value.charAt(++i);
+        sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    log.DBG("Closing concept cache with {0} entries", diskOffsets.size());
+    diskTier.close();
+  }
+
+  private static class Entry {
+    private final String text;
+    private final String options;
+    private final List<ConceptRecord> records;
+
+    private Entry(final String text, final String options, final List<ConceptRecord> records) {
+      this.text = text;
+      this.options = options;
+      this.records = records;
+    }
+  }
+}
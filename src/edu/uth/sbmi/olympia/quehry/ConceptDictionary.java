@@ -0,0 +1,82 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Fast exact-phrase concept matcher over the display names of a code list, such as the codes in the EHR. It
+ * only finds names that appear verbatim (ignoring case), so it is a fallback for when MetaMap is unavailable
+ * rather than a replacement for it.
+ */
+public class ConceptDictionary {
+  private static final Log log = new Log(ConceptDictionary.class);
+
+  /**
+   * The type of the concepts found, which the lexicon treats as a generic concept.
+   */
+  public static final String CONCEPT_TYPE = "concept";
+
+  /**
+   * The score of the concepts found, below any MetaMap score.
+   */
+  public static final int SCORE = 0;
+
+  private final ReferenceMatcher matcher;
+  private final Map<String, String> displayNames;
+
+  private ConceptDictionary(final Map<String, List<Pattern>> patterns, final Map<String, String> displayNames) {
+    this.matcher = new ReferenceMatcher(patterns);
+    this.displayNames = displayNames;
+  }
+
+  /**
+   * Loads the dictionary from the <code>code</code> and <code>display</code> columns of the CSV <var>file</var>,
+   * leaving out the <var>excludedCUIs</var>.
+   */
+  public static ConceptDictionary load(final Place file, final Set<String> excludedCUIs) throws IOException {
+    final Map<String, List<Pattern>> patterns = new LinkedHashMap<>();
+    final Map<String, String> displayNames = new HashMap<>();
+    try (final BufferedReader reader = new BufferedReader(file.openReader())) {
+      final String header = reader.readLine();
+      final int codeIndex = CUISet.getColumnIndex(header, "code", file);
+      final int displayIndex = CUISet.getColumnIndex(header, "display", file);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String cui = CUISet.getField(line, codeIndex);
+        final String display = CUISet.getField(line, displayIndex);
+        if (cui == null || display == null || display.trim().isEmpty() || excludedCUIs.contains(cui)) {
+          continue;
+        }
+        displayNames.putIfAbsent(cui, display.trim());
+        patterns.computeIfAbsent(cui, k -> new ArrayList<>()).add(Pattern.compile(
+            "\\b" + Pattern.quote(display.trim().toLowerCase()) + "\\b", Pattern.CASE_INSENSITIVE));
+      }
+    }
+    log.info("Loaded {0} dictionary concepts from {1}", displayNames.size(), file);
+    return new ConceptDictionary(patterns, displayNames);
+  }
+
+  /**
+   * Returns the {@link Concept}s whose display names appear in the <var>question</var>.
+   */
+  public List<Concept> findConcepts(final Document question) {
+    final List<Concept> concepts = new ArrayList<>();
+    for (final Concept match : matcher.findReferences(question)) {
+      // The matcher tags each match with its pattern's key, here the CUI
+      final String cui = match.getType();
+      concepts.add(new Concept(match.getText(), CONCEPT_TYPE, null, cui, displayNames.get(cui), SCORE));
+    }
+    return concepts;
+  }
+}
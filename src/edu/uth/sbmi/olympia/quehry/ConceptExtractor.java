@@ -1,21 +1,17 @@
 package edu.uth.sbmi.olympia.quehry;
 
 import edu.uth.sbmi.olympia.text.Document;
-import edu.uth.sbmi.olympia.text.Text;
 import edu.uth.sbmi.olympia.util.Config;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.Place;
 import edu.uth.sbmi.olympia.util.json.JSONUtil;
-import org.json.simple.parser.ParseException;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -23,18 +19,45 @@ import java.util.stream.Collectors;
  */
 public class ConceptExtractor implements AutoCloseable {
     private static final Log log = new Log(ConceptExtractor.class);
-    private final MetaMapClient metaMapClient;
-    private final Map<String, List<Pattern>> referencePatterns;
-
-    public ConceptExtractor() throws IOException, InterruptedException, ParseException {
-        metaMapClient = new MetaMapClient();
+    private final ConceptFetcher conceptFetcher;
+    private final ReferenceMatcher referenceMatcher;
+
+    public ConceptExtractor() throws Exception {
+        final String backend = Config.get(ConceptExtractor.class, "backend", "metamap").toString();
+        if (backend.equals("metamap")) {
+            conceptFetcher = new MetaMapClient();
+        } else if (backend.equals("metamaplite")) {
+            conceptFetcher = new MetaMapLiteClient();
+        } else {
+            throw new IllegalArgumentException("Unknown concept extraction backend: " + backend);
+        }
         final Place referencesFile = Config.get(ConceptExtractor.class, "referencePatterns").toPlace();
-        referencePatterns = JSONUtil.getReferencePatterns(referencesFile);
+        referenceMatcher = new ReferenceMatcher(JSONUtil.getReferencePatterns(referencesFile));
     }
 
     public void annotateConcepts(Document question) throws Exception {
+        annotateConcepts(question, this.conceptFetcher.fetchConcepts(question));
+    }
+
+    /**
+     * Returns the number of questions annotated with fallback concepts because the backend was unavailable.
+     */
+    public int getFallbackCount() {
+        return conceptFetcher.getFallbackCount();
+    }
+
+    /**
+     * Annotates the concepts of all the <var>questions</var>, sending them to MetaMap in batches.
+     */
+    public void annotateConcepts(List<Document> questions) throws Exception {
+        final List<List<Concept>> metaMapConcepts = this.conceptFetcher.fetchConcepts(questions);
+        for (int i = 0; i < questions.size(); i++) {
+            annotateConcepts(questions.get(i), metaMapConcepts.get(i));
+        }
+    }
+
+    private void annotateConcepts(Document question, List<Concept> metaMapConcepts) throws Exception {
         List<Concept> references = extractReferences(question);
-        List<Concept> metaMapConcepts = this.metaMapClient.fetchConcepts(question);
         List<String> referencesDetails = references.stream().map(c -> Arrays.asList(c, c.getType()).toString())
             .collect(Collectors.toList());
         log.DBG("Found references:");
@@ -56,19 +79,8 @@ public class ConceptExtractor implements AutoCloseable {
         }
     }
 
-    private List<Concept> extractReferences(Document question) throws IOException, ParseException {
-        final List<Concept> concepts = new ArrayList<>();
-        for (Map.Entry<String, List<Pattern>> referenceEntry: this.referencePatterns.entrySet()) {
-            for (Pattern pattern: referenceEntry.getValue()) {
-                final List<Text> matchedSpans = question.findAll(pattern);
-                for (Text span: matchedSpans) {
-                    Concept concept = new Concept(span, referenceEntry.getKey());
-                    concepts.add(concept);
-                }
-            }
-        }
-
-        return concepts;
+    private List<Concept> extractReferences(Document question) {
+        return this.referenceMatcher.findReferences(question);
     }
 
     public static List<Concept> removeDuplicateConcepts(final List<Concept> concepts) {
@@ -121,18 +133,11 @@ public class ConceptExtractor implements AutoCloseable {
     }
 
     public static List<Concept> removeContainedConcepts(final List<Concept> concepts) {
+        final SpanIndex spanIndex = new SpanIndex(concepts);
         final List<Concept> filteredConcepts = new ArrayList<>();
-        for (Concept c1: concepts) {
-            boolean containedInOther = false;
-            for (Concept c2: concepts) {
-                if (c1 != c2 && c1.getText().isSuper(c2)) {
-                    containedInOther = true;
-                    break;
-                }
-            }
-
-            if (!containedInOther) {
-                filteredConcepts.add(c1);
+        for (Concept c: concepts) {
+            if (!spanIndex.isWithinOther(c)) {
+                filteredConcepts.add(c);
             }
         }
 
@@ -152,10 +157,11 @@ public class ConceptExtractor implements AutoCloseable {
     public static List<Concept> prioritizeReferencesOverMetaMapConcepts(
             final List<Concept> metaMapConcepts,
             final List<Concept> references) {
-        final List<Concept> metaMapConceptsCopy = new ArrayList<>(metaMapConcepts);
+        final SpanIndex referenceIndex = new SpanIndex(references);
+        final List<Concept> metaMapConceptsCopy = new ArrayList<>();
         for (Concept c: metaMapConcepts) {
-            if (references.stream().anyMatch(c::isSuper)) {
-                metaMapConceptsCopy.remove(c);
+            if (!referenceIndex.isWithinAny(c.getText())) {
+                metaMapConceptsCopy.add(c);
             }
         }
 
@@ -164,6 +170,6 @@ public class ConceptExtractor implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        metaMapClient.close();
+        conceptFetcher.close();
     }
 }
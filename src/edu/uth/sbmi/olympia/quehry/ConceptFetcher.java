@@ -0,0 +1,29 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+
+import java.util.List;
+
+/**
+ * A concept extraction backend finding the medical {@link Concept}s of a question {@link Document}.
+ */
+public interface ConceptFetcher extends AutoCloseable {
+
+  /**
+   * Returns the {@link Concept}s found in the <var>question</var>, not yet attached to it.
+   */
+  List<Concept> fetchConcepts(Document question) throws Exception;
+
+  /**
+   * Returns the {@link Concept}s found in each of the <var>questions</var>, in the same order.
+   */
+  List<List<Concept>> fetchConcepts(List<Document> questions) throws Exception;
+
+  /**
+   * Returns the number of questions that got fallback concepts rather than those of the backend, such as while
+   * the backend was down. Their concepts are not to be kept beyond this run.
+   */
+  default int getFallbackCount() {
+    return 0;
+  }
+}
@@ -0,0 +1,155 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.text.Token;
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The {@link Concept}s of a question under one concept configuration. Rather than each configuration annotating
+ * its own copy of the question, the configurations share its text, tokens, sentences and dependencies, and an
+ * overlay holds only the concepts of its configuration. Applying it detaches the concepts of the question it
+ * leaves out and attaches the ones it adds; removing it puts the question back as it was. Only one overlay of a
+ * question is applied at a time.
+ */
+public class ConceptOverlay {
+  private static final Log log = new Log(ConceptOverlay.class);
+
+  private final Document question;
+  private final List<Concept> concepts;
+  private List<Concept> detached = null;
+  private List<Concept> attached = null;
+
+  /**
+   * Creates a new <code>ConceptOverlay</code> of the <var>question</var> with the given <var>concepts</var>.
+   * Concepts of another copy of the question are attached to the same tokens of this one.
+   */
+  public ConceptOverlay(final Document question, final Collection<Concept> concepts) {
+    this.question = question;
+    this.concepts = Collections.unmodifiableList(new ArrayList<>(concepts));
+  }
+
+  /**
+   * Returns the question this overlay is on.
+   */
+  public Document getQuestion() {
+    return question;
+  }
+
+  /**
+   * Returns the concepts of this overlay.
+   */
+  public List<Concept> getConcepts() {
+    return concepts;
+  }
+
+  /**
+   * Returns <code>true</code> if this overlay is applied to its question.
+   */
+  public boolean isApplied() {
+    return detached != null;
+  }
+
+  /**
+   * Applies this overlay, leaving the question with only its concepts.
+   */
+  public void apply() {
+    if (isApplied()) {
+      throw new IllegalStateException("Overlay already applied: " + question.getDocumentID());
+    }
+    final Set<Concept> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+    keep.addAll(concepts);
+    detached = new ArrayList<>();
+    for (final Concept concept : question.getAnnotations(Concept.class)) {
+      if (!keep.contains(concept)) {
+        detached.add(concept);
+      }
+    }
+    for (final Concept concept : detached) {
+      concept.detach();
+    }
+    attached = new ArrayList<>();
+    for (final Concept concept : concepts) {
+      final Concept overlaid = concept.getDocument() == question ? concept : copyTo(concept);
+      if (!overlaid.isAttached()) {
+        overlaid.attach();
+        attached.add(overlaid);
+      }
+    }
+    log.finer("Applied overlay to {0}: {1} detached, {2} attached", question.getDocumentID(),
+        detached.size(), attached.size());
+  }
+
+  /**
+   * Removes this overlay, putting back the concepts the question had before it was applied.
+   */
+  public void remove() {
+    if (!isApplied()) {
+      throw new IllegalStateException("Overlay not applied: " + question.getDocumentID());
+    }
+    for (final Concept concept : attached) {
+      concept.detach();
+    }
+    for (final Concept concept : detached) {
+      concept.attach();
+    }
+    detached = null;
+    attached = null;
+  }
+
+  /**
+   * Returns the result of the <var>action</var>, run with this overlay applied.
+   */
+  public <T> T applyDuring(final Supplier<T> action) {
+    apply();
+    try {
+      return action.get();
+    } finally {
+      remove();
+    }
+  }
+
+  /**
+   * Applies all the <var>overlays</var>.
+   */
+  public static void applyAll(final List<ConceptOverlay> overlays) {
+    for (final ConceptOverlay overlay : overlays) {
+      overlay.apply();
+    }
+  }
+
+  /**
+   * Removes all the <var>overlays</var>.
+   */
+  public static void removeAll(final List<ConceptOverlay> overlays) {
+    for (final ConceptOverlay overlay : overlays) {
+      overlay.remove();
+    }
+  }
+
+  /**
+   * Returns the questions of the <var>overlays</var>.
+   */
+  public static List<Document> questions(final List<ConceptOverlay> overlays) {
+    final List<Document> questions = new ArrayList<>(overlays.size());
+    for (final ConceptOverlay overlay : overlays) {
+      questions.add(overlay.getQuestion());
+    }
+    return questions;
+  }
+
+  private Concept copyTo(final Concept concept) {
+    final Text conceptText = concept.getText();
+    final Token firstToken = question.getToken(conceptText.getStartTokenOffset());
+    final Token lastToken = question.getToken(conceptText.getEndTokenOffset() - 1);
+    return new Concept(firstToken.union(lastToken), concept);
+  }
+}
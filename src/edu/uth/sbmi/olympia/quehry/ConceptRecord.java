@@ -0,0 +1,121 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.text.Token;
+
+import java.util.Objects;
+
+/**
+ * A {@link Concept} found by a concept extraction backend, detached from any {@link Document}: its span is kept
+ * as character offsets into the question text.
+ */
+public class ConceptRecord {
+  private final int startChar;
+  private final int endChar;
+  private final String type;
+  private final String cui;
+  private final String value;
+  private final Integer score;
+
+  /**
+   * Creates a new <code>ConceptRecord</code> covering the characters from <var>startChar</var> to
+   * <var>endChar</var>, both inclusive.
+   * @throws IllegalArgumentException If <var>type</var> is <code>null</code> or the offsets are invalid.
+   */
+  public ConceptRecord(final int startChar,
+                       final int endChar,
+                       final String type,
+                       final String cui,
+                       final String value,
+                       final Integer score) {
+    if (type == null) {
+      throw new IllegalArgumentException("type cannot be NULL");
+    }
+    if (startChar < 0 || endChar < startChar) {
+      throw new IllegalArgumentException("invalid offsets: " + startChar + "-" + endChar);
+    }
+    this.startChar = startChar;
+    this.endChar = endChar;
+    this.type = type;
+    this.cui = cui;
+    this.value = value;
+    this.score = score;
+  }
+
+  /**
+   * Returns the offset of the first character of this record.
+   */
+  public int getStartChar() {
+    return startChar;
+  }
+
+  /**
+   * Returns the offset of the last character of this record.
+   */
+  public int getEndChar() {
+    return endChar;
+  }
+
+  /**
+   * Returns the semantic type of this record.
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * Returns the CUI of this record, without the leading <code>C</code>.
+   */
+  public String getCUI() {
+    return cui;
+  }
+
+  /**
+   * Returns the preferred name of this record.
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * Returns the score of this record, higher being better.
+   */
+  public Integer getScore() {
+    return score;
+  }
+
+  /**
+   * Creates the {@link Concept} for this record on the tokens of the <var>question</var> it was found in.
+   */
+  public Concept toConcept(final Document question) {
+    final Token firstToken = question.findToken(startChar);
+    final Token lastToken = question.findToken(endChar);
+    final Text span = firstToken.union(lastToken);
+    return new Concept(span, type, null, cui, value, score);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ConceptRecord)) {
+      return false;
+    }
+    final ConceptRecord record = (ConceptRecord) obj;
+    return startChar == record.startChar
+        && endChar == record.endChar
+        && type.equals(record.type)
+        && Objects.equals(cui, record.cui)
+        && Objects.equals(value, record.value)
+        && Objects.equals(score, record.score);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(startChar, endChar, type, cui, value, score);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + startChar + "-" + endChar + "] " + cui + " " + type + " \"" + value + "\" (" + score + ")";
+  }
+}
@@ -0,0 +1,347 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.AnnotationType;
+import edu.uth.sbmi.olympia.text.Dependency;
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.text.Token;
+import edu.uth.sbmi.olympia.text.annotator.Annotator;
+import edu.uth.sbmi.olympia.text.io.XMLDocumentReader;
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of dependency parses, keyed by a hash of the question text. Each parse is stored as the
+ * token offsets of its governor and dependent spans plus the dependency type, one question per line of an
+ * append-only file. The file is read once, and a question missing from it is parsed and appended.
+ */
+public class DependencyCache {
+  private static final Log log = new Log(DependencyCache.class);
+
+  private static final String ANNOTATOR_PREFIX = "edu.uth.sbmi.olympia.text.annotator.";
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final File file;
+  private final Map<Long, Entry> entries = new HashMap<>();
+  private boolean needsNewline = false;
+  // A parser is not safe to share between threads, so the threads take turns with their own instances of the
+  // configured one, which are kept for later calls and never outnumber the threads of the largest call
+  private final Queue<Annotator> parsers = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Creates a new <code>DependencyCache</code> backed by <var>file</var>. If the file does not exist yet, the
+   * questions in the <var>legacyCache</var> XML, if there is one, are imported into it.
+   */
+  public DependencyCache(final File file, final Place legacyCache) throws IOException {
+    this.file = file;
+    if (file.exists()) {
+      load();
+    } else {
+      final File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null && !parent.exists() && !parent.mkdirs()) {
+        throw new IOException("Unable to create cache directory: " + parent);
+      }
+      if (legacyCache != null && legacyCache.exists()) {
+        importLegacyCache(legacyCache);
+      }
+    }
+    log.info("Loaded {0} Questions from Dependency Cache", entries.size());
+  }
+
+  /**
+   * Annotates the dependencies of the <var>question</var> from the cache, parsing it and adding it to the cache
+   * if it is not there.
+   */
+  public synchronized void annotate(final Document question) {
+    if (attachCached(question)) {
+      return;
+    }
+    log.info("  Not in Dependency Cache: {1}: {0}", question.asRawString(), question.getDocumentID());
+    question.annotate(Dependency.TYPE);
+    store(question);
+  }
+
+  /**
+   * Annotates the dependencies of the <var>questions</var> from the cache, parsing those not in it on
+   * <var>threads</var> threads, each with its own instance of the configured {@link Dependency} annotator, which
+   * is kept for later calls. The parses are added to the cache in the order of the <var>questions</var>, so the
+   * cache and the annotations are the same as when the questions are annotated one at a time.
+   */
+  public void annotate(final List<Document> questions, final int threads) {
+    if (threads < 2) {
+      for (final Document question : questions) {
+        annotate(question);
+      }
+      return;
+    }
+    final List<Document> misses = new ArrayList<>();
+    synchronized (this) {
+      for (final Document question : questions) {
+        if (!attachCached(question)) {
+          misses.add(question);
+        }
+      }
+    }
+    if (misses.isEmpty()) {
+      return;
+    }
+    log.info("Parsing {0} questions not in the Dependency Cache on {1} threads", misses.size(), threads);
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "dependency-parser-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    final Config.Value parserClass = Config.get(ANNOTATOR_PREFIX + Dependency.TYPE.value());
+    if (parsers.isEmpty()) {
+      parsers.add(parserClass.toObject(Annotator.class));
+    }
+    final Set<AnnotationType> prerequisites = parsers.peek().getPrerequisites();
+    try {
+      final List<Future<?>> parses = new ArrayList<>(misses.size());
+      for (final Document question : misses) {
+        log.info("  Not in Dependency Cache: {1}: {0}", question.asRawString(), question.getDocumentID());
+        // The prerequisites come from the shared annotators, so they are added here rather than in parallel
+        for (final AnnotationType prerequisite : prerequisites) {
+          question.annotate(prerequisite);
+        }
+        parses.add(executor.submit(() -> {
+          Annotator parser = parsers.poll();
+          if (parser == null) {
+            parser = parserClass.toObject(Annotator.class);
+          }
+          parser.annotateDocument(question);
+          question.addAnnotatedType(Dependency.TYPE);
+          parsers.add(parser);
+        }));
+      }
+      for (int i = 0; i < misses.size(); i++) {
+        parses.get(i).get();
+        synchronized (this) {
+          store(misses.get(i));
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ie);
+    } catch (ExecutionException ee) {
+      throw new RuntimeException(ee.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Attaches the cached dependencies of the <var>question</var>, returning <code>false</code> if it is not in
+   * the cache. A question that already has its dependencies, such as one from a {@link QuestionSnapshot}, is
+   * left as it is.
+   */
+  private boolean attachCached(final Document question) {
+    if (question.hasAnnotatedType(Dependency.TYPE)) {
+      return true;
+    }
+    final String text = question.asRawString();
+    final Entry entry = entries.get(hash(text));
+    if (entry == null || !entry.text.equals(text)) {
+      return false;
+    }
+    assert entry.tokenLength == question.getTokenLength();
+    final List<Token> tokens = question.getTokens();
+    for (int i = 0; i < entry.types.length; i++) {
+      final int[] offsets = entry.offsets;
+      final Text gov = tokens.get(offsets[4 * i]).union(tokens.get(offsets[4 * i + 1] - 1));
+      final Text dep = tokens.get(offsets[4 * i + 2]).union(tokens.get(offsets[4 * i + 3] - 1));
+      new Dependency(gov, dep, entry.types[i]).attach();
+    }
+    question.addAnnotatedType(Dependency.TYPE);
+    return true;
+  }
+
+  /**
+   * Adds the dependencies of the parsed <var>question</var> to the cache.
+   */
+  private void store(final Document question) {
+    final String text = question.asRawString();
+    final Entry parsed = new Entry(text, question.getTokenLength(), question.getSub(Dependency.class));
+    if (entries.containsKey(hash(text))) {
+      // A different question with the same hash keeps its place; this one is parsed every time
+      if (!entries.get(hash(text)).text.equals(text)) {
+        log.warning("Dependency Cache hash collision, not caching: {0}", text);
+      }
+      return;
+    }
+    entries.put(hash(text), parsed);
+    try {
+      append(parsed);
+    } catch (IOException e) {
+      log.warning("Unable to write to the Dependency Cache: {0}", e);
+    }
+  }
+
+  private void load() throws IOException {
+    try (final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          final Entry entry = Entry.parse(line);
+          entries.put(hash(entry.text), entry);
+        } catch (RuntimeException e) {
+          log.warning("Skipping malformed Dependency Cache entry: {0}", e);
+        }
+      }
+    }
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      if (raf.length() > 0) {
+        raf.seek(raf.length() - 1);
+        // An entry cut short by a crash: start the next one on its own line
+        needsNewline = raf.read() != '\n';
+      }
+    }
+  }
+
+  private void importLegacyCache(final Place legacyCache) throws IOException {
+    log.info("Importing the Dependency Cache from {0}", legacyCache);
+    for (final Document question : new XMLDocumentReader().readAll(legacyCache)) {
+      final Entry entry = new Entry(
+          question.asRawString(), question.getTokenLength(), question.getSub(Dependency.class));
+      if (entries.putIfAbsent(hash(entry.text), entry) == null) {
+        append(entry);
+      }
+    }
+  }
+
+  private void append(final Entry entry) throws IOException {
+    final String line = entry.format();
+    ModuleTests.checkDependencyCacheEntry(line);
+    try (final OutputStream os = new FileOutputStream(file, true)) {
+      os.write(((needsNewline ? "\n" : "") + line + "\n").getBytes(StandardCharsets.UTF_8));
+      needsNewline = false;
+    }
+  }
+
+  /**
+   * Returns the cache entry <var>line</var> as it is formatted again after it is read.
+   */
+  static String reformat(final String line) {
+    return Entry.parse(line).format();
+  }
+
+  /**
+   * Returns the 64-bit FNV-1a hash of the <var>text</var>.
+   */
+  static long hash(final String text) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < text.length(); i++) {
+      hash ^= text.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * The dependency parse of one question: for each dependency, the start and end token offsets of the
+   * governor and of the dependent, and its type.
+   */
+  private static class Entry {
+    private final String text;
+    private final int tokenLength;
+    private final int[] offsets;
+    private final String[] types;
+
+    private Entry(final String text, final int tokenLength, final int[] offsets, final String[] types) {
+      this.text = text;
+      this.tokenLength = tokenLength;
+      this.offsets = offsets;
+      this.types = types;
+    }
+
+    private Entry(final String text, final int tokenLength, final Collection<Dependency> dependencies) {
+      this(text, tokenLength, new int[4 * dependencies.size()], new String[dependencies.size()]);
+      int i = 0;
+      for (final Dependency dependency : dependencies) {
+        offsets[4 * i] = dependency.getGovernor().getStartTokenOffset();
+        offsets[4 * i + 1] = dependency.getGovernor().getEndTokenOffset();
+        offsets[4 * i + 2] = dependency.getDependent().getStartTokenOffset();
+        offsets[4 * i + 3] = dependency.getDependent().getEndTokenOffset();
+        types[i] = dependency.getType();
+        i++;
+      }
+    }
+
+    /**
+     * Formats this entry as <code>hash TAB tokenLength TAB text TAB dependencies</code>, with each dependency
+     * as <code>govStart,govEnd,depStart,depEnd,type</code> and the dependencies separated by spaces.
+     */
+    private String format() {
+      final StringBuilder sb = new StringBuilder();
+      sb.append(Long.toHexString(hash(text))).append('\t')
+          .append(tokenLength).append('\t')
+          .append(ConceptCache.escape(text)).append('\t');
+      for (int i = 0; i < types.length; i++) {
+        if (i > 0) {
+          sb.append(' ');
+        }
+        sb.append(offsets[4 * i]).append(',').append(offsets[4 * i + 1]).append(',')
+            .append(offsets[4 * i + 2]).append(',').append(offsets[4 * i + 3]).append(',')
+            .append(types[i]);
+      }
+      return sb.toString();
+    }
+
+    private static Entry parse(final String line) {
+      final String[] fields = line.split("\t", -1);
+      if (fields.length != 4) {
+        throw new IllegalArgumentException("expected 4 fields, found " + fields.length);
+      }
+      final String text = ConceptCache.unescape(fields[2]);
+      if (Long.parseUnsignedLong(fields[0], 16) != hash(text)) {
+        throw new IllegalArgumentException("hash does not match the text: " + text);
+      }
+      final String[] dependencies = fields[3].isEmpty() ? new String[0] : fields[3].split(" ");
+      final int[] offsets = new int[4 * dependencies.length];
+      final List<String> types = new ArrayList<>(dependencies.length);
+      for (int i = 0; i < dependencies.length; i++) {
+        final String[] parts = dependencies[i].split(",", 5);
+        if (parts.length != 5) {
+          throw new IllegalArgumentException("malformed dependency: " + dependencies[i]);
+        }
+        for (int j = 0; j < 4; j++) {
+          offsets[4 * i + j] = Integer.parseInt(parts[j]);
+        }
+        types.add(parts[4].intern());
+      }
+      return new Entry(text, Integer.parseInt(fields[1]), offsets, types.toArray(new String[0]));
+    }
+  }
+}
@@ -0,0 +1,298 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Maps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Typed answer of a {@link FHIRResponse}: a scalar {@link Value}, a {@link Record} of named fields (e.g., one
+ * resource) or a {@link Sequence} of answers (e.g., a list of resources).
+ * <p>
+ * Answers compare structurally: records compare by field name regardless of field order, sequences compare
+ * in order. Their <code>toString</code> matches that of the equivalent Java <code>String</code>,
+ * <code>Map</code> and <code>List</code>.
+ */
+public abstract class FHIRAnswer {
+  /**
+   * Answer types, in the form used in the system predictions XML.
+   */
+  public enum Type {
+    STRING("String"),
+    MAP("Map"),
+    LIST("List");
+
+    private final String xmlName;
+
+    Type(final String xmlName) {
+      this.xmlName = xmlName;
+    }
+
+    /**
+     * Returns the name of this type in the system predictions XML.
+     */
+    public String getXMLName() {
+      return xmlName;
+    }
+  }
+
+  private FHIRAnswer() { }
+
+  /**
+   * Returns the {@link Type} of this answer.
+   */
+  public abstract Type getType();
+
+  /**
+   * A scalar answer. Numbers and booleans are kept in their JSON text form.
+   */
+  public static final class Value extends FHIRAnswer {
+    private final String text;
+
+    /**
+     * Creates a new <code>Value</code> with the given <var>text</var>.
+     * @throws IllegalArgumentException If <var>text</var> is <code>null</code>.
+     */
+    public Value(final String text) {
+      if (text == null) {
+        throw new IllegalArgumentException("text cannot be NULL");
+      }
+      this.text = text;
+    }
+
+    /**
+     * Returns the text of this value.
+     */
+    public String getText() {
+      return text;
+    }
+
+    @Override
+    public Type getType() {
+      return Type.STRING;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Value && text.equals(((Value) obj).text);
+    }
+
+    @Override
+    public int hashCode() {
+      return text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  /**
+   * An answer made of named fields, kept in their original order. Field values may be <code>null</code>.
+   */
+  public static final class Record extends FHIRAnswer {
+    private final String[] names;
+    private final FHIRAnswer[] values;
+    private final int[] sortedOrder;
+
+    /**
+     * Creates a new <code>Record</code> from parallel lists of field <var>names</var> and <var>values</var>.
+     * @throws IllegalArgumentException If the lists differ in size or a field name is <code>null</code>.
+     */
+    public Record(final List<String> names, final List<FHIRAnswer> values) {
+      if (names.size() != values.size()) {
+        throw new IllegalArgumentException("names and values differ in size");
+      }
+      this.names = names.toArray(new String[0]);
+      this.values = values.toArray(new FHIRAnswer[0]);
+      final Integer[] order = new Integer[this.names.length];
+      for (int i = 0; i < order.length; i++) {
+        if (this.names[i] == null) {
+          throw new IllegalArgumentException("field names cannot be NULL");
+        }
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparing(i -> this.names[i]));
+      this.sortedOrder = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        this.sortedOrder[i] = order[i];
+      }
+    }
+
+    /**
+     * Returns the number of fields.
+     */
+    public int size() {
+      return names.length;
+    }
+
+    /**
+     * Returns the field names, in their original order.
+     */
+    public List<String> getNames() {
+      return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Returns <code>true</code> if the record has a field with the given <var>name</var>.
+     */
+    public boolean has(final String name) {
+      return indexOf(name) >= 0;
+    }
+
+    /**
+     * Returns the value of the field with the given <var>name</var>, or <code>null</code> if there is none.
+     */
+    public FHIRAnswer get(final String name) {
+      final int index = indexOf(name);
+      return index >= 0 ? values[index] : null;
+    }
+
+    private int indexOf(final String name) {
+      int low = 0;
+      int high = sortedOrder.length - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final int cmp = names[sortedOrder[mid]].compareTo(name);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return sortedOrder[mid];
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the fields as a <code>Map</code>, in their original order.
+     */
+    public Map<String, FHIRAnswer> asMap() {
+      final Map<String, FHIRAnswer> map = new LinkedHashMap<>();
+      for (int i = 0; i < names.length; i++) {
+        map.put(names[i], values[i]);
+      }
+      return map;
+    }
+
+    @Override
+    public Type getType() {
+      return Type.MAP;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Record)) {
+        return false;
+      }
+      final Record record = (Record) obj;
+      if (names.length != record.names.length) {
+        return false;
+      }
+      for (int i = 0; i < sortedOrder.length; i++) {
+        final int a = sortedOrder[i];
+        final int b = record.sortedOrder[i];
+        if (!names[a].equals(record.names[b]) || !Objects.equals(values[a], record.values[b])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      // Same as Map.hashCode: independent of field order
+      int hash = 0;
+      for (int i = 0; i < names.length; i++) {
+        hash += names[i].hashCode() ^ Objects.hashCode(values[i]);
+      }
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return asMap().toString();
+    }
+
+    /**
+     * Returns a multi-line rendering of the fields.
+     */
+    public String prettyPrint() {
+      return Maps.prettyPrint(asMap());
+    }
+  }
+
+  /**
+   * An ordered list of answers. Items may be <code>null</code>.
+   */
+  public static final class Sequence extends FHIRAnswer {
+    private final FHIRAnswer[] items;
+
+    /**
+     * Creates a new <code>Sequence</code> with the given <var>items</var>.
+     */
+    public Sequence(final List<FHIRAnswer> items) {
+      this.items = items.toArray(new FHIRAnswer[0]);
+    }
+
+    /**
+     * Returns the number of items.
+     */
+    public int size() {
+      return items.length;
+    }
+
+    /**
+     * Returns the item at the given <var>index</var>.
+     */
+    public FHIRAnswer get(final int index) {
+      return items[index];
+    }
+
+    /**
+     * Returns the items, in order.
+     */
+    public List<FHIRAnswer> getItems() {
+      return Collections.unmodifiableList(Arrays.asList(items));
+    }
+
+    @Override
+    public Type getType() {
+      return Type.LIST;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Sequence && Arrays.equals(items, ((Sequence) obj).items);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(items);
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(items);
+    }
+
+    /**
+     * Returns a multi-line rendering of the items.
+     */
+    public String prettyPrint() {
+      final List<String> formattedList = new ArrayList<>();
+      for (final FHIRAnswer item : items) {
+        formattedList.add(item instanceof Record ? ((Record) item).prettyPrint() : String.valueOf(item));
+      }
+      return "[\n  " + String.join(",\n  ", formattedList) + "\n]";
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import java.io.IOException;
+
+/**
+ * Evaluates {@link FHIRQuery}s against a FHIR server.
+ */
+public interface FHIRBackend {
+
+  /**
+   * Returns the response to the <var>query</var>, or <code>null</code> if it has none.
+   */
+  FHIRResponse execute(FHIRQuery query) throws IOException, InterruptedException;
+}
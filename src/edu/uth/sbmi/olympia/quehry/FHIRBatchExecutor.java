@@ -0,0 +1,162 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the FHIR queries of many questions and executes them grouped by patient.
+ * Identical queries for the same patient (e.g., a predicted logical form that matches the gold one, or the same
+ * prediction made under several concept configurations) are executed only once.
+ * <p>
+ * If <code>deriveLatest</code> is enabled, <code>latest</code> queries are answered locally from the resource
+ * list of their argument query through a {@link TemporalIndex}, so all the queries over the same resources share
+ * one round trip. This assumes <code>latest</code> returns the resource with the greatest effective time not
+ * after the current time; a query falls back to the FHIR driver whenever the argument response is not a list of
+ * resources that all carry one of the <code>effectiveTimeFields</code>.
+ */
+public class FHIRBatchExecutor {
+  private static final Log log = new Log(FHIRBatchExecutor.class);
+
+  private final Map<String, Set<FHIRQuery>> pendingQueriesByPatient = new LinkedHashMap<>();
+  private final Map<FHIRQuery, FHIRResponse> responses = new HashMap<>();
+  private final Map<FHIRQuery, TemporalIndex<FHIRAnswer.Record>> temporalIndexes = new HashMap<>();
+  private final boolean deriveLatest;
+  private final List<String> effectiveTimeFields;
+  private int submittedQueries = 0;
+
+  /**
+   * Creates a new <code>FHIRBatchExecutor</code>.
+   */
+  public FHIRBatchExecutor() {
+    this.deriveLatest = Config.get(FHIRBatchExecutor.class, "deriveLatest", "false").toBoolean();
+    this.effectiveTimeFields = Config.get(FHIRBatchExecutor.class, "effectiveTimeFields",
+        "effectiveDateTime issued authoredOn onsetDateTime recordedDate date").toStringList();
+  }
+
+  /**
+   * Queues the <var>query</var> for execution. <code>null</code> queries are ignored.
+   */
+  public void submit(final FHIRQuery query) {
+    if (query == null) {
+      return;
+    }
+    submittedQueries++;
+    if (responses.containsKey(query)) {
+      return;
+    }
+    pendingQueriesByPatient.computeIfAbsent(query.getPatientID(), k -> new LinkedHashSet<>()).add(query);
+  }
+
+  /**
+   * Executes all the pending queries, one patient at a time.
+   */
+  public void executeAll() {
+    final int uniqueQueries = pendingQueriesByPatient.values().stream().mapToInt(Set::size).sum();
+    log.info("Executing {0} unique FHIR queries ({1} submitted) for {2} patients",
+        uniqueQueries, submittedQueries, pendingQueriesByPatient.size());
+    for (final Map.Entry<String, Set<FHIRQuery>> entry : pendingQueriesByPatient.entrySet()) {
+      log.DBG("Executing {0} FHIR queries for patient {1}", entry.getValue().size(), entry.getKey());
+      final List<FHIRQuery> latestQueries = new ArrayList<>();
+      for (final FHIRQuery query : entry.getValue()) {
+        if (deriveLatest && query.getArgumentQuery() != null) {
+          latestQueries.add(query);
+        } else {
+          responses.put(query, FHIRClient.execute(query));
+        }
+      }
+      for (final FHIRQuery query : latestQueries) {
+        FHIRResponse response = deriveLatest(query);
+        if (response == null) {
+          response = FHIRClient.execute(query);
+        }
+        responses.put(query, response);
+      }
+    }
+    temporalIndexes.clear();
+    pendingQueriesByPatient.clear();
+    submittedQueries = 0;
+  }
+
+  /**
+   * Answers a <code>latest</code> <var>query</var> from the response of its argument query, executing the
+   * argument query if needed. Returns <code>null</code> if the answer cannot be derived locally.
+   */
+  private FHIRResponse deriveLatest(final FHIRQuery query) {
+    final FHIRQuery argumentQuery = query.getArgumentQuery();
+    if (!responses.containsKey(argumentQuery)) {
+      responses.put(argumentQuery, FHIRClient.execute(argumentQuery));
+    }
+    final FHIRResponse argumentResponse = responses.get(argumentQuery);
+    if (argumentResponse == null || !(argumentResponse.getAnswer() instanceof FHIRAnswer.Sequence)) {
+      return null;
+    }
+
+    final FHIRAnswer.Sequence resources = (FHIRAnswer.Sequence) argumentResponse.getAnswer();
+    TemporalIndex<FHIRAnswer.Record> index = temporalIndexes.get(argumentQuery);
+    if (index == null) {
+      final List<FHIRAnswer.Record> records = new ArrayList<>();
+      for (final FHIRAnswer resource : resources.getItems()) {
+        if (resource instanceof FHIRAnswer.Record) {
+          records.add((FHIRAnswer.Record) resource);
+        }
+      }
+      index = new TemporalIndex<>(records, this::getEffectiveTime);
+      temporalIndexes.put(argumentQuery, index);
+    }
+    if (index.size() == 0 || index.size() < resources.size()) {
+      return null;
+    }
+
+    final Long currentTime = TemporalIndex.parseTime(query.getCurrentTime());
+    if (currentTime == null) {
+      log.warning("Unable to parse current time: {0}", query.getCurrentTime());
+      return null;
+    }
+    final FHIRAnswer.Record latest = index.latestBefore(currentTime);
+    if (latest == null) {
+      return null;
+    }
+    log.DBG("Derived latest from {0} indexed resources", index.size());
+    return new FHIRResponse(
+        latest, argumentResponse.getMessage(), argumentResponse.getResource(), argumentResponse.getStatus());
+  }
+
+  /**
+   * Returns the first of the <code>effectiveTimeFields</code> present in the <var>resource</var>.
+   */
+  private String getEffectiveTime(final FHIRAnswer.Record resource) {
+    for (final String field : effectiveTimeFields) {
+      final FHIRAnswer value = resource.get(field);
+      if (value instanceof FHIRAnswer.Value) {
+        return ((FHIRAnswer.Value) value).getText();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns <code>true</code> if the <var>query</var> has already been executed.
+   */
+  public boolean hasResponse(final FHIRQuery query) {
+    return query != null && responses.containsKey(query);
+  }
+
+  /**
+   * Returns the response of an executed <var>query</var>.
+   * @throws IllegalStateException If the <var>query</var> has not been executed yet.
+   */
+  public FHIRResponse getResponse(final FHIRQuery query) {
+    if (!hasResponse(query)) {
+      throw new IllegalStateException("FHIR query not executed: " + query);
+    }
+    return responses.get(query);
+  }
+}
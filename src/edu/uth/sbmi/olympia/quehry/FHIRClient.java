@@ -5,12 +5,12 @@ import edu.uth.sbmi.olympia.util.Config;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.Place;
 import edu.uth.sbmi.olympia.util.TreeNode;
-import edu.uth.sbmi.olympia.util.json.JSONUtil;
 import edu.uth.sbmi.olympia.util.xml.XMLUtil;
 import org.jdom2.Element;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -21,6 +21,12 @@ import java.io.InputStreamReader;
 public class FHIRClient {
   private static final Log log = new Log(FHIRClient.class);
 
+  // Bump when a change to the driver call alters its responses, so the stored ones are not reused
+  private static final int STAGE_VERSION = 1;
+
+  private static FHIRBackend backend;
+  private static StageStore stageStore;
+
   private FHIRClient () { }
 
   public static FHIRResponse execute(TreeNode<String> logicalTreeNode, Document question) {
@@ -32,74 +38,192 @@ public class FHIRClient {
   }
 
   public static FHIRResponse execute(LogicalTree logicalTree, Document question, TimeFrame timeFrame, final boolean isGold) {
-    if (logicalTree == null) {
+    return execute(createQuery(logicalTree, question, timeFrame, isGold));
+  }
+
+  /**
+   * Converts the <var>logicalTree</var> to the <code>FHIRQuery</code> executed for the patient of the
+   * <var>question</var> at the configured current time. Returns <code>null</code> if there is no logical tree or
+   * FHIR is disabled.
+   */
+  public static FHIRQuery createQuery(
+      LogicalTree logicalTree, Document question, TimeFrame timeFrame, final boolean isGold) {
+    if (logicalTree == null || !isEnabled()) {
+      return null;
+    }
+    final String currentTime = Config.get(FHIRClient.class, "currentTime").toString();
+
+    final Element element = LogicalTree.convertToXML(logicalTree, question, timeFrame, isGold);
+    String xmlStr = XMLUtil.toString(element);
+
+    final Answer answer = question.getOnlySub(Answer.class);
+    final String patientID = answer.getPatientID();
+
+    final TreeNode<String> root = logicalTree.getRoot();
+    FHIRQuery argumentQuery = null;
+    if (root.getItem().equals("latest") && root.getChildren().size() == 1 && element.getChildren().size() == 1) {
+      argumentQuery = new FHIRQuery(
+          patientID,
+          XMLUtil.toString(element.getChildren().get(0)),
+          root.getChildren().get(0).getItem(),
+          currentTime);
+    }
+
+    return new FHIRQuery(patientID, xmlStr, root.getItem(), currentTime, argumentQuery);
+  }
+
+  /**
+   * Executes the <var>query</var> with the configured {@link FHIRBackend}: the FHIR driver, or recorded
+   * responses if a <code>replayDirectory</code> is set. Returns <code>null</code> if the query fails. If the
+   * calling thread is interrupted <code>null</code> is returned, with the interrupt status kept.
+   */
+  public static FHIRResponse execute(final FHIRQuery query) {
+    if (query == null) {
       return null;
     }
 
-    Boolean enableFHIR = Config.get(FHIRClient.class, "enableFHIR").toBoolean();
-    if (!enableFHIR) {
+    if (!isEnabled()) {
       log.DBG("FHIR disabled!");
       return null;
     }
 
+    try {
+      return getBackend().execute(query);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      log.severe("Error while executing the FHIR query: {0}", e);
+    }
+    return null;
+  }
+
+  /**
+   * Returns <code>true</code> if FHIR queries are enabled.
+   */
+  private static boolean isEnabled() {
+    return Config.get(FHIRClient.class, "enableFHIR").toBoolean();
+  }
+
+  private static synchronized FHIRBackend getBackend() {
+    if (backend == null) {
+      final String replayDirectory = Config.get(FHIRClient.class, "replayDirectory", "").toString();
+      if (!replayDirectory.isEmpty()) {
+        log.info("Replaying recorded FHIR responses instead of calling the FHIR driver");
+        backend = new ReplayFHIRBackend(Config.get(FHIRClient.class, "replayDirectory").toPlace().toFile(),
+            FaultInjector.fromConfig(ReplayFHIRBackend.class));
+      } else {
+        stageStore = StageStore.fromConfig();
+        backend = FHIRClient::executeWithDriver;
+      }
+    }
+    return backend;
+  }
+
+  /**
+   * Executes the <var>query</var> with the FHIR driver. Each call writes to its own output file, so queries may
+   * run concurrently. If the calling thread is interrupted the driver process is killed and <code>null</code>
+   * is returned, with the interrupt status kept. Responses are also saved to the <code>recordDirectory</code>,
+   * if one is set, for replaying later. With a {@link StageStore}, a response stored for the same patient, time
+   * and logical form is returned without calling the driver.
+   */
+  private static FHIRResponse executeWithDriver(final FHIRQuery query) {
     String pathToPythonScript = Config.get(FHIRClient.class, "pythonProjectPath").toPlace().getPath() + "/src/data";
     String pythonScriptName = "fhir_driver.py";
-    String outputFilePath = "/tmp/outputFHIR.json";
-    String currentTime = Config.get(FHIRClient.class, "currentTime").toString();
+    String currentTime = query.getCurrentTime();
     String apiKey = Config.get(FHIRClient.class, "apiKey").toString();
 
-    final Element element = LogicalTree.convertToXML(logicalTree, question, timeFrame, isGold);
-    String xmlStr = XMLUtil.toString(element);
+    final String xmlStr = query.getLogicalFormXML();
     log.DBG("logicalTree (XML): {0}", xmlStr);
-
-    final Answer answer = question.getOnlySub(Answer.class);
-    final String patientID = answer.getPatientID();
-
-    String[] cmd = {
-        "python3",
-        pythonScriptName,
-        "-lf_xml_str",
-        xmlStr,
-        "-output_file",
-        outputFilePath,
-        "-api_key",
-        apiKey,
-        "-pat_id",
-        patientID,
-        "-c_time",
-        currentTime
-    };
+    final String patientID = query.getPatientID();
+
+    final StageStore.Key key = stageStore == null ? null
+        : StageStore.key("fhir", STAGE_VERSION).add(patientID).add(currentTime).add(xmlStr);
+    if (key != null && stageStore.getFile(key).exists()) {
+      try {
+        log.DBG("Reusing stored FHIR response {0}", key);
+        return FHIRResponseParser.parse(Place.fromFile(stageStore.getFile(key)));
+      } catch (IOException e) {
+        log.warning("Unable to read stored FHIR response {0}, calling the driver: {1}", key, e);
+      }
+    }
 
     FHIRResponse fhirResponse = null;
+    File outputFile = null;
+    File stdoutFile = null;
+    File stderrFile = null;
+    Process pr = null;
     try {
+      outputFile = File.createTempFile("outputFHIR", ".json");
+      stdoutFile = File.createTempFile("outputFHIR", ".out");
+      stderrFile = File.createTempFile("outputFHIR", ".err");
+
+      String[] cmd = {
+          "python3",
+          pythonScriptName,
+          "-lf_xml_str",
+          xmlStr,
+          "-output_file",
+          outputFile.getAbsolutePath(),
+          "-api_key",
+          apiKey,
+          "-pat_id",
+          patientID,
+          "-c_time",
+          currentTime
+      };
+
       log.info("Calling python script to convert logical form to FHIR query");
       ProcessBuilder pb = new ProcessBuilder(cmd);
       pb.directory(new File(pathToPythonScript));
-      Process pr = pb.start();
-      log.DBG("Output from the python script:");
-      log.DBG(inputStreamToString(pr.getInputStream()));
+      pb.redirectOutput(stdoutFile);
+      pb.redirectError(stderrFile);
+      pr = pb.start();
       final int exitValue = pr.waitFor();
+      log.DBG("Output from the python script:");
+      log.DBG(fileToString(stdoutFile));
 
       if (exitValue == 0) {
         log.DBG("Python script completed successfully!");
 
-        Place outputFile = Place.fromFile(outputFilePath);
-        final String rootPredicate = logicalTree.getRoot().getItem();
-        fhirResponse = JSONUtil.parseFHIRResponse(outputFile, rootPredicate);
-        log.DBG(fhirResponse.toString());
+        fhirResponse = FHIRResponseParser.parse(Place.fromFile(outputFile));
+        log.DBG(String.valueOf(fhirResponse));
+        final String recordDirectory = Config.get(FHIRClient.class, "recordDirectory", "").toString();
+        if (!recordDirectory.isEmpty()) {
+          ReplayFHIRBackend.record(
+              Config.get(FHIRClient.class, "recordDirectory").toPlace().toFile(), query, outputFile);
+        }
+        if (key != null) {
+          stageStore.storeFile(key, outputFile);
+        }
       } else {
         log.severe("Error in the python script");
         log.severe("Exit value is: {0}", exitValue);
-        log.severe(inputStreamToString(pr.getErrorStream()));
+        log.severe(fileToString(stderrFile));
       }
-    } catch (IOException | InterruptedException e) {
+    } catch (InterruptedException e) {
+      log.DBG("Python script interrupted, killing it");
+      pr.destroyForcibly();
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
       log.severe("Error while calling the python script");
       log.severe(stackTraceToString(e));
+    } finally {
+      for (final File file : new File[] {outputFile, stdoutFile, stderrFile}) {
+        if (file != null && !file.delete()) {
+          log.DBG("Unable to delete temporary file: {0}", file);
+        }
+      }
     }
 
     return fhirResponse;
   }
 
+  private static String fileToString(File file) throws IOException {
+    try (InputStream is = new FileInputStream(file)) {
+      return inputStreamToString(is);
+    }
+  }
+
   private static String inputStreamToString(InputStream is) throws IOException {
     BufferedReader br = new BufferedReader(new InputStreamReader(is));
     StringBuilder sb = new StringBuilder();
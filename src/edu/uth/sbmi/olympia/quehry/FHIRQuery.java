@@ -0,0 +1,115 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import java.util.Objects;
+
+/**
+ * A single logical form ready to be executed against the FHIR server for a patient at a given current time.
+ */
+public class FHIRQuery {
+  private final String patientID;
+  private final String logicalFormXML;
+  private final String rootPredicate;
+  private final String currentTime;
+  private final FHIRQuery argumentQuery;
+
+  /**
+   * Creates a new <code>FHIRQuery</code> for the <var>patientID</var> using the XML form of a logical tree,
+   * evaluated as of <var>currentTime</var>.
+   * @throws IllegalArgumentException If any of the arguments is <code>null</code>.
+   */
+  public FHIRQuery(final String patientID,
+                   final String logicalFormXML,
+                   final String rootPredicate,
+                   final String currentTime) {
+    this(patientID, logicalFormXML, rootPredicate, currentTime, null);
+  }
+
+  /**
+   * Creates a new <code>FHIRQuery</code> whose root predicate applies to the result of an
+   * <var>argumentQuery</var>, e.g., <code>latest</code> over the resources of its single argument.
+   * @throws IllegalArgumentException If any of the arguments other than <var>argumentQuery</var> is
+   *     <code>null</code>.
+   */
+  public FHIRQuery(final String patientID,
+                   final String logicalFormXML,
+                   final String rootPredicate,
+                   final String currentTime,
+                   final FHIRQuery argumentQuery) {
+    if (patientID == null) {
+      throw new IllegalArgumentException("patientID cannot be NULL");
+    }
+    if (logicalFormXML == null) {
+      throw new IllegalArgumentException("logicalFormXML cannot be NULL");
+    }
+    if (rootPredicate == null) {
+      throw new IllegalArgumentException("rootPredicate cannot be NULL");
+    }
+    if (currentTime == null) {
+      throw new IllegalArgumentException("currentTime cannot be NULL");
+    }
+    this.patientID = patientID;
+    this.logicalFormXML = logicalFormXML;
+    this.rootPredicate = rootPredicate;
+    this.currentTime = currentTime;
+    this.argumentQuery = argumentQuery;
+  }
+
+  /**
+   * Returns the <var>patientID</var> the query is executed for.
+   */
+  public String getPatientID() {
+    return patientID;
+  }
+
+  /**
+   * Returns the XML form of the logical tree passed to the FHIR driver.
+   */
+  public String getLogicalFormXML() {
+    return logicalFormXML;
+  }
+
+  /**
+   * Returns the predicate at the root of the logical tree.
+   */
+  public String getRootPredicate() {
+    return rootPredicate;
+  }
+
+  /**
+   * Returns the time the query is evaluated at, e.g., <code>2018-12-12T12</code>.
+   */
+  public String getCurrentTime() {
+    return currentTime;
+  }
+
+  /**
+   * Returns the query for the single argument of the root predicate, or <code>null</code> if the root
+   * predicate does not apply to one.
+   */
+  public FHIRQuery getArgumentQuery() {
+    return argumentQuery;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof FHIRQuery)) {
+      return false;
+    }
+    FHIRQuery fhirQuery = (FHIRQuery) obj;
+    return Objects.equals(this.patientID, fhirQuery.patientID)
+        && Objects.equals(this.logicalFormXML, fhirQuery.logicalFormXML)
+        && Objects.equals(this.rootPredicate, fhirQuery.rootPredicate)
+        && Objects.equals(this.currentTime, fhirQuery.currentTime);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(patientID, logicalFormXML, rootPredicate, currentTime);
+  }
+
+  @Override
+  public String toString() {
+    return "FHIRQuery{patientID=" + patientID + ", currentTime=" + currentTime
+        + ", logicalForm=" + logicalFormXML + "}";
+  }
+}
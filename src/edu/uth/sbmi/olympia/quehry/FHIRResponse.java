@@ -1,60 +1,35 @@
 package edu.uth.sbmi.olympia.quehry;
 
-import edu.uth.sbmi.olympia.util.Log;
-import edu.uth.sbmi.olympia.util.Maps;
 import org.jdom2.Element;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
-public class FHIRResponse<T> {
-  private static final Log log = new Log(FHIRResponse.class);
-
-  private T answer;
+public class FHIRResponse {
+  private FHIRAnswer answer;
   private String message;
   private String resource;
   private String status;
 
-  private enum AnswerType {
-    STRING,
-    MAP,
-    LIST,
-    NULL
-  }
-
   public FHIRResponse () { }
 
-  public FHIRResponse (T answer, String message, String resource, String status) {
+  public FHIRResponse (FHIRAnswer answer, String message, String resource, String status) {
     this.answer = answer;
     this.message = message;
     this.resource = resource;
     this.status = status;
   }
 
-  public T getAnswer() {
+  public FHIRAnswer getAnswer() {
     return answer;
   }
 
   public String getAnswerType() {
-    String answerType;
-    if (this.answer instanceof String) {
-      answerType = AnswerType.STRING.toString();
-    } else if (this.answer instanceof Map) {
-      answerType = AnswerType.MAP.toString();
-    } else if (this.answer instanceof List) {
-      answerType = AnswerType.LIST.toString();
-    } else if (this.answer == null) {
-      answerType = AnswerType.NULL.toString();
-    } else {
-      answerType = String.valueOf(this.answer.getClass());
-      log.severe("Unknown FHIRResponse answer type: {0}", answerType);
-    }
-    return answerType;
+    return this.answer != null ? this.answer.getType().toString() : "NULL";
   }
 
-  public void setAnswer(T answer) {
+  public void setAnswer(FHIRAnswer answer) {
     this.answer = answer;
   }
 
@@ -91,18 +66,7 @@ public class FHIRResponse<T> {
     final String answer;
 
     if (fhirResponse != null) {
-      if (fhirResponse.answer instanceof String) {
-        answerType = "String";
-      } else if (fhirResponse.answer instanceof Map) {
-        answerType = "Map";
-      } else if (fhirResponse.answer instanceof List) {
-        answerType = "List";
-      } else if (fhirResponse.answer == null) {
-        answerType = "null";
-      } else {
-        answerType = String.valueOf(fhirResponse.answer.getClass());
-        log.severe("Unknown FHIRResponse answer type: {0}", answerType);
-      }
+      answerType = fhirResponse.answer != null ? fhirResponse.answer.getType().getXMLName() : "null";
       message = String.valueOf(fhirResponse.message);
       resource = String.valueOf(fhirResponse.resource);
       status = String.valueOf(fhirResponse.status);
@@ -123,6 +87,16 @@ public class FHIRResponse<T> {
     return elementList;
   }
 
+  /**
+   * Returns <code>true</code> if both responses have equal typed answers, treating a missing response as a
+   * <code>null</code> answer.
+   */
+  public static boolean answersMatch(final FHIRResponse first, final FHIRResponse second) {
+    return Objects.equals(
+        first != null ? first.answer : null,
+        second != null ? second.answer : null);
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (!(obj instanceof FHIRResponse)) {
@@ -135,27 +109,23 @@ public class FHIRResponse<T> {
         && Objects.equals(this.status, fhirResponse.status);
   }
 
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.answer, this.message, this.resource, this.status);
+  }
+
   @Override
   public String toString() {
-    final String answerType = this.getAnswerType();
     final String formattedAnswer;
-    if (this.answer == null) {
-      formattedAnswer = "null";
-    }
-    else if (answerType.equals(AnswerType.MAP.toString())) {
-      formattedAnswer = Maps.prettyPrint((Map<?, ?>) this.answer);
-    } else if (answerType.equals(AnswerType.LIST.toString())) {
-      final List<String> formattedList = new ArrayList<>();
-      for (Object map: (List<?>) this.answer) {
-        String formattedMap = Maps.prettyPrint((Map<?, ?>) map);
-        formattedList.add(formattedMap);
-      }
-      formattedAnswer = "[\n  " + String.join(",\n  ", formattedList) + "\n]";
+    if (this.answer instanceof FHIRAnswer.Record) {
+      formattedAnswer = ((FHIRAnswer.Record) this.answer).prettyPrint();
+    } else if (this.answer instanceof FHIRAnswer.Sequence) {
+      formattedAnswer = ((FHIRAnswer.Sequence) this.answer).prettyPrint();
     } else {
       formattedAnswer = String.valueOf(this.answer);
     }
     return "FHIRResponse{\n" +
-        "  answerType=" + (this.answer != null ? this.answer.getClass() : "null") + ",\n" +
+        "  answerType=" + this.getAnswerType() + ",\n" +
         "  answer=" + formattedAnswer + ",\n" +
         "  message=" + this.message + ",\n" +
         "  resource=" + this.resource + ",\n" +
@@ -0,0 +1,114 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for the FHIR driver output, reading it token by token straight into a {@link FHIRResponse}
+ * with a typed {@link FHIRAnswer}, without building an intermediate tree of maps and lists.
+ */
+public class FHIRResponseParser {
+  private static final Log log = new Log(FHIRResponseParser.class);
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private FHIRResponseParser() { }
+
+  /**
+   * Parses the FHIR driver output in the given <var>file</var>. Returns <code>null</code> if the output is
+   * not a JSON object.
+   */
+  public static FHIRResponse parse(final Place file) throws IOException {
+    try (final Reader reader = file.openReader()) {
+      return parse(reader);
+    }
+  }
+
+  /**
+   * Parses the FHIR driver output read from <var>reader</var>. Returns <code>null</code> if the output is
+   * not a JSON object.
+   */
+  public static FHIRResponse parse(final Reader reader) throws IOException {
+    try (final JsonParser parser = jsonFactory.createParser(reader)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        log.severe("Unable to parse the response from FHIR");
+        return null;
+      }
+
+      final FHIRResponse fhirResponse = new FHIRResponse();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        final JsonToken token = parser.nextToken();
+        switch (field) {
+          case "answer":
+            fhirResponse.setAnswer(readAnswer(parser, token));
+            break;
+          case "message":
+            fhirResponse.setMessage(readText(parser, token));
+            break;
+          case "resource":
+            fhirResponse.setResource(readText(parser, token));
+            break;
+          case "status":
+            fhirResponse.setStatus(readText(parser, token));
+            break;
+          default:
+            log.DBG("Skipping unknown field in FHIR response: {0}", field);
+            parser.skipChildren();
+        }
+      }
+      return fhirResponse;
+    }
+  }
+
+  /**
+   * Reads the value starting at the current <var>token</var> as an answer.
+   */
+  private static FHIRAnswer readAnswer(final JsonParser parser, final JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_NULL:
+        return null;
+      case START_OBJECT: {
+        final List<String> names = new ArrayList<>();
+        final List<FHIRAnswer> values = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          // Field names are canonicalized by the parser, so repeated resource fields share their strings
+          names.add(parser.getCurrentName());
+          values.add(readAnswer(parser, parser.nextToken()));
+        }
+        return new FHIRAnswer.Record(names, values);
+      }
+      case START_ARRAY: {
+        final List<FHIRAnswer> items = new ArrayList<>();
+        JsonToken itemToken;
+        while ((itemToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+          items.add(readAnswer(parser, itemToken));
+        }
+        return new FHIRAnswer.Sequence(items);
+      }
+      default:
+        return new FHIRAnswer.Value(parser.getText());
+    }
+  }
+
+  /**
+   * Reads the value starting at the current <var>token</var> as text, keeping nested values in their JSON form.
+   */
+  private static String readText(final JsonParser parser, final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token.isScalarValue()) {
+      return parser.getText();
+    }
+    return String.valueOf(readAnswer(parser, token));
+  }
+}
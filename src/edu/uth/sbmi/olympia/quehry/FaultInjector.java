@@ -0,0 +1,71 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Adds latency and failures to the calls of a stand-in backend. Both are drawn from a seeded random number
+ * generator, so a run with the same calls in the same order sees the same delays and failures.
+ */
+public class FaultInjector {
+  private static final Log log = new Log(FaultInjector.class);
+
+  private final long latencyMillis;
+  private final long latencyJitterMillis;
+  private final double failureRate;
+  private final Random random;
+
+  /**
+   * Creates a new <code>FaultInjector</code> delaying each call by <var>latencyMillis</var> plus up to
+   * <var>latencyJitterMillis</var>, and failing a <var>failureRate</var> fraction of the calls.
+   * @throws IllegalArgumentException If a latency is negative or the rate is not between 0 and 1.
+   */
+  public FaultInjector(final long latencyMillis,
+                       final long latencyJitterMillis,
+                       final double failureRate,
+                       final long seed) {
+    if (latencyMillis < 0 || latencyJitterMillis < 0 || failureRate < 0 || failureRate > 1) {
+      throw new IllegalArgumentException("Invalid latency or failure rate");
+    }
+    this.latencyMillis = latencyMillis;
+    this.latencyJitterMillis = latencyJitterMillis;
+    this.failureRate = failureRate;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Creates a new <code>FaultInjector</code> from the <code>latencyMillis</code>,
+   * <code>latencyJitterMillis</code>, <code>failureRate</code> and <code>seed</code> configured for the
+   * <var>backend</var> class. By default calls are neither delayed nor failed.
+   */
+  public static FaultInjector fromConfig(final Class<?> backend) {
+    return new FaultInjector(
+        Config.get(backend, "latencyMillis", "0").toInteger(),
+        Config.get(backend, "latencyJitterMillis", "0").toInteger(),
+        Config.get(backend, "failureRate", "0").toDouble(),
+        Config.get(backend, "seed", "0").toInteger());
+  }
+
+  /**
+   * Waits for this call's latency, then throws if this call is one to fail.
+   * @throws IOException If the call fails.
+   */
+  public void inject(final String call) throws IOException, InterruptedException {
+    final long delay;
+    final boolean fail;
+    synchronized (random) {
+      delay = latencyMillis + (latencyJitterMillis > 0 ? (long) (random.nextDouble() * latencyJitterMillis) : 0);
+      fail = failureRate > 0 && random.nextDouble() < failureRate;
+    }
+    if (delay > 0) {
+      Thread.sleep(delay);
+    }
+    if (fail) {
+      log.DBG("Injecting a failure into {0}", call);
+      throw new IOException("Injected failure: " + call);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Dependency;
+import edu.uth.sbmi.olympia.text.Sentence;
+import edu.uth.sbmi.olympia.text.Token;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.TreeNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The parts of logical tree generation that do not depend on the concepts of a question, kept across the concept
+ * configurations a question is evaluated with. The gold concepts are annotated on the question as read, while
+ * the extracted-concept configurations share one copy of it and differ only in the {@link ConceptOverlay}
+ * applied, so the lexicon matches are cached by the text, tokens and dependencies of the sentence rather than by
+ * document, and stored as token offsets. Only the entries without concept nodes are cached; the rest are matched
+ * again for each configuration, as their matches depend on the concepts applied at the time. The trees
+ * generated from a null-pruned tree are cached by its tree string, as they depend on nothing else.
+ */
+public class GenerationCache {
+  private static final Log log = new Log(GenerationCache.class);
+
+  private final List<LexiconEntry> entries;
+  private final boolean[] conceptEntries;
+  private final Map<String, int[][][]> tokenMatches = new HashMap<>();
+  private final Map<String, List<TreeNode<String>>> generatedTrees;
+
+  /**
+   * Creates a new <code>GenerationCache</code> for the given <var>entries</var>, keeping the generated trees of
+   * up to <var>memoryTrees</var> null-pruned trees.
+   */
+  public GenerationCache(final List<LexiconEntry> entries, final int memoryTrees) {
+    this.entries = entries;
+    this.conceptEntries = new boolean[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      for (final String node : entries.get(i).getNodes()) {
+        conceptEntries[i] |= isConceptNode(node);
+      }
+    }
+    this.generatedTrees = new LinkedHashMap<String, List<TreeNode<String>>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<TreeNode<String>>> eldest) {
+        return size() > memoryTrees;
+      }
+    };
+  }
+
+  /**
+   * Returns <code>true</code> if the <var>node</var> of a lexicon pattern matches a concept rather than a token,
+   * such as <code>__concept__</code>.
+   */
+  static boolean isConceptNode(final String node) {
+    return node.length() > 4 && node.startsWith("__") && node.endsWith("__");
+  }
+
+  /**
+   * Returns the {@link LexiconEntry}s this cache is for.
+   */
+  public List<LexiconEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns <code>true</code> if the matches of the entry at <var>index</var> depend on the concepts.
+   */
+  boolean isConceptEntry(final int index) {
+    return conceptEntries[index];
+  }
+
+  /**
+   * Returns the cached matches of the token-only entries in the <var>sentence</var>, indexed like the entries,
+   * or <code>null</code> if the sentence has not been matched yet. Those of a concept entry are
+   * <code>null</code>.
+   */
+  List<List<LexiconMatch>> getTokenMatches(final Sentence sentence) {
+    final int[][][] offsets;
+    synchronized (tokenMatches) {
+      offsets = tokenMatches.get(key(sentence));
+    }
+    if (offsets == null) {
+      return null;
+    }
+    final List<Token> tokens = sentence.getTokens();
+    final List<List<LexiconMatch>> matches = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      if (offsets[i] == null) {
+        matches.add(null);
+        continue;
+      }
+      final List<LexiconMatch> entryMatches = new ArrayList<>(offsets[i].length);
+      for (final int[] matchOffsets : offsets[i]) {
+        final List<Token> matchTokens = new ArrayList<>(matchOffsets.length);
+        for (final int offset : matchOffsets) {
+          matchTokens.add(tokens.get(offset));
+        }
+        entryMatches.add(new LexiconMatch(entries.get(i), matchTokens));
+      }
+      matches.add(entryMatches);
+    }
+    return matches;
+  }
+
+  /**
+   * Caches the <var>matches</var> of the token-only entries in the <var>sentence</var>, indexed like the
+   * entries.
+   */
+  void putTokenMatches(final Sentence sentence, final List<List<LexiconMatch>> matches) {
+    final int start = sentence.getStartTokenOffset();
+    final int[][][] offsets = new int[entries.size()][][];
+    for (int i = 0; i < entries.size(); i++) {
+      if (conceptEntries[i]) {
+        continue;
+      }
+      final List<LexiconMatch> entryMatches = matches.get(i);
+      offsets[i] = new int[entryMatches.size()][];
+      for (int j = 0; j < entryMatches.size(); j++) {
+        final List<Token> matchTokens = entryMatches.get(j).getTokens();
+        offsets[i][j] = new int[matchTokens.size()];
+        for (int k = 0; k < matchTokens.size(); k++) {
+          offsets[i][j][k] = matchTokens.get(k).getTokenOffset() - start;
+        }
+      }
+    }
+    synchronized (tokenMatches) {
+      tokenMatches.put(key(sentence), offsets);
+    }
+  }
+
+  /**
+   * Returns the trees generated from the null-pruned <var>root</var>, calling <var>generate</var> if they are
+   * not cached. The trees are shared, so they must not be changed.
+   */
+  List<TreeNode<String>> getGeneratedTrees(final TreeNode<String> root,
+                                           final Function<TreeNode<String>, List<TreeNode<String>>> generate) {
+    final String key = root.treeString();
+    synchronized (generatedTrees) {
+      final List<TreeNode<String>> trees = generatedTrees.get(key);
+      if (trees != null) {
+        log.finer("Reusing {0} generated trees", trees.size());
+        return trees;
+      }
+    }
+    final List<TreeNode<String>> trees = Collections.unmodifiableList(generate.apply(root));
+    synchronized (generatedTrees) {
+      generatedTrees.put(key, trees);
+    }
+    return trees;
+  }
+
+  /**
+   * Returns the key of the <var>sentence</var>: its text, the character offsets of its tokens and its
+   * dependencies, relative to the start of the sentence.
+   */
+  static String key(final Sentence sentence) {
+    final int startChar = sentence.getStartCharOffset();
+    final int startToken = sentence.getStartTokenOffset();
+    final StringBuilder sb = new StringBuilder(sentence.asRawString());
+    for (final Token token : sentence.getTokens()) {
+      sb.append(' ').append(token.getStartCharOffset() - startChar)
+          .append(',').append(token.getEndCharOffset() - startChar);
+    }
+    final List<String> dependencies = new ArrayList<>();
+    for (final Dependency dependency : sentence.getSub(Dependency.class)) {
+      dependencies.add((dependency.getGovernor().getStartTokenOffset() - startToken) + ","
+          + (dependency.getGovernor().getEndTokenOffset() - startToken) + ","
+          + (dependency.getDependent().getStartTokenOffset() - startToken) + ","
+          + (dependency.getDependent().getEndTokenOffset() - startToken) + ","
+          + dependency.getType());
+    }
+    Collections.sort(dependencies);
+    for (final String dependency : dependencies) {
+      sb.append('\t').append(dependency);
+    }
+    return sb.toString();
+  }
+}
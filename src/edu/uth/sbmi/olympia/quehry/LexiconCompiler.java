@@ -0,0 +1,138 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+import edu.uth.sbmi.olympia.util.Triple;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a lexicon into the binary format read by {@link CompiledLexicon}. The lexicon is parsed and checked
+ * against the type rules once, here, so that loading the compiled lexicon does neither.
+ */
+public class LexiconCompiler {
+  private static final Log log = new Log(LexiconCompiler.class);
+
+  /**
+   * Parses the <var>lexicon</var> and checks it against the <var>typeRules</var>, writing the compiled lexicon
+   * to <var>output</var>.
+   * @throws IllegalArgumentException If the lexicon uses a logical operation the type rules have no types for.
+   */
+  public static void compile(final Place lexicon, final Place typeRules, final File output) throws IOException {
+    final List<LexiconEntry> entries = ReadLexicon.parseLexicon(lexicon);
+    checkOperations(entries, typeRules);
+    final byte[] fingerprint = CompiledLexicon.fingerprint(lexicon, typeRules);
+
+    // Every string is stored once, and the entries refer to it by its index
+    final Map<String, Integer> strings = new LinkedHashMap<>();
+    for (final LexiconEntry entry : entries) {
+      intern(strings, entry.getID());
+      intern(strings, entry.getPattern());
+      intern(strings, entry.getLogicalForm());
+      for (final String node : entry.getNodes()) {
+        intern(strings, node);
+      }
+      for (final Triple<String,String,String> edge : entry.getEdges()) {
+        intern(strings, edge.getFirst());
+        intern(strings, edge.getSecond());
+        intern(strings, edge.getThird());
+      }
+    }
+
+    final File parent = output.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory: " + parent);
+    }
+    // A temporary file of its own, so JVMs compiling the same lexicon at once do not write over each other
+    final File temp = Files.createTempFile(
+        (parent != null ? parent : new File(".")).toPath(), output.getName(), ".tmp").toFile();
+    try {
+      try (final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeInt(CompiledLexicon.MAGIC);
+        out.writeInt(CompiledLexicon.VERSION);
+        out.write(fingerprint);
+        out.writeInt(strings.size());
+        for (final String string : strings.keySet()) {
+          QuestionSnapshot.writeString(out, string);
+        }
+
+        out.writeInt(entries.size());
+        for (final LexiconEntry entry : entries) {
+          out.writeInt(strings.get(entry.getID()));
+          out.writeInt(strings.get(entry.getPattern()));
+          out.writeInt(strings.get(entry.getLogicalForm()));
+          out.writeInt(entry.getLineNumber());
+          out.writeInt(entry.getNodes().size());
+          for (final String node : entry.getNodes()) {
+            out.writeInt(strings.get(node));
+          }
+          out.writeInt(entry.getEdges().size());
+          for (final Triple<String,String,String> edge : entry.getEdges()) {
+            out.writeInt(strings.get(edge.getFirst()));
+            out.writeInt(strings.get(edge.getSecond()));
+            out.writeInt(strings.get(edge.getThird()));
+          }
+        }
+      }
+      // Replaced in one step, so a JVM opening the compiled lexicon meanwhile sees the old or the new one
+      Files.move(temp.toPath(), output.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      if (temp.exists() && !temp.delete()) {
+        log.DBG("Unable to delete temporary file: {0}", temp);
+      }
+    }
+    log.info("Compiled {0} lexicon entries from {1} into {2}", entries.size(), lexicon, output);
+  }
+
+  /**
+   * Checks that the <var>typeRules</var> have input/output types for every logical operation of the
+   * <var>entries</var>, since generation cannot use one without.
+   * @throws IllegalArgumentException If any operation has no types.
+   */
+  static void checkOperations(final List<LexiconEntry> entries, final Place typeRules) {
+    final Set<String> untyped =
+        ModuleTests.getUntypedOperations(entries, new LogicalTreeFilteringRules(typeRules));
+    if (!untyped.isEmpty()) {
+      throw new IllegalArgumentException("Logical operations in lexicon have no input/output types: " + untyped);
+    }
+  }
+
+  private static void intern(final Map<String, Integer> strings, final String string) {
+    strings.putIfAbsent(string, strings.size());
+  }
+
+  /**
+   * Command line: compiles the configured lexicon, or the lexicons given, into the configured directory, checking
+   * them against the configured type rules.
+   */
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final List<Place> lexicons = new ArrayList<>();
+    for (final String arg : argv) {
+      lexicons.add(Place.fromFile(arg));
+    }
+    if (lexicons.isEmpty()) {
+      lexicons.add(Config.get(Run.class, "lexicon").toPlace());
+    }
+    final Place typeRules = Config.get(LogicalTreeFilteringRules.class, "typeRules").toPlace();
+    for (final Place lexicon : lexicons) {
+      compile(lexicon, typeRules, CompiledLexicon.getFile(lexicon));
+    }
+  }
+}
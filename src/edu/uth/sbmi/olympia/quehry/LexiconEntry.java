@@ -45,6 +45,25 @@ public class LexiconEntry {
     this.lineNum = lineNum;
   }
 
+  /**
+   * Creates a new <code>LexiconEntry</code> whose <var>nodes</var> and
+   * <var>edges</var> were already parsed from the <var>pattern</var>, as when
+   * read from a {@link CompiledLexicon}.
+   */
+  LexiconEntry(final String id,
+               final String pattern,
+               final List<String> nodes,
+               final List<Triple<String,String,String>> edges,
+               final String logicalForm,
+               final Integer lineNum) {
+    this.id = id;
+    this.pattern = pattern;
+    this.nodes.addAll(nodes);
+    this.edges.addAll(edges);
+    this.logicalForm = logicalForm;
+    this.lineNum = lineNum;
+  }
+
   /**
    * Parses the lexicon entry pattern, creating the nodes and edges.
    */
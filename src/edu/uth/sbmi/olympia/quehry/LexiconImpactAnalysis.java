@@ -0,0 +1,297 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.DependencyTree;
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Sentence;
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+import edu.uth.sbmi.olympia.util.Strings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Offline analysis of how much each {@link LexiconEntry} adds to the work of generating logical trees for a
+ * corpus of questions. Each question is generated once with the whole lexicon, then once more without each
+ * entry that fires on it; the differences are the extra matches, candidates, logical trees and time the entry
+ * is responsible for. Each time is the median of the configured <code>timingRepeats</code> generations, and an
+ * entry is never credited with less than no time on a question. Overly general entries show up at the top of the
+ * report before they reach production.
+ */
+public class LexiconImpactAnalysis {
+  private static final Log log = new Log(LexiconImpactAnalysis.class);
+
+  private static final String[] COLUMNS = {"fires", "matches", "candidates", "trees", "time"};
+
+  private final List<LexiconEntry> entries;
+  private final LogicalTreeFilteringRules typeRules;
+  private final boolean allowConceptTokensMatching;
+  private final int timingRepeats;
+
+  /**
+   * The impact of one {@link LexiconEntry} over the corpus.
+   */
+  public static class EntryImpact {
+    private final LexiconEntry entry;
+    private int fires = 0;
+    private long extraMatches = 0;
+    private long extraCandidates = 0;
+    private long extraTrees = 0;
+    private long extraNanos = 0;
+    private double timeShare = 0.0;
+
+    private EntryImpact(final LexiconEntry entry) {
+      this.entry = entry;
+    }
+
+    private void add(final Generation full, final Generation without) {
+      fires++;
+      extraMatches += full.matches - without.matches;
+      extraCandidates += full.candidates - without.candidates;
+      extraTrees += full.trees - without.trees;
+      // The timing noise can make the question faster with the entry, which is no time the entry adds
+      extraNanos += Math.max(0, full.nanos - without.nanos);
+    }
+
+    /**
+     * Returns the {@link LexiconEntry}.
+     */
+    public LexiconEntry getEntry() {
+      return entry;
+    }
+
+    /**
+     * Returns the number of questions the entry matches.
+     */
+    public int getFires() {
+      return fires;
+    }
+
+    /**
+     * Returns the number of {@link LexiconMatch}es the entry adds, net of the default matches for the tokens
+     * it covers.
+     */
+    public long getExtraMatches() {
+      return extraMatches;
+    }
+
+    /**
+     * Returns the number of candidate sets of matches the entry adds.
+     */
+    public long getExtraCandidates() {
+      return extraCandidates;
+    }
+
+    /**
+     * Returns the number of {@link LogicalTree}s the entry adds.
+     */
+    public long getExtraTrees() {
+      return extraTrees;
+    }
+
+    /**
+     * Returns the generation time, in nanoseconds, the entry adds.
+     */
+    public long getExtraNanos() {
+      return extraNanos;
+    }
+
+    /**
+     * Returns the share of the total generation time over the corpus that the entry adds. The entries firing
+     * on the same question each count its time, so the shares do not add up to one.
+     */
+    public double getTimeShare() {
+      return timeShare;
+    }
+  }
+
+  /**
+   * The sizes and time of generating the logical trees of one question.
+   */
+  private static class Generation {
+    private final Set<LexiconEntry> fired = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int matches;
+    private int candidates;
+    private int trees;
+    private long nanos;
+  }
+
+  /**
+   * Creates a new <code>LexiconImpactAnalysis</code> of the <var>entries</var>, with the <var>typeRules</var>
+   * used to filter the generated trees.
+   */
+  public LexiconImpactAnalysis(final List<LexiconEntry> entries,
+                               final LogicalTreeFilteringRules typeRules,
+                               final boolean allowConceptTokensMatching) {
+    this.entries = entries;
+    this.typeRules = typeRules;
+    this.allowConceptTokensMatching = allowConceptTokensMatching;
+    this.timingRepeats = Math.max(1, Config.get(LexiconImpactAnalysis.class, "timingRepeats", "5").toInteger());
+  }
+
+  /**
+   * Returns the {@link EntryImpact} of each entry over the <var>questions</var>, which must have their
+   * dependencies annotated, in the order of the lexicon.
+   */
+  public List<EntryImpact> analyze(final List<Document> questions) {
+    final Map<LexiconEntry,EntryImpact> impacts = new IdentityHashMap<>();
+    for (final LexiconEntry entry : entries) {
+      impacts.put(entry, new EntryImpact(entry));
+    }
+    final LexiconMatchTreeGenerator full = new LexiconMatchTreeGenerator(
+        entries, allowConceptTokensMatching, typeRules);
+    // Only the entries that fire on some question need a generator without them
+    final Map<LexiconEntry,LexiconMatchTreeGenerator> withouts = new IdentityHashMap<>();
+
+    long totalNanos = 0;
+    int count = 0;
+    for (final Document question : questions) {
+      final Sentence sentence = question.getOnlyCongruent(Sentence.class);
+      final Generation generation = generate(full, sentence);
+      totalNanos += generation.nanos;
+      for (final LexiconEntry entry : generation.fired) {
+        final LexiconMatchTreeGenerator without = withouts.computeIfAbsent(entry, this::generatorWithout);
+        impacts.get(entry).add(generation, generate(without, sentence));
+      }
+      if (++count % 100 == 0) {
+        log.info("Analyzed {0} of {1} questions", count, questions.size());
+      }
+    }
+
+    final List<EntryImpact> report = new ArrayList<>();
+    for (final LexiconEntry entry : entries) {
+      final EntryImpact impact = impacts.get(entry);
+      impact.timeShare = totalNanos == 0 ? 0.0 : (double) impact.extraNanos / totalNanos;
+      report.add(impact);
+    }
+    return report;
+  }
+
+  private LexiconMatchTreeGenerator generatorWithout(final LexiconEntry removed) {
+    final List<LexiconEntry> remaining = new ArrayList<>(entries.size() - 1);
+    for (final LexiconEntry entry : entries) {
+      if (entry != removed) {
+        remaining.add(entry);
+      }
+    }
+    return new LexiconMatchTreeGenerator(remaining, allowConceptTokensMatching, typeRules);
+  }
+
+  /**
+   * Generates the logical trees of the <var>sentence</var> with the <var>generator</var>, counting the
+   * matches, candidates and trees along the way. The candidates and trees are generated
+   * <code>timingRepeats</code> times from the same matches, and their median time is kept.
+   */
+  private Generation generate(final LexiconMatchTreeGenerator generator, final Sentence sentence) {
+    final Generation generation = new Generation();
+    final DependencyTree depTree = new DependencyTree(sentence);
+    final List<LexiconMatch> matches = generator.getLexiconMatches(sentence, depTree);
+    for (final LexiconMatch match : matches) {
+      // The default matches for uncovered tokens are not lexicon entries
+      if (match.getEntry().getLineNumber() > 0) {
+        generation.fired.add(match.getEntry());
+      }
+    }
+    generation.matches = matches.size();
+
+    final long[] nanos = new long[timingRepeats];
+    for (int i = 0; i < timingRepeats; i++) {
+      final long start = System.nanoTime();
+      final List<List<LexiconMatch>> candidates = generator.identifyCandidates(matches);
+      final List<LogicalTree> trees = new SimpleDependencyBasedLogicalTreeGenerator(typeRules)
+          .getLogicalTrees(generator.generate(depTree, candidates));
+      nanos[i] = System.nanoTime() - start;
+      generation.candidates = candidates.size();
+      generation.trees = trees.size();
+    }
+    Arrays.sort(nanos);
+    generation.nanos = nanos[timingRepeats / 2];
+    return generation;
+  }
+
+  /**
+   * Returns a {@link Comparator} putting the impacts with the largest value in the given <var>column</var>
+   * first: one of <code>fires</code>, <code>matches</code>, <code>candidates</code>, <code>trees</code> or
+   * <code>time</code>.
+   */
+  public static Comparator<EntryImpact> sortBy(final String column) {
+    switch (column) {
+      case "fires":
+        return Comparator.comparingInt(EntryImpact::getFires).reversed();
+      case "matches":
+        return Comparator.comparingLong(EntryImpact::getExtraMatches).reversed();
+      case "candidates":
+        return Comparator.comparingLong(EntryImpact::getExtraCandidates).reversed();
+      case "trees":
+        return Comparator.comparingLong(EntryImpact::getExtraTrees).reversed();
+      case "time":
+        return Comparator.comparingLong(EntryImpact::getExtraNanos).reversed();
+      default:
+        throw new IllegalArgumentException("Unknown column: " + column + ", expected one of "
+            + Arrays.toString(COLUMNS));
+    }
+  }
+
+  /**
+   * Returns the <var>impacts</var> as a table, in their given order, leaving out the entries that never fire.
+   */
+  public static String toTable(final List<EntryImpact> impacts) {
+    final List<List<String>> table = new ArrayList<>();
+    table.add(Arrays.asList("Line", "Pattern", "Logical Form", "Fires", "Matches", "Candidates", "Trees",
+        "Time (ms)", "Time (%)"));
+    for (final EntryImpact impact : impacts) {
+      if (impact.getFires() == 0) {
+        continue;
+      }
+      final LexiconEntry entry = impact.getEntry();
+      table.add(Arrays.asList(
+          String.valueOf(entry.getLineNumber()),
+          entry.getPattern(),
+          entry.getLogicalForm(),
+          String.valueOf(impact.getFires()),
+          String.valueOf(impact.getExtraMatches()),
+          String.valueOf(impact.getExtraCandidates()),
+          String.valueOf(impact.getExtraTrees()),
+          String.format("%.1f", impact.getExtraNanos() / 1e6),
+          String.format("%.2f", 100 * impact.getTimeShare())));
+    }
+    return Strings.prettyTable(table);
+  }
+
+  /**
+   * Command line: analyzes the configured lexicon over the configured questions, or the questions files
+   * given, printing the entries sorted by the configured <code>sortBy</code> column.
+   */
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final List<Place> questionFiles = new ArrayList<>();
+    for (final String arg : argv) {
+      questionFiles.add(Place.fromFile(arg));
+    }
+    if (questionFiles.isEmpty()) {
+      questionFiles.add(Config.get(Run.class, "questions").toPlace());
+    }
+    final List<Document> questions = new ArrayList<>();
+    for (final Place questionFile : questionFiles) {
+      questions.addAll(new ReadQuestions(questionFile).readQuestionsWithAnswers());
+    }
+    new DependencyCache(Config.get(DependencyCache.class, "file").toPlace().toFile(), null)
+        .annotate(questions, Config.get(DependencyCache.class, "parserThreads", "1").toInteger());
+
+    final Place lexicon = Config.get(Run.class, "lexicon").toPlace();
+    final Place typeRulesFile = Config.get(LogicalTreeFilteringRules.class, "typeRules").toPlace();
+    final List<EntryImpact> impacts = new LexiconImpactAnalysis(ReadLexicon.loadLexicon(lexicon, typeRulesFile),
+        new LogicalTreeFilteringRules(typeRulesFile), false).analyze(questions);
+
+    impacts.sort(sortBy(Config.get(LexiconImpactAnalysis.class, "sortBy", "candidates").toString()));
+    System.out.println(toTable(impacts));
+  }
+}
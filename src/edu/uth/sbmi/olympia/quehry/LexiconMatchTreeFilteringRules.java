@@ -18,7 +18,25 @@ import java.util.TreeSet;
  */
 public class LexiconMatchTreeFilteringRules {
   private static final Log log = new Log(LexiconMatchTreeFilteringRules.class);
-  
+
+  private final LogicalTreeFilteringRules typeRules;
+
+  /**
+   * Creates a new <code>LexiconMatchTreeFilteringRules</code> with the
+   * configured type rules.
+   */
+  public LexiconMatchTreeFilteringRules() {
+    this(new LogicalTreeFilteringRules());
+  }
+
+  /**
+   * Creates a new <code>LexiconMatchTreeFilteringRules</code> checking the
+   * functions against the given <var>typeRules</var>.
+   */
+  public LexiconMatchTreeFilteringRules(final LogicalTreeFilteringRules typeRules) {
+    this.typeRules = typeRules;
+  }
+
   /**
    * Checks the logical operations in the {@link LexiconMatchTree} to determine
    * whether any valid {@link LogicalTree} is even possible.
@@ -57,7 +75,7 @@ public class LexiconMatchTreeFilteringRules {
     int eventInputAndNonTrueFalseOutput = 0;
     for (final String function : functions) {
       final Pair<String,String> types =
-          LogicalTreeFilteringRules.getTypes(function, true);
+          typeRules.getFunctionTypes(function, true);
       final String input = types.getFirst();
       final String output = types.getSecond();
       if (input.equals("Event") && !output.equals("TrueFalse")) {
@@ -54,16 +54,47 @@ public class LexiconMatchTreeGenerator {
 
   private final List<LexiconEntry> entries;
   private final boolean allowConceptTokensMatching;
-  private final LexiconMatchTreeFilteringRules treeFilter =
-        new LexiconMatchTreeFilteringRules();
+  private final LexiconMatchTreeFilteringRules treeFilter;
+  private final GenerationCache cache;
 
   /**
    * Creates a new <code>LexiconMatchTreeGenerator</code> using the set of
    * {@link LexiconEntry}s and an option to match the concept tokens.
    */
   public LexiconMatchTreeGenerator(final List<LexiconEntry> entries, final boolean allowConceptTokensMatching) {
+    this(entries, allowConceptTokensMatching, new LogicalTreeFilteringRules());
+  }
+
+  /**
+   * Creates a new <code>LexiconMatchTreeGenerator</code> using the set of
+   * {@link LexiconEntry}s, an option to match the concept tokens, and the
+   * <var>typeRules</var> to filter the trees with.
+   */
+  public LexiconMatchTreeGenerator(final List<LexiconEntry> entries,
+                                   final boolean allowConceptTokensMatching,
+                                   final LogicalTreeFilteringRules typeRules) {
+    this(entries, allowConceptTokensMatching, typeRules, null);
+  }
+
+  /**
+   * Creates a new <code>LexiconMatchTreeGenerator</code> using the
+   * {@link LexiconEntry}s of the <var>cache</var>, reusing the matches it
+   * holds for the entries that do not depend on the concepts.
+   */
+  public LexiconMatchTreeGenerator(final GenerationCache cache,
+                                   final boolean allowConceptTokensMatching,
+                                   final LogicalTreeFilteringRules typeRules) {
+    this(cache.getEntries(), allowConceptTokensMatching, typeRules, cache);
+  }
+
+  private LexiconMatchTreeGenerator(final List<LexiconEntry> entries,
+                                    final boolean allowConceptTokensMatching,
+                                    final LogicalTreeFilteringRules typeRules,
+                                    final GenerationCache cache) {
     this.entries = entries;
     this.allowConceptTokensMatching = allowConceptTokensMatching;
+    this.treeFilter = new LexiconMatchTreeFilteringRules(typeRules);
+    this.cache = cache;
   }
 
   /**
@@ -74,6 +105,67 @@ public class LexiconMatchTreeGenerator {
     final DependencyTree depTree = new DependencyTree(sentence);
     log.finest("Dependency Tree:\n{0}", depTree);
 
+    final List<LexiconMatch> matches = getLexiconMatches(sentence, depTree);
+    return generate(depTree, identifyCandidates(matches));
+  }
+
+  /**
+   * Creates the {@link LexiconMatchTree}s of the <var>candidates</var> identified in the <var>depTree</var>.
+   */
+  List<LexiconMatchTree> generate(final DependencyTree depTree, final List<List<LexiconMatch>> candidates) {
+    log.fine("Generated {0} Candidates", candidates.size());
+
+    final List<LexiconMatchTree> trees = new ArrayList<>();
+    for (final List<LexiconMatch> candidate : candidates) {
+      final LexiconMatchTree tree = new LexiconMatchTree(depTree);
+      for (final LexiconMatch match : candidate) {
+        tree.addLexiconMatch(match);
+      }
+      assert tree.isFullyMatched();
+      trees.add(tree);
+    }
+    log.fine("Created {0} Initial LexiconMatchTrees", trees.size());
+
+    // Filter
+    final Iterator<LexiconMatchTree> treeIterator = trees.iterator();
+    while (treeIterator.hasNext()) {
+      final LexiconMatchTree tree = treeIterator.next();
+      if (treeFilter.hasTypeMismatch(tree)) {
+        treeIterator.remove();
+      }
+    }
+    log.fine("Created {0} Final LexiconMatchTrees", trees.size());
+
+    // Logging
+    if (log.finest()) {
+      for (int i = 0; i < trees.size(); i++) {
+        final List<LexiconMatch> lexMatches = new ArrayList<>(
+            trees.get(i).getLexiconMatches());
+        Collections.sort(lexMatches, new Comparator<LexiconMatch>() {
+          @Override
+          public int compare(final LexiconMatch match1, final LexiconMatch match2) {
+            final Integer offset1 = match1.getTokenOffsets().get(0);
+            final Integer offset2 = match2.getTokenOffsets().get(0);
+            return offset1.compareTo(offset2);
+          }
+        });
+        for (final LexiconMatch match : lexMatches) {
+          log.finest("  {0}", match.getEntry());
+        }
+      }
+    }
+
+    ModuleTests.checkGeneratedLexiconMatchTrees(trees);
+    return trees;
+  }
+
+  /**
+   * Returns the {@link LexiconMatch}es of the entries in the given
+   * {@link Sentence}, with a default <code>null</code> match for each token
+   * no entry covers.
+   */
+  List<LexiconMatch> getLexiconMatches(final Sentence sentence,
+                                       final DependencyTree depTree) {
     // Build an inverse index of all the tokens and concepts in this sentence,
     // should make things a bit faster.
     final Map<String,List<Text>> index = new LinkedHashMap<>();
@@ -106,13 +198,28 @@ public class LexiconMatchTreeGenerator {
       index.get(key).add(token);
     }
 
-    // Try to find a match for the entries
+    // Try to find a match for the entries.  The matches of the entries
+    // without concept nodes are the same for every set of concepts, so those
+    // are taken from the cache when the sentence has been matched before.
+    final List<List<LexiconMatch>> cached = cache == null ? null : cache.getTokenMatches(sentence);
+    final List<List<LexiconMatch>> tokenMatches = new ArrayList<>();
     final List<LexiconMatch> matches = new ArrayList<>();
-    for (final LexiconEntry entry : entries) {
-      final List<LexiconMatch> entryMatches = findMatches(entry, index, depTree);
-      if (entryMatches != null) {
-        matches.addAll(entryMatches);
+    for (int i = 0; i < entries.size(); i++) {
+      List<LexiconMatch> entryMatches;
+      if (cached != null && cached.get(i) != null) {
+        entryMatches = cached.get(i);
       }
+      else {
+        entryMatches = findMatches(entries.get(i), index, depTree);
+        if (entryMatches == null) {
+          entryMatches = Collections.emptyList();
+        }
+      }
+      tokenMatches.add(entryMatches);
+      matches.addAll(entryMatches);
+    }
+    if (cache != null && cached == null) {
+      cache.putTokenMatches(sentence, tokenMatches);
     }
 
     // Default any non-existing lexicon matches to null
@@ -144,51 +251,7 @@ public class LexiconMatchTreeGenerator {
       matches.add(new LexiconMatch(entry, Collections.unmodifiableList(Collections.singletonList(token))));
     }
 
-    final List<List<LexiconMatch>> candidates = identifyCandidates(matches);
-    log.fine("Generated {0} Candidates", candidates.size());
-
-    final List<LexiconMatchTree> trees = new ArrayList<>();
-    for (final List<LexiconMatch> candidate : candidates) {
-      final LexiconMatchTree tree = new LexiconMatchTree(depTree);
-      for (final LexiconMatch match : candidate) {
-        tree.addLexiconMatch(match);
-      }
-      assert tree.isFullyMatched();
-      trees.add(tree);
-    }
-    log.fine("Created {0} Initial LexiconMatchTrees", trees.size());
-
-    // Filter
-    final Iterator<LexiconMatchTree> treeIterator = trees.iterator();
-    while (treeIterator.hasNext()) {
-      final LexiconMatchTree tree = treeIterator.next();
-      if (treeFilter.hasTypeMismatch(tree)) {
-        treeIterator.remove();
-      }
-    }
-    log.fine("Created {0} Final LexiconMatchTrees", trees.size());
-
-    // Logging
-    if (log.finest()) {
-      for (int i = 0; i < trees.size(); i++) {
-        final List<LexiconMatch> lexMatches = new ArrayList<>(
-            trees.get(i).getLexiconMatches());
-        Collections.sort(lexMatches, new Comparator<LexiconMatch>() {
-          @Override
-          public int compare(final LexiconMatch match1, final LexiconMatch match2) {
-            final Integer offset1 = match1.getTokenOffsets().get(0);
-            final Integer offset2 = match2.getTokenOffsets().get(0);
-            return offset1.compareTo(offset2);
-          }
-        });
-        for (final LexiconMatch match : lexMatches) {
-          log.finest("  {0}", match.getEntry());
-        }
-      }
-    }
-
-    ModuleTests.checkGeneratedLexiconMatchTrees(trees);
-    return trees;
+    return matches;
   }
 
   /**
@@ -288,7 +351,7 @@ public class LexiconMatchTreeGenerator {
   /**
    * Generate all possible combinations of the lexicon matches.
    */
-  private List<List<LexiconMatch>> identifyCandidates(
+  List<List<LexiconMatch>> identifyCandidates(
       final List<LexiconMatch> matches) {
     if (matches.size() >= 20) {
       log.severe("Too many matches.");
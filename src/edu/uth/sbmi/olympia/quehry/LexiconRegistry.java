@@ -0,0 +1,212 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Versioned lexicon and type rules. While it watches their files, each change is loaded into a new
+ * {@link Version} in the background and swapped in at once. Callers take the current version at the start of
+ * a request and use it throughout, so a request in flight finishes on the version it started with.
+ */
+public class LexiconRegistry implements AutoCloseable {
+  private static final Log log = new Log(LexiconRegistry.class);
+
+  // Editors often write a file in several steps, so wait for it to settle before reloading
+  private static final long SETTLE_MILLIS = 500;
+
+  private final Place lexicon;
+  private final Place typeRules;
+  private final AtomicReference<Version> current = new AtomicReference<>();
+  private WatchService watcher;
+  private Thread watchThread;
+
+  /**
+   * One loaded version of the lexicon and type rules.
+   */
+  public static class Version {
+    private final int number;
+    private final List<LexiconEntry> entries;
+    private final LogicalTreeFilteringRules typeRules;
+    private final GenerationCache generationCache;
+    private final byte[] fingerprint;
+
+    private Version(final int number, final List<LexiconEntry> entries, final LogicalTreeFilteringRules typeRules,
+                    final byte[] fingerprint) {
+      this.number = number;
+      this.entries = Collections.unmodifiableList(entries);
+      this.typeRules = typeRules;
+      this.generationCache = new GenerationCache(this.entries,
+          Config.get(GenerationCache.class, "memoryTrees", "10000").toInteger());
+      this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the number of this version, starting at 1 and increasing with each reload.
+     */
+    public int getNumber() {
+      return number;
+    }
+
+    /**
+     * Returns the {@link LexiconEntry}s of this version.
+     */
+    public List<LexiconEntry> getEntries() {
+      return entries;
+    }
+
+    /**
+     * Returns the type rules of this version.
+     */
+    public LogicalTreeFilteringRules getTypeRules() {
+      return typeRules;
+    }
+
+    /**
+     * Returns the {@link GenerationCache} shared by the requests using this version.
+     */
+    public GenerationCache getGenerationCache() {
+      return generationCache;
+    }
+
+    /**
+     * Returns the fingerprint of the lexicon and type rule files, taken just before this version was loaded.
+     */
+    public byte[] getFingerprint() {
+      return fingerprint.clone();
+    }
+  }
+
+  /**
+   * Creates a new <code>LexiconRegistry</code>, loading the first version of the <var>lexicon</var> and the
+   * <var>typeRules</var>.
+   */
+  public LexiconRegistry(final Place lexicon, final Place typeRules) {
+    this.lexicon = lexicon;
+    this.typeRules = typeRules;
+    current.set(load(1));
+  }
+
+  /**
+   * Returns the current {@link Version}.
+   */
+  public Version getCurrent() {
+    return current.get();
+  }
+
+  /**
+   * Starts watching the lexicon and type rule files, reloading them in the background when they change.
+   */
+  public synchronized void watch() throws IOException {
+    if (watcher != null) {
+      return;
+    }
+    final Path lexiconPath = lexicon.toFile().toPath().toAbsolutePath();
+    final Path typeRulesPath = typeRules.toFile().toPath().toAbsolutePath();
+    final Set<Path> files = new HashSet<>();
+    files.add(lexiconPath);
+    files.add(typeRulesPath);
+
+    watcher = FileSystems.getDefault().newWatchService();
+    final Set<Path> directories = new HashSet<>();
+    for (final Path file : files) {
+      if (directories.add(file.getParent())) {
+        file.getParent().register(watcher,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      }
+    }
+    final WatchService watchService = watcher;
+    watchThread = new Thread(() -> watch(watchService, files), "lexicon-registry");
+    watchThread.setDaemon(true);
+    watchThread.start();
+    log.info("Watching {0} and {1} for changes", lexicon, typeRules);
+  }
+
+  private void watch(final WatchService watchService, final Set<Path> files) {
+    try {
+      while (true) {
+        if (!poll(watchService.take(), files)) {
+          continue;
+        }
+        // Keep waiting while the files are still being written
+        WatchKey key;
+        while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          poll(key, files);
+        }
+        reload();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      log.DBG("Stopped watching the lexicon");
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if any of the events of the <var>key</var> is for one of the <var>files</var>.
+   */
+  private static boolean poll(final WatchKey key, final Set<Path> files) {
+    final Path directory = (Path) key.watchable();
+    boolean changed = false;
+    for (final WatchEvent<?> event : key.pollEvents()) {
+      if (event.context() instanceof Path && files.contains(directory.resolve((Path) event.context()))) {
+        changed = true;
+      }
+    }
+    key.reset();
+    return changed;
+  }
+
+  /**
+   * Loads a new version of the lexicon and type rules and swaps it in, keeping the current version if the new
+   * one fails to load or uses a logical operation the new type rules have no types for.
+   */
+  public synchronized void reload() {
+    final int number = current.get().getNumber() + 1;
+    final Version version;
+    try {
+      version = load(number);
+    } catch (RuntimeException | AssertionError e) {
+      // A half-edited file should not take down the requests still being served
+      log.warning("Keeping lexicon version {0}, failed to load the changes: {1}", number - 1, e);
+      return;
+    }
+    current.set(version);
+    log.info("Swapped in lexicon version {0} with {1} entries", number, version.getEntries().size());
+  }
+
+  private Version load(final int number) {
+    final byte[] fingerprint;
+    try {
+      fingerprint = QuestionSnapshot.fingerprint(lexicon, typeRules);
+    }
+    catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    // Checked against the type rules when compiled or parsed, so an operation without types is never swapped in
+    final List<LexiconEntry> entries = ReadLexicon.loadLexicon(lexicon, typeRules);
+    return new Version(number, entries, new LogicalTreeFilteringRules(typeRules), fingerprint);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (watcher != null) {
+      watcher.close();
+      watchThread.interrupt();
+      watcher = null;
+    }
+  }
+}
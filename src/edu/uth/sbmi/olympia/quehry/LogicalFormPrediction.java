@@ -4,13 +4,17 @@ import edu.uth.sbmi.olympia.text.Document;
 import org.jdom2.Element;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 public class LogicalFormPrediction {
   private Document questionWithConceptsUsedInPrediction;
 
   private LogicalTree predictedLogicalTree;
+  private List<LogicalTree> rankedLogicalTrees = Collections.emptyList();
   private Boolean generatedLogicalTreesIncludeGold;
   private boolean predictedLogicalTreeMatchGold;
 
@@ -19,6 +23,10 @@ public class LogicalFormPrediction {
   private boolean predictedConceptsMatchGoldBoundary;
 
   private FHIRResponse fhirResponsePrediction;
+  private boolean fhirResponsePredictionFetched = false;
+  private Future<FHIRResponse> fhirResponsePrefetch = null;
+
+  private ConceptOverlay conceptOverlay = null;
 
   public LogicalFormPrediction(
       Document questionWithConceptsUsedInPrediction,
@@ -43,16 +51,116 @@ public class LogicalFormPrediction {
     }
   }
 
+  /**
+   * Sets the {@link ConceptOverlay} with the concepts used in the prediction, applied to the question whenever
+   * the FHIR query reads its concepts.
+   */
+  public void setConceptOverlay(final ConceptOverlay conceptOverlay) {
+    this.conceptOverlay = conceptOverlay;
+  }
+
+  /**
+   * Sets the candidate {@link LogicalTree}s of the question as the scorer ranked them, best first.
+   */
+  void setRankedLogicalTrees(final List<LogicalTree> rankedLogicalTrees) {
+    this.rankedLogicalTrees = Collections.unmodifiableList(new ArrayList<>(rankedLogicalTrees));
+  }
+
+  /**
+   * Returns the candidate {@link LogicalTree}s of the question as the scorer ranked them, best first.
+   */
+  List<LogicalTree> getRankedLogicalTrees() {
+    return this.rankedLogicalTrees;
+  }
+
+  /**
+   * Returns the question whose concepts the prediction was made with.
+   */
+  Document getQuestion() {
+    return this.questionWithConceptsUsedInPrediction;
+  }
+
+  /**
+   * Returns the predicted {@link LogicalTree}, or <code>null</code> if there were no candidates.
+   */
+  LogicalTree getPredictedLogicalTree() {
+    return this.predictedLogicalTree;
+  }
+
+  boolean isPredictedLogicalTreeMatchGold() {
+    return this.predictedLogicalTreeMatchGold;
+  }
+
+  boolean isPredictedConceptsMatchGoldCUI() {
+    return this.predictedConceptsMatchGoldCUI;
+  }
+
+  boolean isPredictedConceptsMatchGoldBoundary() {
+    return this.predictedConceptsMatchGoldBoundary;
+  }
+
+  private <T> T withPredictionConcepts(final Supplier<T> action) {
+    return this.conceptOverlay == null ? action.get() : this.conceptOverlay.applyDuring(action);
+  }
+
   public boolean doesPredictedLFMatchGold(boolean predictedTimeFrameMatchGold) {
     return this.predictedLogicalTreeMatchGold
         && predictedTimeFrameMatchGold
         && this.predictedConceptsMatchGoldCUI;
   }
 
+  private FHIRQuery getFhirQuery(final TimeFrame predictedTimeFrame) {
+    return withPredictionConcepts(() -> FHIRClient.createQuery(
+        this.predictedLogicalTree, this.questionWithConceptsUsedInPrediction, predictedTimeFrame, false));
+  }
+
+  /**
+   * Queues the FHIR query of the predicted logical tree in the given <var>batch</var>.
+   */
+  public void submitQuery(final FHIRBatchExecutor batch, final TimeFrame predictedTimeFrame) {
+    batch.submit(getFhirQuery(predictedTimeFrame));
+  }
+
+  /**
+   * Takes the FHIR response of the predicted logical tree from an executed <var>batch</var>.
+   */
+  public void collectResponse(final FHIRBatchExecutor batch, final TimeFrame predictedTimeFrame) {
+    final FHIRQuery query = getFhirQuery(predictedTimeFrame);
+    if (query == null || batch.hasResponse(query)) {
+      this.fhirResponsePrediction = query != null ? batch.getResponse(query) : null;
+      this.fhirResponsePredictionFetched = true;
+    }
+  }
+
+  /**
+   * Starts executing the FHIR query of the predicted logical tree with the <var>speculativeExecutor</var>,
+   * unless its response is already there, and those of the runner-up trees.
+   */
+  public void prefetchResponses(final SpeculativeFHIRExecutor speculativeExecutor,
+                                final TimeFrame predictedTimeFrame) {
+    if (this.predictedLogicalTree == null) {
+      return;
+    }
+    withPredictionConcepts(() -> {
+      if (!this.fhirResponsePredictionFetched) {
+        this.fhirResponsePrefetch = speculativeExecutor.submit(
+            this.predictedLogicalTree, this.questionWithConceptsUsedInPrediction, predictedTimeFrame);
+      }
+      speculativeExecutor.prefetchRunnersUp(this.predictedLogicalTree, this.rankedLogicalTrees,
+          this.questionWithConceptsUsedInPrediction, predictedTimeFrame);
+      return null;
+    });
+  }
+
   private FHIRResponse getFhirResponsePrediction(final TimeFrame predictedTimeFrame) {
-    if (this.fhirResponsePrediction == null) {
-      this.fhirResponsePrediction = FHIRClient.execute(
-          this.predictedLogicalTree, this.questionWithConceptsUsedInPrediction, predictedTimeFrame);
+    if (!this.fhirResponsePredictionFetched) {
+      if (this.fhirResponsePrefetch != null) {
+        this.fhirResponsePrediction = SpeculativeFHIRExecutor.getResponse(this.fhirResponsePrefetch);
+      } else {
+        this.fhirResponsePrediction = withPredictionConcepts(() -> FHIRClient.execute(
+            this.predictedLogicalTree, this.questionWithConceptsUsedInPrediction, predictedTimeFrame));
+      }
+      this.fhirResponsePredictionFetched = true;
     }
     return this.fhirResponsePrediction;
   }
@@ -96,10 +204,7 @@ public class LogicalFormPrediction {
                 String.valueOf(Objects.equals(fhirResponseGold, fhirRespPred)))
             .setAttribute(
                 "answerMatchGold",
-                String.valueOf(
-                    Objects.equals(
-                        fhirResponseGold != null ? fhirResponseGold.getAnswer() : null,
-                        fhirRespPred != null ? fhirRespPred.getAnswer() : null)))
+                String.valueOf(FHIRResponse.answersMatch(fhirResponseGold, fhirRespPred)))
             .addContent(FHIRResponse.toXMLElements(fhirRespPred)));
 
     return lfPredictionList;
@@ -205,14 +205,13 @@ public class LogicalTree implements HasAttributes {
     final List<LexiconMatch> medicalConceptLexiconMatches =
         logicalTree.getLexiconMatchTree().getLexiconMatches().stream()
             .filter(lm -> lm.getEntry().getLogicalForm().equals("lambda.concept")).collect(Collectors.toList());
+    final SpanIndex conceptIndex = new SpanIndex(question.getAnnotations(Concept.class));
     for (LexiconMatch medicalConceptLexiconMatch: medicalConceptLexiconMatches) {
       final List<Token> medicalConceptTokens = medicalConceptLexiconMatch.getTokens();
       log.DBG("Concept predicate tokens: {0}", medicalConceptTokens != null ? medicalConceptTokens : "null");
       final Text medicalConceptText = Text.create(
           medicalConceptTokens.get(0), medicalConceptTokens.get(medicalConceptTokens.size() - 1));
-      final Concept medicalConcept = question.getAnnotations(Concept.class).stream()
-          .filter(c -> c.getText().isSuper(medicalConceptText, true))
-          .max(Comparator.comparing(c -> c.getText().getCharLength())).orElse(null);
+      final Concept medicalConcept = conceptIndex.getLongestWithin(medicalConceptText);
       assert medicalConcept != null: "No medical concept attached to the question: " +
           logicalTree.getLexiconMatchTree().getLexiconMatches();
       medicalConcepts.add(medicalConcept);
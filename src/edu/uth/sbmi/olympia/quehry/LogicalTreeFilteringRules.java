@@ -28,8 +28,15 @@ public class LogicalTreeFilteringRules {
    * file from the {@link Config} file.
    */
   public LogicalTreeFilteringRules() {
-    final Place file =
-        Config.get(LogicalTreeFilteringRules.class, "typeRules").toPlace();
+    this(Config.get(LogicalTreeFilteringRules.class, "typeRules").toPlace());
+  }
+
+  /**
+   * Creates a new <code>LogicalTreeFilteringRules</code>, loading up the type
+   * <var>file</var>.
+   * @throws IllegalArgumentException If a function has more than one type.
+   */
+  public LogicalTreeFilteringRules(final Place file) {
     int lineNum = 0;
     try {
       for (final String line : file.readLines()) {
@@ -49,7 +56,7 @@ public class LogicalTreeFilteringRules {
           log.severe("Function has multiple type constraints: {0}", function);
           log.severe("  1: {0} -> {1}", prev.getFirst(), prev.getSecond());
           log.severe("  2: {0} -> {1}", types.getFirst(), types.getSecond());
-          System.exit(1);
+          throw new IllegalArgumentException("Function has multiple type constraints: " + function);
         }
       }
     }
@@ -61,6 +68,7 @@ public class LogicalTreeFilteringRules {
   
   /**
    * Checks for type mismatches between parent and child.
+   * @throws IllegalStateException If the tree has a function with no types.
    */
   public boolean hasTypeMismatch(final LogicalTree tree) {
     if (log.fine()) {
@@ -71,8 +79,7 @@ public class LogicalTreeFilteringRules {
       if (hasTypes(p_op) == false) {
         log.severe("Unknown Function: {0}", p_op);
         log.DBG("Unknown Function: {0}", function(p_op));
-        new Throwable().printStackTrace(); // DBG
-        System.exit(1);
+        throw new IllegalStateException("Unknown Function: " + p_op);
       }
 
       final Pair<String,String> p_types = getTypes(p_op);
@@ -103,8 +110,7 @@ public class LogicalTreeFilteringRules {
         if (hasTypes(child.getItem()) == false) {
           log.severe("Unknown Function: {0}", child.getItem());
           log.DBG("Unknown Function: {0}", function(child.getItem()));
-          new Throwable().printStackTrace(); // DBG
-          System.exit(1);
+          throw new IllegalStateException("Unknown Function: " + child.getItem());
         }
         final Pair<String,String> childType = getTypes(child.getItem());
         if(childOutput == null){
@@ -125,8 +131,7 @@ public class LogicalTreeFilteringRules {
       if (hasTypes(child.getItem()) == false) {
         log.severe("Unknown Function: {0}", child.getItem());
         log.DBG("Unknown Function: {0}", function(child.getItem()));
-        new Throwable().printStackTrace(); // DBG
-        System.exit(1);
+        throw new IllegalStateException("Unknown Function: " + child.getItem());
       }
       
       final String c_op = child.getItem();
@@ -180,12 +185,21 @@ public class LogicalTreeFilteringRules {
   
   static Pair<String,String> getTypes(final String function,
                                       final boolean failIfMissing) {
-    final LogicalTreeFilteringRules instance = new LogicalTreeFilteringRules();
-    final Pair<String,String> types = instance.getTypes(function);
+    return new LogicalTreeFilteringRules().getFunctionTypes(function, failIfMissing);
+  }
+
+  /**
+   * Returns the input and output types for the given <var>function</var>, or
+   * <code>null</code> if unknown and not <var>failIfMissing</var>.
+   * @throws IllegalStateException If the function is unknown and
+   *     <var>failIfMissing</var>.
+   */
+  Pair<String,String> getFunctionTypes(final String function,
+                                       final boolean failIfMissing) {
+    final Pair<String,String> types = getTypes(function);
     if (types == null && failIfMissing) {
       log.severe("Unknown Function: {0}", function);
-      new Throwable().printStackTrace(); // DBG
-      System.exit(1);
+      throw new IllegalStateException("Unknown Function: " + function);
     }
     return types;
   }
@@ -11,7 +11,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -61,6 +60,16 @@ public abstract class LogicalTreeScorer {
     return Pair.of(guessTree, scores);
   }
 
+  /**
+   * Use this <code>LogicalTreeScorer</code> to return the <var>k</var> highest scored {@link LogicalTree}s
+   * from the candidate {@link LogicalTree}s, best first.
+   * @return at most <var>k</var> {@link LogicalTree}s with their scores.
+   */
+  public List<Pair<LogicalTree, Double>> getTopPredictions(List<LogicalTree> logTrees, int k) {
+    final List<Pair<LogicalTree, Double>> scores = getPredictionAndScores(logTrees).getSecond();
+    return new ArrayList<>(scores.subList(0, Math.min(k, scores.size())));
+  }
+
   /**
    * Use this <code>LogicalTreeScorer</code> to return predicted {@link Concept}s
    * from the candidate {@link LogicalTree}s for the given question {@link Document}.
@@ -169,11 +178,12 @@ public abstract class LogicalTreeScorer {
         // To check the concept boundary
         Concept goldConceptForBoundary = goldCongruentConcepts.get(0);
         // To check if the guessed concept matches any of the gold CUIs
-        final Set<String> goldCUIs = goldCongruentConcepts.stream().map(Concept::getCUI).collect(Collectors.toSet());
+        final CUISet goldCUIs =
+            CUISet.of(goldCongruentConcepts.stream().map(Concept::getCUI).collect(Collectors.toList()));
         boolean matchCUI = false;
         boolean matchBoundary = false;
         for (final Concept guessConcept: guessConceptsWithNonNullCUI) {
-          if (goldCUIs.contains(guessConcept.getCUI())) {
+          if (goldCUIs.contains(guessConcept.getCUICode())) {
             // A match at CUI level
             matchCUI = true;
           }
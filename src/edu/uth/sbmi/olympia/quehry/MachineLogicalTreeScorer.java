@@ -7,6 +7,7 @@ import edu.uth.sbmi.olympia.ml.MulticlassResult;
 import edu.uth.sbmi.olympia.ml.feature.Feature;
 import edu.uth.sbmi.olympia.ml.feature.StringFeature;
 import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.util.Config;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.Maps;
 import edu.uth.sbmi.olympia.util.Pair;
@@ -17,6 +18,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Machine learning-based {@link LogicalTreeScorer}.
@@ -25,6 +28,8 @@ import java.util.TreeMap;
  */
 public abstract class MachineLogicalTreeScorer extends LogicalTreeScorer {
   private static final Log log = new Log(MachineLogicalTreeScorer.class);
+
+  private static ForkJoinPool foldPool = null;
   
   Document question;
 
@@ -73,6 +78,19 @@ public abstract class MachineLogicalTreeScorer extends LogicalTreeScorer {
    */
   protected abstract Classifier<LogicalTree> getClassifier();
 
+  /**
+   * Returns the version of the features and classifier of this scorer. Its stored evaluations are only reused
+   * while the version stays the same, so it is bumped whenever a change could alter the predictions.
+   */
+  public abstract int getVersion();
+
+  /**
+   * Returns a new scorer of the same kind for one fold of a leave-one-out evaluation. It has a classifier of its
+   * own, which can be trained while other folds train theirs, but shares the features of this scorer, so their
+   * values are computed once for all the folds.
+   */
+  protected abstract MachineLogicalTreeScorer newFold();
+
   /**
    * Returns a target {@link Feature} to use.
    */
@@ -106,12 +124,27 @@ public abstract class MachineLogicalTreeScorer extends LogicalTreeScorer {
     }
     
     fe.finish();
-
     classifier.train();
   }
 
   /**
-   * Performs a leave-one-out evaluation of the question {@link Document}s.
+   * Computes the values of all the features of the <var>candidates</var> of the <var>question</var>, so the
+   * folds only read them.
+   */
+  private void computeFeatures(final Document question, final List<LogicalTree> candidates) {
+    this.question = question;
+    final Classifier<LogicalTree> classifier = getClassifier();
+    for (final LogicalTree candidate : candidates) {
+      classifier.getTargetFeature().get(candidate);
+      for (final Feature<LogicalTree,?> feature : classifier.getFeatures()) {
+        feature.get(candidate);
+      }
+    }
+  }
+
+  /**
+   * Performs a leave-one-out evaluation of the question {@link Document}s. Each fold trains its own classifier,
+   * on the configured number of <code>foldThreads</code>, and the folds are tested in order as they finish.
    */
   public Pair<Double, Map<String, LogicalFormPrediction>> leaveOneOut(
           final Map<Document,List<LogicalTree>> logicalTreesOriginal,
@@ -123,63 +156,100 @@ public abstract class MachineLogicalTreeScorer extends LogicalTreeScorer {
     int skipped = 0;
     int correctConceptsWRTCUI = 0;
     int correctConceptsWRTBoundary = 0;
-    for (final Document testQuestion : logicalTreesToTest.keySet()) {
+
+    final List<Document> testQuestions = new ArrayList<>(logicalTreesToTest.keySet());
+    final List<Document> originalQuestions = new ArrayList<>();
+    // The features of the training questions first, in the order training on all of them used to compute them
+    for (final Document trainQuestion : logicalTreesToTrain.keySet()) {
+      computeFeatures(trainQuestion, logicalTreesToTrain.get(trainQuestion));
+    }
+    for (final Document testQuestion : testQuestions) {
       final Document originalQuestion =
           logicalTreesOriginal.keySet().stream()
               .filter(d -> d.getDocumentID().equals(testQuestion.getDocumentID())).findFirst().orElse(null);
-      final Document testQuestionToRemoveFromTrain =
-              logicalTreesToTrain.keySet().stream()
-                      .filter(d -> d.getDocumentID().equals(testQuestion.getDocumentID())).findFirst().orElse(null);
-      final Map<Document,List<LogicalTree>> trainQuestions = new HashMap<>(logicalTreesToTrain);
-
-      trainQuestions.remove(testQuestionToRemoveFromTrain);
-      train(trainQuestions);
-      final LogicalTree predictedLogicalTree;
-      final boolean predictedLogicalTreeMatchGold;
-      final List<Concept> predictedConcepts;
-      final boolean predictedConceptsMatchGoldCUI;
-      final boolean predictedConceptsMatchGoldBoundary;
-      if (logicalTreesToTest.get(testQuestion).isEmpty()) {
-        log.warning("No candidate LogicalTrees for Question: {0}",
-            testQuestion.wrap());
-        missing++;
-        predictedLogicalTree = null;
-        predictedLogicalTreeMatchGold = false;
-        predictedConcepts = new ArrayList<>();
-        predictedConceptsMatchGoldCUI = false;
-        predictedConceptsMatchGoldBoundary = false;
-      } else {
-        this.question = originalQuestion;
-        predictedLogicalTreeMatchGold = test(question, logicalTreesToTest.get(testQuestion));
-        if (predictedLogicalTreeMatchGold) {
-          correct++;
-        }
+      originalQuestions.add(originalQuestion);
+      computeFeatures(originalQuestion, logicalTreesToTest.get(testQuestion));
+    }
 
-        final Pair<Boolean, Boolean> booleanPair =
-            testConcept(question, testQuestion, logicalTreesToTest.get(testQuestion));
-        if (booleanPair.getFirst()) {
-          correctConceptsWRTCUI++;
-        }
-        if (booleanPair.getSecond()) {
-          correctConceptsWRTBoundary++;
+    final ForkJoinPool pool = getFoldPool();
+    // Only a few folds ahead of the one being tested hold a trained classifier
+    final int window = 2 * pool.getParallelism();
+    final List<ForkJoinTask<MachineLogicalTreeScorer>> folds = new ArrayList<>();
+    try {
+      for (int i = 0; i < testQuestions.size(); i++) {
+        while (folds.size() < testQuestions.size() && folds.size() <= i + window) {
+          final Map<Document,List<LogicalTree>> trainQuestions =
+              getFoldTrainQuestions(logicalTreesToTrain, testQuestions.get(folds.size()));
+          folds.add(pool.submit(() -> {
+            final MachineLogicalTreeScorer fold = newFold();
+            fold.train(trainQuestions);
+            return fold;
+          }));
         }
+        final MachineLogicalTreeScorer fold = folds.get(i).join();
+        folds.set(i, null);
+        final Document testQuestion = testQuestions.get(i);
+        final Document originalQuestion = originalQuestions.get(i);
+        final LogicalTree predictedLogicalTree;
+        final boolean predictedLogicalTreeMatchGold;
+        final List<Concept> predictedConcepts;
+        final boolean predictedConceptsMatchGoldCUI;
+        final boolean predictedConceptsMatchGoldBoundary;
+        final List<LogicalTree> rankedLogicalTrees = new ArrayList<>();
+        if (logicalTreesToTest.get(testQuestion).isEmpty()) {
+          log.warning("No candidate LogicalTrees for Question: {0}",
+              testQuestion.wrap());
+          missing++;
+          predictedLogicalTree = null;
+          predictedLogicalTreeMatchGold = false;
+          predictedConcepts = new ArrayList<>();
+          predictedConceptsMatchGoldCUI = false;
+          predictedConceptsMatchGoldBoundary = false;
+        } else {
+          fold.question = originalQuestion;
+          predictedLogicalTreeMatchGold = fold.test(originalQuestion, logicalTreesToTest.get(testQuestion));
+          if (predictedLogicalTreeMatchGold) {
+            correct++;
+          }
 
-        predictedLogicalTree = getPrediction(logicalTreesToTest.get(testQuestion));
-        predictedConcepts = getPredictionForConcepts(logicalTreesToTest.get(testQuestion), testQuestion);
-        predictedConceptsMatchGoldCUI = booleanPair.getFirst();
-        predictedConceptsMatchGoldBoundary = booleanPair.getSecond();
-      }
+          final Pair<Boolean, Boolean> booleanPair =
+              fold.testConcept(originalQuestion, testQuestion, logicalTreesToTest.get(testQuestion));
+          if (booleanPair.getFirst()) {
+            correctConceptsWRTCUI++;
+          }
+          if (booleanPair.getSecond()) {
+            correctConceptsWRTBoundary++;
+          }
+
+          final Pair<LogicalTree, List<Pair<LogicalTree, Double>>> predictionAndScores =
+              fold.getPredictionAndScores(logicalTreesToTest.get(testQuestion));
+          predictedLogicalTree = predictionAndScores.getFirst();
+          for (final Pair<LogicalTree, Double> scored : predictionAndScores.getSecond()) {
+            rankedLogicalTrees.add(scored.getFirst());
+          }
+          predictedConcepts = fold.getPredictionForConcepts(logicalTreesToTest.get(testQuestion), testQuestion);
+          predictedConceptsMatchGoldCUI = booleanPair.getFirst();
+          predictedConceptsMatchGoldBoundary = booleanPair.getSecond();
+        }
 
-      LogicalFormPrediction logicalFormPrediction =
-          new LogicalFormPrediction(
-              testQuestion,
-              predictedLogicalTree,
-              predictedLogicalTreeMatchGold,
-              predictedConcepts,
-              predictedConceptsMatchGoldCUI,
-              predictedConceptsMatchGoldBoundary);
+        LogicalFormPrediction logicalFormPrediction =
+            new LogicalFormPrediction(
+                testQuestion,
+                predictedLogicalTree,
+                predictedLogicalTreeMatchGold,
+                predictedConcepts,
+                predictedConceptsMatchGoldCUI,
+                predictedConceptsMatchGoldBoundary);
+        logicalFormPrediction.setRankedLogicalTrees(rankedLogicalTrees);
 
-      lfPredictions.put(testQuestion.getDocumentID(), logicalFormPrediction);
+        lfPredictions.put(testQuestion.getDocumentID(), logicalFormPrediction);
+      }
+    } finally {
+      for (final ForkJoinTask<MachineLogicalTreeScorer> fold : folds) {
+        if (fold != null) {
+          fold.cancel(true);
+        }
+      }
     }
     
     final int total = logicalTreesToTest.size() - missing - skipped;
@@ -197,4 +267,30 @@ public abstract class MachineLogicalTreeScorer extends LogicalTreeScorer {
 
     return Pair.of(accuracy, lfPredictions);
   }
+
+  /**
+   * Returns the pool the folds of every leave-one-out evaluation are trained on, with the configured number of
+   * <code>foldThreads</code>, starting it on first use.
+   */
+  private static synchronized ForkJoinPool getFoldPool() {
+    if (foldPool == null) {
+      foldPool = new ForkJoinPool(Config.get(MachineLogicalTreeScorer.class, "foldThreads",
+          String.valueOf(Runtime.getRuntime().availableProcessors())).toInteger());
+    }
+    return foldPool;
+  }
+
+  /**
+   * Returns the questions of <var>logicalTreesToTrain</var> to train the fold of the <var>testQuestion</var> on:
+   * all of them but the one with its ID.
+   */
+  private static Map<Document,List<LogicalTree>> getFoldTrainQuestions(
+      final Map<Document,List<LogicalTree>> logicalTreesToTrain, final Document testQuestion) {
+    final Document testQuestionToRemoveFromTrain =
+            logicalTreesToTrain.keySet().stream()
+                    .filter(d -> d.getDocumentID().equals(testQuestion.getDocumentID())).findFirst().orElse(null);
+    final Map<Document,List<LogicalTree>> trainQuestions = new HashMap<>(logicalTreesToTrain);
+    trainQuestions.remove(testQuestionToRemoveFromTrain);
+    return trainQuestions;
+  }
 }
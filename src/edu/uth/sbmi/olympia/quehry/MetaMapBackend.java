@@ -0,0 +1,24 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs MetaMap over question texts with a set of options, returning the candidate concepts as
+ * {@link ConceptRecord}s with offsets relative to each text.
+ */
+public interface MetaMapBackend extends AutoCloseable {
+
+  /**
+   * Returns the records found in the <var>text</var>.
+   */
+  List<ConceptRecord> process(String text, String options) throws Exception;
+
+  /**
+   * Returns the records found in each of the <var>texts</var>, sent together as one call, in the same order.
+   */
+  List<List<ConceptRecord>> process(List<String> texts, String options) throws Exception;
+
+  @Override
+  void close() throws IOException;
+}
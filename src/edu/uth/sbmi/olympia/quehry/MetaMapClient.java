@@ -2,16 +2,12 @@ package edu.uth.sbmi.olympia.quehry;
 
 import edu.uth.sbmi.olympia.text.Document;
 import edu.uth.sbmi.olympia.text.Sentence;
-import edu.uth.sbmi.olympia.text.Text;
-import edu.uth.sbmi.olympia.text.Token;
 import edu.uth.sbmi.olympia.util.Config;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.Place;
 import edu.uth.sbmi.olympia.util.Strings;
 import gov.nih.nlm.nls.metamap.Ev;
 import gov.nih.nlm.nls.metamap.Mapping;
-import gov.nih.nlm.nls.metamap.MetaMapApi;
-import gov.nih.nlm.nls.metamap.MetaMapApiImpl;
 import gov.nih.nlm.nls.metamap.PCM;
 import gov.nih.nlm.nls.metamap.Position;
 import gov.nih.nlm.nls.metamap.Result;
@@ -19,36 +15,132 @@ import gov.nih.nlm.nls.metamap.Utterance;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-public class MetaMapClient implements AutoCloseable {
+public class MetaMapClient implements ConceptFetcher {
     private static final Log log = new Log(MetaMapClient.class);
-    private MetaMapApi api;
     private final Place mmServerPath;
     private final String mmServerInitScript;
+    private MetaMapServerPool serverPool;
+    private final MetaMapBackend backend;
+    private final ConceptCache conceptCache;
+    private final CircuitBreaker circuitBreaker;
+    private final ConceptDictionary fallbackDictionary;
+    private final AtomicInteger fallbackCount = new AtomicInteger();
     private final Set<String> specialTermsToExclude;
-    private Process process;
+    private final String mmServerVersion;
     private final String FULL_METAMAP_OPTIONS_RELAXED = "-C -y -D -b -z -c -g -V USAbase";
     private final String FULL_METAMAP_OPTIONS_STRICT = "-A -y -D -b -z -c -g -V USAbase";
     private final String REDUCED_METAMAP_OPTIONS_RELAXED = "-C -y -D -b -z -c -V USAbase";
     private final String REDUCED_METAMAP_OPTIONS_STRICT = "-A -y -D -b -z -c -V USAbase";
+    private final List<String> METAMAP_OPTIONS_LADDER = Arrays.asList(
+        FULL_METAMAP_OPTIONS_RELAXED,
+        FULL_METAMAP_OPTIONS_STRICT,
+        REDUCED_METAMAP_OPTIONS_RELAXED,
+        REDUCED_METAMAP_OPTIONS_STRICT);
     private final int MAX_METAMAP_TRIES = 7;
     private final int METAMAP_API_TIMEOUT = 30 * 1000;
+    private static final Pattern BLANK_LINE = Pattern.compile("\\n\\s*\\n");
+    private static final String PROBE_TEXT = "heart attack";
 
     public MetaMapClient() throws IOException, InterruptedException {
         mmServerPath = Config.get(MetaMapClient.class, "mmServerPath").toPlace();
-        mmServerInitScript = "./bin/mmserver" + Config.get(MetaMapClient.class, "mmServerVersion").toString();
-        startMetaMapServer();
+        mmServerVersion = "mmserver" + Config.get(MetaMapClient.class, "mmServerVersion").toString();
+        mmServerInitScript = "./bin/" + mmServerVersion;
         final Place specialTermsFile = Config.get(MetaMapClient.class, "specialTermsToExclude").toPlace();
         specialTermsToExclude = loadSpecialTerms(specialTermsFile);
+        // Records are cached as MetaMap returns them, before the special terms are excluded
+        if (Config.get(MetaMapClient.class, "useConceptCache", "true").toBoolean()) {
+            conceptCache = new ConceptCache(
+                Config.get(ConceptCache.class, "file",
+                    "file:resources/edu/uth/sbmi/olympia/quehry/metamap_concept_cache.tsv").toPlace().toFile(),
+                Config.get(ConceptCache.class, "memoryEntries", "10000").toInteger(),
+                mmServerVersion);
+        } else {
+            conceptCache = null;
+        }
+        final String replayFile = Config.get(MetaMapClient.class, "replayFile", "").toString();
+        if (!replayFile.isEmpty()) {
+            log.info("Replaying recorded MetaMap output instead of calling mmserver");
+            backend = new ReplayMetaMapBackend(Config.get(MetaMapClient.class, "replayFile").toPlace().toFile(),
+                mmServerVersion, FaultInjector.fromConfig(ReplayMetaMapBackend.class));
+        } else {
+            backend = new ServerBackend();
+        }
+        // Every mmserver call that fails on the server counts, whichever question and try it was for
+        circuitBreaker = new CircuitBreaker("MetaMap",
+            Config.get(MetaMapClient.class, "breakerFailureThreshold", "5").toInteger(),
+            TimeUnit.SECONDS.toMillis(Config.get(MetaMapClient.class, "breakerProbeInterval", "30").toInteger()),
+            this::probeServer);
+        final String fallbackDictionaryFile = Config.get(MetaMapClient.class, "fallbackDictionary", "").toString();
+        if (!fallbackDictionaryFile.isEmpty()) {
+            fallbackDictionary = ConceptDictionary.load(
+                Config.get(MetaMapClient.class, "fallbackDictionary").toPlace(), specialTermsToExclude);
+        } else {
+            fallbackDictionary = null;
+        }
+    }
+
+    /**
+     * Returns the mmserver pool, starting it on first use so that runs served from the cache never start it.
+     */
+    private synchronized MetaMapServerPool getServerPool() throws InterruptedException {
+        if (serverPool == null) {
+            serverPool = new MetaMapServerPool(
+                mmServerPath,
+                mmServerInitScript,
+                Config.get(MetaMapClient.class, "mmServerPoolSize", "1").toInteger(),
+                Config.get(MetaMapClient.class, "mmServerBasePort", "8066").toInteger(),
+                METAMAP_API_TIMEOUT,
+                TimeUnit.SECONDS.toMillis(
+                    Config.get(MetaMapClient.class, "mmServerReadinessTimeout", "120").toInteger()));
+        }
+        return serverPool;
+    }
+
+    /**
+     * Sends a short text to MetaMap, throwing if the server fails. A failure of the text itself means the server
+     * is answering.
+     */
+    private void probeServer() throws Exception {
+        try {
+            backend.process(PROBE_TEXT, METAMAP_OPTIONS_LADDER.get(0));
+        } catch (Exception exception) {
+            if (MetaMapServerPool.isServerFailure(exception)) {
+                throw exception;
+            }
+        }
     }
 
-    private Set<String> loadSpecialTerms(final Place file) throws IOException {
+    /**
+     * Returns the concepts found without MetaMap, from the fallback dictionary if there is one. They are not
+     * cached, so the question goes to MetaMap again once it is back.
+     */
+    private List<Concept> fetchFallbackConcepts(final Document question) {
+        fallbackCount.incrementAndGet();
+        if (fallbackDictionary == null) {
+            return new ArrayList<>();
+        }
+        final List<Concept> concepts = fallbackDictionary.findConcepts(question);
+        log.DBG("Using {0} fallback concepts for question {1}", concepts.size(), question.getDocumentID());
+        return concepts;
+    }
+
+    @Override
+    public int getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    static Set<String> loadSpecialTerms(final Place file) throws IOException {
         final Set<String> specialTerms = new HashSet<>();
         for (final String line : file.readLines()) {
             if (line.startsWith("#")) {
@@ -65,64 +157,163 @@ public class MetaMapClient implements AutoCloseable {
         return specialTerms;
     }
 
+    private List<Concept> fetchCachedConcepts(final Document question) {
+        if (conceptCache != null) {
+            // Whichever option set succeeded before gives the same concepts again
+            for (final String metaMapOptions : METAMAP_OPTIONS_LADDER) {
+                final List<ConceptRecord> cachedRecords = conceptCache.get(question.asRawString(), metaMapOptions);
+                if (cachedRecords != null) {
+                    log.DBG("Using cached concepts for options: {0}", metaMapOptions);
+                    return toConcepts(question, cachedRecords);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
     public List<Concept> fetchConcepts(final Document question) throws Exception {
+        final List<Concept> cachedConcepts = fetchCachedConcepts(question);
+        if (cachedConcepts != null) {
+            return cachedConcepts;
+        }
+        if (circuitBreaker.isOpen()) {
+            return fetchFallbackConcepts(question);
+        }
+
         int tryCount = 0;
         List<Concept> resultList;
 
         while(true) {
             try {
-                String metaMapOptionsToUse;
-                if (tryCount == 0) {
-                    metaMapOptionsToUse = FULL_METAMAP_OPTIONS_RELAXED;
-                } else if (tryCount == 1) {
-                    metaMapOptionsToUse = FULL_METAMAP_OPTIONS_STRICT;
-                } else if (tryCount == 2) {
-                    metaMapOptionsToUse = REDUCED_METAMAP_OPTIONS_RELAXED;
-                } else {
-                    metaMapOptionsToUse = REDUCED_METAMAP_OPTIONS_STRICT;
-                }
+                String metaMapOptionsToUse =
+                    METAMAP_OPTIONS_LADDER.get(Math.min(tryCount, METAMAP_OPTIONS_LADDER.size() - 1));
 
                 log.DBG("[Try {0}] MetaMap options: {1}", tryCount + 1, metaMapOptionsToUse);
-                resultList = fetchConcepts(question, metaMapOptionsToUse);
+                final List<ConceptRecord> records = backend.process(question.asRawString(), metaMapOptionsToUse);
+                resultList = toConcepts(question, records);
+                circuitBreaker.recordSuccess();
+                if (conceptCache != null) {
+                    conceptCache.put(question.asRawString(), metaMapOptionsToUse, records);
+                }
                 break;
             } catch (Exception exception) {
                 log.severe("Caught an exception: {0}", exception);
-                if (++tryCount == MAX_METAMAP_TRIES) {
-                    resultList = new ArrayList<>();
+                // Only MetaMap itself failing counts, not a question it cannot process
+                if (MetaMapServerPool.isServerFailure(exception)) {
+                    circuitBreaker.recordFailure();
+                }
+                if (++tryCount == MAX_METAMAP_TRIES || circuitBreaker.isOpen()) {
+                    resultList = fetchFallbackConcepts(question);
                     break;
                 }
-
-                destroyMetaMapServer();
-                startMetaMapServer();
+                // The failed mmserver is replaced in the background; the next try goes to a healthy one
             }
         }
 
         return resultList;
     }
 
-    private void startMetaMapServer() throws InterruptedException, IOException {
-        log.DBG("Starting the mmserver...");
-        ProcessBuilder pb = new ProcessBuilder(mmServerInitScript);
-        pb.directory(mmServerPath.toFile());
-        process = pb.start();
-        Thread.sleep(5000);
-        api = new MetaMapApiImpl();
-        api.setTimeout(METAMAP_API_TIMEOUT);
+    /**
+     * Converts the <var>records</var> MetaMap found in the <var>question</var> to concepts, leaving out the
+     * special terms.
+     */
+    private List<Concept> toConcepts(final Document question, final List<ConceptRecord> records) {
+        final List<Concept> concepts = new ArrayList<>();
+        for (final ConceptRecord record : records) {
+            if (specialTermsToExclude.contains(record.getCUI())) {
+                log.DBG("Excluded special term: value = {0}, type = {1}, cui = {2}",
+                    record.getValue(), record.getType(), record.getCUI());
+                continue;
+            }
+            concepts.add(record.toConcept(question));
+        }
+        return concepts;
+    }
+
+    /**
+     * Fetches the concepts of many <var>questions</var> at once, returned in the same order. Questions are sent
+     * to MetaMap as one citation each, <code>batchSize</code> citations per call. If a batch fails, or a question
+     * cannot be told apart from its neighbours, the affected questions go through the retry ladder one by one.
+     * While MetaMap is failing, questions that are not cached get the fallback concepts instead.
+     */
+    @Override
+    public List<List<Concept>> fetchConcepts(final List<Document> questions) throws Exception {
+        final List<List<Concept>> conceptsPerQuestion = new ArrayList<>(Collections.nCopies(questions.size(), null));
+        final List<Integer> toBatch = new ArrayList<>();
+        for (int i = 0; i < questions.size(); i++) {
+            final Document question = questions.get(i);
+            final List<Concept> cachedConcepts = fetchCachedConcepts(question);
+            if (cachedConcepts != null) {
+                conceptsPerQuestion.set(i, cachedConcepts);
+            } else if (isBatchable(question.asRawString())) {
+                toBatch.add(i);
+            } else {
+                conceptsPerQuestion.set(i, fetchConcepts(question));
+            }
+        }
+
+        final int batchSize = Config.get(MetaMapClient.class, "batchSize", "50").toInteger();
+        for (int from = 0; from < toBatch.size(); from += batchSize) {
+            final List<Integer> batch = toBatch.subList(from, Math.min(from + batchSize, toBatch.size()));
+            final List<String> texts = new ArrayList<>();
+            for (final int index : batch) {
+                texts.add(questions.get(index).asRawString());
+            }
+            log.DBG("Sending a batch of {0} questions to MetaMap", batch.size());
+
+            final String metaMapOptions = METAMAP_OPTIONS_LADDER.get(0);
+            List<List<ConceptRecord>> batchRecords = null;
+            if (circuitBreaker.isOpen()) {
+                log.DBG("MetaMap is unavailable, using the fallback for the batch");
+            } else {
+                try {
+                    batchRecords = backend.process(texts, metaMapOptions);
+                    circuitBreaker.recordSuccess();
+                } catch (Exception exception) {
+                    log.warning("Batch of {0} questions failed, retrying one at a time: {1}",
+                        batch.size(), exception);
+                    if (MetaMapServerPool.isServerFailure(exception)) {
+                        circuitBreaker.recordFailure();
+                    }
+                }
+            }
+
+            for (int j = 0; j < batch.size(); j++) {
+                final Document question = questions.get(batch.get(j));
+                List<Concept> concepts = null;
+                if (batchRecords != null) {
+                    try {
+                        concepts = toConcepts(question, batchRecords.get(j));
+                        if (conceptCache != null) {
+                            conceptCache.put(question.asRawString(), metaMapOptions, batchRecords.get(j));
+                        }
+                    } catch (RuntimeException exception) {
+                        log.warning("Unable to map batched concepts to question {0}: {1}",
+                            question.getDocumentID(), exception);
+                    }
+                }
+                conceptsPerQuestion.set(batch.get(j), concepts != null ? concepts : fetchConcepts(question));
+            }
+        }
+
+        return conceptsPerQuestion;
     }
 
-    private void destroyMetaMapServer() throws InterruptedException {
-        log.DBG("Destroying the mmserver...");
-        api.disconnect();
-        process.destroy();
-        process.waitFor(10, TimeUnit.SECONDS);
+    /**
+     * Returns <code>true</code> if the <var>text</var> can be sent as one citation of a batch: citations are
+     * separated by blank lines, so the text must not contain one, nor start or end with whitespace.
+     */
+    private static boolean isBatchable(final String text) {
+        return !text.isEmpty() && text.equals(text.trim()) && !BLANK_LINE.matcher(text).find();
     }
 
-    private List<Concept> fetchConcepts(final Document question, String metamapOptions) throws Exception {
-        api.setOptions(metamapOptions);
-        final List<Concept> concepts = new ArrayList<>();
-        log.DBG("Calling the server...");
-        List<Result> resultList = api.processCitationsFromString(question.asRawString());
-        Result result = resultList.get(0);
+    /**
+     * Converts the candidates of a MetaMap <var>result</var> to records, shifting their positions back by
+     * <var>offset</var>.
+     */
+    private List<ConceptRecord> toConceptRecords(final Result result, final int offset) throws Exception {
+        final List<ConceptRecord> records = new ArrayList<>();
 
         for (Utterance utterance: result.getUtteranceList()) {
             log.DBG("Utterance:");
@@ -151,25 +342,86 @@ public class MetaMapClient implements AutoCloseable {
                     final int lastPIStartInd = lastPIObject.getX();
                     final int lastPILength = lastPIObject.getY();
                     final int endIndex = lastPIStartInd + lastPILength - 1;
-                    final Token firstToken = question.findToken(startIndex);
-                    final Token lastToken = question.findToken(endIndex);
-                    final Text span = firstToken.union(lastToken);
                     final String type = candidate.getSemanticTypes().get(0);
                     String cui = candidate.getConceptId();
                     cui = cui.startsWith("C") ? cui.substring(1) : cui;
                     final String value = candidate.getPreferredName();
-                    if (specialTermsToExclude.contains(cui)) {
-                        log.DBG("Excluded special term: name = {0}, type = {1}, cui = {2}",
-                            candidate.getConceptName(), type, cui);
-                        continue;
-                    }
+                    records.add(new ConceptRecord(startIndex - offset, endIndex - offset, type, cui, value, score));
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns the offset to subtract from the positions of a batched <var>result</var>: positions are either
+     * relative to the citation or to the whole batch, which is told from the first utterance.
+     */
+    private static int getCitationOffset(final Result result, final int citationOffset) throws Exception {
+        final List<Utterance> utterances = result.getUtteranceList();
+        if (citationOffset > 0 && !utterances.isEmpty()
+            && utterances.get(0).getPosition().getX() >= citationOffset) {
+            return citationOffset;
+        }
+        return 0;
+    }
+
+    /**
+     * Sends the texts to the mmserver pool.
+     */
+    private class ServerBackend implements MetaMapBackend {
+        @Override
+        public List<List<ConceptRecord>> process(final List<String> texts, final String metamapOptions)
+            throws Exception {
+            final StringBuilder input = new StringBuilder();
+            final int[] offsets = new int[texts.size()];
+            for (int i = 0; i < texts.size(); i++) {
+                if (i > 0) {
+                    input.append("\n\n");
+                }
+                offsets[i] = input.length();
+                input.append(texts.get(i));
+            }
+
+            log.DBG("Calling the server...");
+            final List<Result> resultList = getServerPool().execute(api -> {
+                api.setOptions(metamapOptions);
+                return api.processCitationsFromString(input.toString());
+            });
+            if (resultList.size() != texts.size()) {
+                throw new IllegalStateException(
+                    "Expected " + texts.size() + " MetaMap results, got " + resultList.size());
+            }
 
-                    Concept concept = new Concept(span, type, null, cui, value, score);
-                    concepts.add(concept);
+            final List<List<ConceptRecord>> recordsPerText = new ArrayList<>();
+            for (int i = 0; i < texts.size(); i++) {
+                final Result result = resultList.get(i);
+                if (!texts.get(i).equals(result.getInputText().trim())) {
+                    throw new IllegalStateException("MetaMap result " + i + " does not match its question");
+                }
+                recordsPerText.add(toConceptRecords(result, getCitationOffset(result, offsets[i])));
+            }
+            return recordsPerText;
+        }
+
+        @Override
+        public List<ConceptRecord> process(final String text, final String metamapOptions) throws Exception {
+            log.DBG("Calling the server...");
+            List<Result> resultList = getServerPool().execute(api -> {
+                api.setOptions(metamapOptions);
+                return api.processCitationsFromString(text);
+            });
+            return toConceptRecords(resultList.get(0), 0);
+        }
+
+        @Override
+        public void close() {
+            synchronized (MetaMapClient.this) {
+                if (serverPool != null) {
+                    serverPool.close();
                 }
             }
         }
-        return concepts;
     }
 
     public static void main(String[] argv) throws Exception {
@@ -196,6 +448,10 @@ public class MetaMapClient implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        destroyMetaMapServer();
+        circuitBreaker.close();
+        backend.close();
+        if (conceptCache != null) {
+            conceptCache.close();
+        }
     }
 }
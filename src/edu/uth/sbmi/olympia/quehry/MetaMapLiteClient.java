@@ -0,0 +1,170 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import bioc.BioCDocument;
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+import gov.nih.nlm.nls.metamap.document.FreeText;
+import gov.nih.nlm.nls.metamap.lite.types.ConceptInfo;
+import gov.nih.nlm.nls.metamap.lite.types.Entity;
+import gov.nih.nlm.nls.metamap.lite.types.Ev;
+import gov.nih.nlm.nls.ner.MetaMapLite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concept extraction backend running MetaMapLite inside the JVM, producing the same {@link Concept}s as
+ * {@link MetaMapClient} without an mmserver process.
+ * <p>
+ * A small pool of MetaMapLite instances is kept so several threads can extract concepts at once; each instance
+ * is used by one thread at a time.
+ */
+public class MetaMapLiteClient implements ConceptFetcher {
+  private static final Log log = new Log(MetaMapLiteClient.class);
+
+  private static final long POLL_MILLIS = 100;
+
+  private final BlockingQueue<MetaMapLite> instances;
+  private final Set<String> specialTermsToExclude;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a new <code>MetaMapLiteClient</code> from the configured <code>mmLitePath</code>,
+   * <code>indexDir</code> and number of <code>instances</code>.
+   */
+  public MetaMapLiteClient() throws Exception {
+    final Place mmLitePath = Config.get(MetaMapLiteClient.class, "mmLitePath").toPlace();
+    final String indexDir = Config.get(MetaMapLiteClient.class, "indexDir", "data/ivf/2020AA/USAbase").toString();
+    final int instanceCount = Config.get(MetaMapLiteClient.class, "instances", "1").toInteger();
+
+    final Properties properties = MetaMapLite.getDefaultConfiguration();
+    MetaMapLite.expandModelsDir(properties, mmLitePath.getPath() + "/data/models");
+    MetaMapLite.expandIndexDir(properties, mmLitePath.getPath() + "/" + indexDir);
+
+    log.info("Loading {0} MetaMapLite instances...", instanceCount);
+    this.instances = new ArrayBlockingQueue<>(instanceCount);
+    for (int i = 0; i < instanceCount; i++) {
+      instances.add(new MetaMapLite(properties));
+    }
+    final Place specialTermsFile = Config.get(MetaMapClient.class, "specialTermsToExclude").toPlace();
+    this.specialTermsToExclude = MetaMapClient.loadSpecialTerms(specialTermsFile);
+  }
+
+  @Override
+  public List<Concept> fetchConcepts(final Document question) throws Exception {
+    return fetchConcepts(Collections.singletonList(question)).get(0);
+  }
+
+  /**
+   * @throws IllegalStateException If this client is closed, including while waiting for an instance.
+   */
+  @Override
+  public List<List<Concept>> fetchConcepts(final List<Document> questions) throws Exception {
+    final List<BioCDocument> documents = new ArrayList<>();
+    for (int i = 0; i < questions.size(); i++) {
+      final BioCDocument document = FreeText.instantiateBioCDocument(questions.get(i).asRawString());
+      document.setID(String.valueOf(i));
+      documents.add(document);
+    }
+
+    final List<Entity> entities;
+    final MetaMapLite metaMapLite = takeInstance();
+    try {
+      entities = metaMapLite.processDocumentList(documents);
+    } finally {
+      // Once closed, the instances are dropped as they come back
+      if (!closed) {
+        instances.put(metaMapLite);
+      }
+    }
+
+    final Map<Integer, List<ConceptRecord>> recordsPerQuestion = new HashMap<>();
+    for (final Entity entity : entities) {
+      final int index = Integer.parseInt(entity.getDocid());
+      final List<ConceptRecord> records = recordsPerQuestion.computeIfAbsent(index, k -> new ArrayList<>());
+      for (final Ev ev : entity.getEvSet()) {
+        final ConceptRecord record = toConceptRecord(entity, ev.getConceptInfo());
+        if (record != null) {
+          records.add(record);
+        }
+      }
+    }
+
+    final List<List<Concept>> conceptsPerQuestion = new ArrayList<>();
+    for (int i = 0; i < questions.size(); i++) {
+      final List<Concept> concepts = new ArrayList<>();
+      for (final ConceptRecord record : recordsPerQuestion.getOrDefault(i, Collections.emptyList())) {
+        concepts.add(record.toConcept(questions.get(i)));
+      }
+      log.DBG("MetaMapLite concepts for {0}: {1}", questions.get(i).getDocumentID(), concepts);
+      conceptsPerQuestion.add(concepts);
+    }
+    return conceptsPerQuestion;
+  }
+
+  /**
+   * Takes an idle instance, waiting for one to come back if they are all in use.
+   * @throws IllegalStateException If this client is closed before one is free.
+   */
+  private MetaMapLite takeInstance() throws InterruptedException {
+    while (true) {
+      if (closed) {
+        throw new IllegalStateException("MetaMapLite client is closed");
+      }
+      final MetaMapLite metaMapLite = instances.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (metaMapLite != null) {
+        return metaMapLite;
+      }
+    }
+  }
+
+  /**
+   * Converts one candidate of an <var>entity</var> into a record shaped like the {@link MetaMapClient} ones:
+   * the CUI loses its leading <code>C</code>, the first semantic type (alphabetically, MetaMapLite keeps them
+   * in a set) is used, and the score is scaled from [0, 1] to MetaMap's [0, 1000]. Returns <code>null</code>
+   * for excluded special terms.
+   */
+  private ConceptRecord toConceptRecord(final Entity entity, final ConceptInfo conceptInfo) {
+    String cui = conceptInfo.getCUI();
+    cui = cui.startsWith("C") ? cui.substring(1) : cui;
+    if (conceptInfo.getSemanticTypeSet().isEmpty()) {
+      log.DBG("Skipping concept without semantic type: cui = {0}", cui);
+      return null;
+    }
+    final String type = new TreeSet<>(conceptInfo.getSemanticTypeSet()).first();
+    if (specialTermsToExclude.contains(cui)) {
+      log.DBG("Excluded special term: name = {0}, type = {1}, cui = {2}",
+          conceptInfo.getPreferredName(), type, cui);
+      return null;
+    }
+    final int score = (int) Math.round(entity.getScore() * 1000);
+    return new ConceptRecord(
+        entity.getStart(),
+        entity.getStart() + entity.getLength() - 1,
+        type,
+        cui,
+        conceptInfo.getPreferredName(),
+        score);
+  }
+
+  /**
+   * Closes this client, after which {@link #fetchConcepts} throws an {@link IllegalStateException} instead of
+   * waiting for an instance.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    instances.clear();
+  }
+}
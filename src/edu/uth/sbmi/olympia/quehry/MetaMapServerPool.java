@@ -0,0 +1,359 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+import gov.nih.nlm.nls.metamap.MetaMapApi;
+import gov.nih.nlm.nls.metamap.MetaMapApiImpl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a pool of mmserver processes, each on its own port, and sends every request to the least loaded healthy
+ * one. A server is ready once its port accepts connections. A server whose connection fails is taken out of the
+ * pool and replaced in the background while the others keep serving, retrying with a growing delay until the
+ * replacement is ready.
+ * <p>
+ * The port is handed to the init script in the <code>MMSERVER_PORT</code> environment variable. A script that
+ * ignores it would bind its default port instead, so a server is only started on a port nothing listens on yet,
+ * and only counts as ready once that port accepts connections while its own process is alive. A server that
+ * never listens on its port is reported rather than taking over another one.
+ */
+public class MetaMapServerPool implements AutoCloseable {
+  private static final Log log = new Log(MetaMapServerPool.class);
+
+  private static final String MMSERVER_HOST = "localhost";
+  private static final int READINESS_POLL_MILLIS = 250;
+  private static final long RESTART_BACKOFF_MILLIS = 1000;
+  private static final long MAX_RESTART_BACKOFF_MILLIS = 60 * 1000;
+
+  private final Place mmServerPath;
+  private final String mmServerInitScript;
+  private final int apiTimeout;
+  private final long readinessTimeoutMillis;
+  private final List<Server> servers;
+  private final ExecutorService restarter;
+  private volatile boolean closed = false;
+
+  /**
+   * A request against one mmserver.
+   */
+  public interface ServerCall<T> {
+    T call(MetaMapApi api) throws Exception;
+  }
+
+  /**
+   * Creates a new <code>MetaMapServerPool</code> of <var>size</var> servers on consecutive ports starting at
+   * <var>basePort</var>, and waits until they are ready.
+   * @throws IllegalStateException If none of the servers becomes ready.
+   */
+  public MetaMapServerPool(final Place mmServerPath,
+                           final String mmServerInitScript,
+                           final int size,
+                           final int basePort,
+                           final int apiTimeout,
+                           final long readinessTimeoutMillis) throws InterruptedException {
+    if (size < 1) {
+      throw new IllegalArgumentException("size must be positive: " + size);
+    }
+    this.mmServerPath = mmServerPath;
+    this.mmServerInitScript = mmServerInitScript;
+    this.apiTimeout = apiTimeout;
+    this.readinessTimeoutMillis = readinessTimeoutMillis;
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.restarter = Executors.newCachedThreadPool(runnable -> {
+      final Thread thread = new Thread(runnable, "mmserver-restart-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    final List<Server> servers = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      servers.add(new Server(basePort + i));
+    }
+    this.servers = Collections.unmodifiableList(servers);
+
+    // Start all the servers first so they load in parallel, then wait for each one
+    for (final Server server : this.servers) {
+      try {
+        server.start();
+      } catch (IOException e) {
+        log.severe("Unable to start mmserver on port {0}: {1}", server.port, e);
+      }
+    }
+    for (final Server server : this.servers) {
+      if (server.process != null && server.awaitReady(server.process)) {
+        server.connect();
+      } else {
+        scheduleRestart(server);
+      }
+    }
+    if (healthyCount() == 0) {
+      close();
+      throw new IllegalStateException("None of the " + size + " mmservers became ready");
+    }
+    log.info("{0} of {1} mmservers ready", healthyCount(), size);
+  }
+
+  /**
+   * Runs the <var>serverCall</var> on the least loaded healthy server, waiting for one if none is healthy. If
+   * the call fails with a {@linkplain #isServerFailure server failure} the server is replaced in the background;
+   * either way the exception is rethrown.
+   */
+  public <T> T execute(final ServerCall<T> serverCall) throws Exception {
+    final Server server = acquire();
+    try {
+      // MetaMapApi keeps the options and the socket, so each server handles one request at a time
+      synchronized (server) {
+        if (!server.healthy) {
+          throw new IOException("mmserver on port " + server.port + " is being replaced");
+        }
+        return serverCall.call(server.api);
+      }
+    } catch (Exception e) {
+      // A question MetaMap cannot handle leaves the server as it was
+      if (isServerFailure(e)) {
+        markFailed(server);
+      }
+      throw e;
+    } finally {
+      server.inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the <var>exception</var> comes from the connection to an mmserver or the
+   * server itself rather than from the request, that is, if it or one of its causes is an {@link IOException}.
+   */
+  public static boolean isServerFailure(final Throwable exception) {
+    for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of servers that are currently serving requests.
+   */
+  public int healthyCount() {
+    int count = 0;
+    for (final Server server : servers) {
+      if (server.healthy) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private Server acquire() throws InterruptedException, IOException {
+    final long deadline = System.currentTimeMillis() + readinessTimeoutMillis;
+    synchronized (this) {
+      while (true) {
+        if (closed) {
+          throw new IllegalStateException("MetaMapServerPool is closed");
+        }
+        Server leastLoaded = null;
+        for (final Server server : servers) {
+          if (server.healthy && (leastLoaded == null || server.inFlight.get() < leastLoaded.inFlight.get())) {
+            leastLoaded = server;
+          }
+        }
+        if (leastLoaded != null) {
+          leastLoaded.inFlight.incrementAndGet();
+          return leastLoaded;
+        }
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new IOException("No healthy mmserver available");
+        }
+        log.DBG("Waiting for a healthy mmserver...");
+        wait(remaining);
+      }
+    }
+  }
+
+  private void markFailed(final Server server) {
+    synchronized (server) {
+      if (!server.healthy) {
+        return;
+      }
+      server.healthy = false;
+    }
+    log.warning("mmserver on port {0} failed, replacing it", server.port);
+    scheduleRestart(server);
+  }
+
+  private void scheduleRestart(final Server server) {
+    if (closed) {
+      return;
+    }
+    restarter.submit(() -> {
+      long backoffMillis = RESTART_BACKOFF_MILLIS;
+      try {
+        while (!closed && !restart(server)) {
+          log.warning("Retrying mmserver on port {0} in {1} ms", server.port, backoffMillis);
+          Thread.sleep(backoffMillis);
+          backoffMillis = Math.min(2 * backoffMillis, MAX_RESTART_BACKOFF_MILLIS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (MetaMapServerPool.this) {
+        MetaMapServerPool.this.notifyAll();
+      }
+    });
+  }
+
+  /**
+   * Replaces the process of the <var>server</var>, returning <code>true</code> once the new one is serving. The
+   * server is only locked while its process is swapped, not while the new one loads.
+   */
+  private boolean restart(final Server server) throws InterruptedException {
+    final Process process;
+    synchronized (server) {
+      server.destroy();
+      try {
+        server.start();
+      } catch (IOException e) {
+        log.severe("Unable to restart mmserver on port {0}: {1}", server.port, e);
+        return false;
+      }
+      process = server.process;
+    }
+    if (!server.awaitReady(process)) {
+      log.severe("mmserver on port {0} did not become ready", server.port);
+      synchronized (server) {
+        server.destroy();
+      }
+      return false;
+    }
+    synchronized (server) {
+      if (closed || server.process != process) {
+        return false;
+      }
+      server.connect();
+    }
+    log.info("mmserver on port {0} replaced", server.port);
+    return true;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    restarter.shutdownNow();
+    for (final Server server : servers) {
+      synchronized (server) {
+        server.destroy();
+      }
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * One mmserver process and its API connection.
+   */
+  private class Server {
+    private final int port;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private Process process;
+    private MetaMapApi api;
+    private volatile boolean healthy = false;
+
+    private Server(final int port) {
+      this.port = port;
+    }
+
+    private void start() throws IOException {
+      // Otherwise the readiness check could not tell this server from whatever already listens there
+      if (isListening()) {
+        throw new IOException("Port " + port + " is already in use by another process");
+      }
+      log.DBG("Starting the mmserver on port {0}...", port);
+      final ProcessBuilder pb = new ProcessBuilder(mmServerInitScript);
+      pb.directory(mmServerPath.toFile());
+      pb.environment().put("MMSERVER_PORT", String.valueOf(port));
+      pb.redirectErrorStream(true);
+      pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+      process = pb.start();
+    }
+
+    /**
+     * Polls the server port until it accepts connections, the <var>process</var> dies, or the readiness timeout
+     * passes. The port was free when the process started, so a connection means the process listens on it.
+     */
+    private boolean awaitReady(final Process process) throws InterruptedException {
+      final long deadline = System.currentTimeMillis() + readinessTimeoutMillis;
+      while (System.currentTimeMillis() < deadline) {
+        if (!process.isAlive()) {
+          log.severe("mmserver on port {0} exited with {1}", port, process.exitValue());
+          return false;
+        }
+        if (isListening()) {
+          if (process.isAlive()) {
+            return true;
+          }
+          continue;
+        }
+        Thread.sleep(READINESS_POLL_MILLIS);
+      }
+      log.severe("mmserver never listened on port {0}; check that {1} binds the port in MMSERVER_PORT",
+          port, mmServerInitScript);
+      return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the server port accepts connections.
+     */
+    private boolean isListening() {
+      try (final Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(MMSERVER_HOST, port), READINESS_POLL_MILLIS);
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private void connect() {
+      api = new MetaMapApiImpl(MMSERVER_HOST, port);
+      api.setTimeout(apiTimeout);
+      healthy = true;
+    }
+
+    private void destroy() {
+      healthy = false;
+      if (api != null) {
+        try {
+          api.disconnect();
+        } catch (RuntimeException e) {
+          log.DBG("Error while disconnecting from mmserver on port {0}: {1}", port, e);
+        }
+        api = null;
+      }
+      if (process != null) {
+        log.DBG("Destroying the mmserver on port {0}...", port);
+        process.destroy();
+        try {
+          if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+          }
+        } catch (InterruptedException e) {
+          process.destroyForcibly();
+          Thread.currentThread().interrupt();
+        }
+        process = null;
+      }
+    }
+  }
+}
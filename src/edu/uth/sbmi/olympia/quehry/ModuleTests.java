@@ -7,11 +7,17 @@ import edu.uth.sbmi.olympia.text.Token;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.TreeNode;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,23 +66,35 @@ public class ModuleTests {
       }
 
       // Make sure all the logical operations exist
-      {
-        final Set<String> checkedFunctions = new HashSet<>();
-        checkedFunctions.add("null");
-        checkedFunctions.add("lambda.concept");
-        checkedFunctions.add("lambda.hascall");
-        checkedFunctions.add("lambda.hasrelative");
-        for (final LexiconEntry entry : entries) {
-          final String op = entry.getLogicalForm();
-          if (checkedFunctions.add(op)) {
-            if (LogicalTreeFilteringRules.getTypes(op, false) == null) {
-              fail("Logical operation in lexicon has no specified " +
-                  "input/output types: {0}", op);
-            }
-          }
+      for (final String op : getUntypedOperations(entries, new LogicalTreeFilteringRules())) {
+        fail("Logical operation in lexicon has no specified " +
+            "input/output types: {0}", op);
+      }
+    }
+  }
+
+  /**
+   * Returns the logical operations of the <var>entries</var> that have no
+   * input/output types in the type <var>rules</var>.
+   */
+  public static Set<String> getUntypedOperations(
+          final List<LexiconEntry> entries,
+          final LogicalTreeFilteringRules rules) {
+    final Set<String> checkedFunctions = new HashSet<>();
+    checkedFunctions.add("null");
+    checkedFunctions.add("lambda.concept");
+    checkedFunctions.add("lambda.hascall");
+    checkedFunctions.add("lambda.hasrelative");
+    final Set<String> untyped = new LinkedHashSet<>();
+    for (final LexiconEntry entry : entries) {
+      final String op = entry.getLogicalForm();
+      if (checkedFunctions.add(op)) {
+        if (rules.getFunctionTypes(op, false) == null) {
+          untyped.add(op);
         }
       }
     }
+    return untyped;
   }
 
   /**
@@ -174,4 +192,79 @@ public class ModuleTests {
     }
   }
 
+  /**
+   * Tests that the <var>written</var> result of a {@link StageStore}
+   * <var>stage</var> reads back to the same result, by writing what the
+   * <var>codec</var> reads again.
+   */
+  public static <T> void checkStoredStage(final String stage,
+          final StageStore.Codec<T> codec, final byte[] written) {
+    if (ACTIVE) {
+      final ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+      try {
+        final DataOutputStream out = new DataOutputStream(rewritten);
+        codec.write(out, codec.read(ByteBuffer.wrap(written)));
+        out.flush();
+      } catch (IOException | RuntimeException e) {
+        fail("Stored result of stage {0} cannot be read back: {1}", stage, e);
+        return;
+      }
+      checkSameEncoding("stage " + stage, written, rewritten.toByteArray());
+    }
+  }
+
+  /**
+   * Tests that the {@link DependencyCache} entry <var>line</var> reads back
+   * to the same dependencies.
+   */
+  public static void checkDependencyCacheEntry(final String line) {
+    if (ACTIVE) {
+      final String reformatted;
+      try {
+        reformatted = DependencyCache.reformat(line);
+      } catch (RuntimeException e) {
+        fail("Dependency Cache entry cannot be read back: {0}\n  {1}", e, line);
+        return;
+      }
+      checkSameEncoding("Dependency Cache entry",
+          line.getBytes(StandardCharsets.UTF_8),
+          reformatted.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Tests that the {@link QuestionSnapshot} <var>record</var> of a question
+   * reads back to the same question.
+   */
+  public static void checkQuestionSnapshotRecord(final byte[] record) {
+    if (ACTIVE) {
+      final byte[] reencoded;
+      try {
+        reencoded = QuestionSnapshot.reencode(record);
+      } catch (IOException | RuntimeException e) {
+        fail("Question snapshot record cannot be read back: {0}", e);
+        return;
+      }
+      checkSameEncoding("question snapshot record", record, reencoded);
+    }
+  }
+
+  /**
+   * Fails unless the <var>written</var> encoding in the given
+   * <var>format</var> is the same as its <var>rewritten</var> round trip.
+   */
+  private static void checkSameEncoding(final String format,
+          final byte[] written, final byte[] rewritten) {
+    final int length = Math.min(written.length, rewritten.length);
+    int offset = 0;
+    while (offset < length && written[offset] == rewritten[offset]) {
+      offset++;
+    }
+    if (offset < length || written.length != rewritten.length) {
+      fail("Round trip of {0} changes it at byte {1}: {2} bytes written, " +
+          "{3} bytes after reading it back", format, offset,
+          written.length, rewritten.length);
+    }
+  }
+
 }
@@ -0,0 +1,63 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CUIs present in each patient's own record, so concepts can be filtered against the patient a question
+ * is about rather than against every code in the EHR.
+ */
+public class PatientCUIIndex {
+  private static final Log log = new Log(PatientCUIIndex.class);
+
+  private final Map<String, CUISet> patientCUIs;
+
+  private PatientCUIIndex(final Map<String, CUISet> patientCUIs) {
+    this.patientCUIs = patientCUIs;
+  }
+
+  /**
+   * Loads the index from the CSV <var>file</var>, one row per patient and CUI, with the patient ID in the
+   * <var>patientColumn</var> and the CUI in the <var>codeColumn</var>.
+   */
+  public static PatientCUIIndex load(final Place file, final String patientColumn, final String codeColumn)
+      throws IOException {
+    final Map<String, CUISet.Builder> builders = new HashMap<>();
+    try (final BufferedReader reader = new BufferedReader(file.openReader())) {
+      final String header = reader.readLine();
+      final int patientIndex = CUISet.getColumnIndex(header, patientColumn, file);
+      final int codeIndex = CUISet.getColumnIndex(header, codeColumn, file);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String patientID = CUISet.getField(line, patientIndex);
+        if (patientID == null || patientID.isEmpty()) {
+          continue;
+        }
+        builders.computeIfAbsent(patientID, k -> new CUISet.Builder())
+            .add(CUISet.encode(CUISet.getField(line, codeIndex)));
+      }
+    }
+    final Map<String, CUISet> patientCUIs = new HashMap<>();
+    long total = 0;
+    for (final Map.Entry<String, CUISet.Builder> entry : builders.entrySet()) {
+      final CUISet cuis = entry.getValue().build();
+      patientCUIs.put(entry.getKey(), cuis);
+      total += cuis.size();
+    }
+    log.info("Loaded {0} CUIs for {1} patients from {2}", total, patientCUIs.size(), file);
+    return new PatientCUIIndex(patientCUIs);
+  }
+
+  /**
+   * Returns the CUIs in the record of the patient with <var>patientID</var>, or <code>null</code> if the
+   * patient is not in the index.
+   */
+  public CUISet get(final String patientID) {
+    return patientCUIs.get(patientID);
+  }
+}
@@ -4,11 +4,13 @@ import edu.uth.sbmi.olympia.text.Document;
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class Prediction {
   private Document questionWithOrigAnnotations;
   private FHIRResponse fhirResponseGold;
+  private boolean fhirResponseGoldFetched = false;
 
   // MetaMap Coverage
   private boolean metaMapCandidatesIncludeGoldCUI;
@@ -53,16 +55,71 @@ public class Prediction {
     this.metaMapCandidatesIncludeGoldBoundary = metaMapCandidateIncludeGoldBoundary;
     this.predictedTimeFrame = predictedTimeFrame;
     this.predictedTimeFrameMatchGold = predictedTimeFrameMatchGold;
+  }
+
+  private FHIRQuery getFhirQueryGold() {
+    return FHIRClient.createQuery(
+        new LogicalTree(questionWithOrigAnnotations.getOnlySub(LogicalForm.class).getLogicalFormTree(), null),
+        questionWithOrigAnnotations,
+        null,
+        true);
+  }
+
+  private List<LogicalFormPrediction> getLogicalFormPredictions() {
+    return Arrays.asList(
+        this.lfPredWithTopRankedMMConcept,
+        this.lfPredWithLongestMMConcept,
+        this.lfPredWithAllMMConcepts,
+        this.lfPredWithLongestMMConceptPostEHRFiltering,
+        this.lfPredWithGoldConcepts);
+  }
+
+  /**
+   * Starts executing all the predicted FHIR queries of this prediction, and those of their runner-up logical
+   * trees, with the given <var>speculativeExecutor</var>.
+   */
+  public void prefetchResponses(final SpeculativeFHIRExecutor speculativeExecutor) {
+    for (final LogicalFormPrediction lfPrediction : getLogicalFormPredictions()) {
+      lfPrediction.prefetchResponses(speculativeExecutor, this.predictedTimeFrame);
+    }
+  }
 
-    this.fhirResponseGold = getFhirResponseGold();
+  /**
+   * Queues the gold and all the predicted FHIR queries of this prediction in the given <var>batch</var>.
+   */
+  public void submitQueries(final FHIRBatchExecutor batch) {
+    batch.submit(getFhirQueryGold());
+    for (final LogicalFormPrediction lfPrediction : getLogicalFormPredictions()) {
+      lfPrediction.submitQuery(batch, this.predictedTimeFrame);
+    }
+  }
+
+  /**
+   * Takes the gold and all the predicted FHIR responses of this prediction from an executed <var>batch</var>.
+   * Queries missing from the <var>batch</var> are executed on demand by {@link #getXML()}.
+   */
+  public void collectResponses(final FHIRBatchExecutor batch) {
+    final FHIRQuery goldQuery = getFhirQueryGold();
+    if (goldQuery == null || batch.hasResponse(goldQuery)) {
+      this.fhirResponseGold = goldQuery != null ? batch.getResponse(goldQuery) : null;
+      this.fhirResponseGoldFetched = true;
+    }
+    for (final LogicalFormPrediction lfPrediction : getLogicalFormPredictions()) {
+      lfPrediction.collectResponse(batch, this.predictedTimeFrame);
+    }
   }
 
   private FHIRResponse getFhirResponseGold() {
-    return FHIRClient.execute(
-        questionWithOrigAnnotations.getOnlySub(LogicalForm.class).getLogicalFormTree(), questionWithOrigAnnotations);
+    if (!this.fhirResponseGoldFetched) {
+      this.fhirResponseGold = FHIRClient.execute(
+          questionWithOrigAnnotations.getOnlySub(LogicalForm.class).getLogicalFormTree(), questionWithOrigAnnotations);
+      this.fhirResponseGoldFetched = true;
+    }
+    return this.fhirResponseGold;
   }
 
   public Element getXML() {
+    this.getFhirResponseGold();
     final Element predictionElem = new Element("Prediction");
     predictionElem.setAttribute(new Attribute("id", this.questionWithOrigAnnotations.getDocumentID()));
     predictionElem.addContent(new Element("QuestionText").setText(this.questionWithOrigAnnotations.asRawString()));
@@ -0,0 +1,431 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Annotation;
+import edu.uth.sbmi.olympia.text.AnnotationType;
+import edu.uth.sbmi.olympia.text.Dependency;
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Sentence;
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.text.Token;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+import edu.uth.sbmi.olympia.util.TreeNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary snapshot of fully annotated questions: their tokens, sentences, dependencies, concepts, logical forms,
+ * time frames and answers. The snapshot is memory-mapped and each question is only decoded when it is first
+ * asked for. It records the MD5 fingerprint of the files it was built from, and is only opened while that
+ * fingerprint still matches.
+ */
+public class QuestionSnapshot {
+  private static final Log log = new Log(QuestionSnapshot.class);
+
+  private static final int MAGIC = 0x51534e50;
+  private static final int VERSION = 1;
+  private static final int FINGERPRINT_LENGTH = 16;
+  private static final int HEADER_LENGTH = 12 + FINGERPRINT_LENGTH;
+
+  private static final byte SENTENCE = 1;
+  private static final byte DEPENDENCY = 2;
+  private static final byte LOGICAL_FORM = 3;
+  private static final byte TIME_FRAME = 4;
+  private static final byte CONCEPT = 5;
+  private static final byte ANSWER = 6;
+
+  private final ByteBuffer buffer;
+  private final long[] offsets;
+  private final Document[] questions;
+
+  private QuestionSnapshot(final ByteBuffer buffer, final long[] offsets) {
+    this.buffer = buffer;
+    this.offsets = offsets;
+    this.questions = new Document[offsets.length];
+  }
+
+  /**
+   * Opens the snapshot in <var>file</var>, returning <code>null</code> if there is none or it was built from
+   * files with a different <var>fingerprint</var>.
+   */
+  public static QuestionSnapshot open(final File file, final byte[] fingerprint) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final ByteBuffer buffer;
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_LENGTH) {
+        log.warning("Ignoring truncated question snapshot: {0}", file);
+        return null;
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      log.info("Question snapshot {0} is from another version, rebuilding it", file);
+      return null;
+    }
+    final byte[] stored = new byte[FINGERPRINT_LENGTH];
+    buffer.get(stored);
+    if (!Arrays.equals(stored, fingerprint)) {
+      log.info("Question snapshot {0} is out of date, rebuilding it", file);
+      return null;
+    }
+    final long[] offsets = new long[buffer.getInt()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = buffer.getLong();
+    }
+    log.info("Opened question snapshot {0} with {1} questions", file, offsets.length);
+    return new QuestionSnapshot(buffer, offsets);
+  }
+
+  /**
+   * Writes the <var>questions</var> to a snapshot in <var>file</var>, replacing any snapshot already there.
+   */
+  public static void write(final File file, final byte[] fingerprint, final List<Document> questions)
+      throws IOException {
+    if (fingerprint.length != FINGERPRINT_LENGTH) {
+      throw new IllegalArgumentException("Expected an MD5 fingerprint: " + fingerprint.length + " bytes");
+    }
+    final List<byte[]> records = new ArrayList<>(questions.size());
+    for (final Document question : questions) {
+      final byte[] record = encode(question);
+      ModuleTests.checkQuestionSnapshotRecord(record);
+      records.add(record);
+    }
+    // A temporary file of its own, so runs writing the same snapshot at once do not write over each other
+    final File parent = file.getAbsoluteFile().getParentFile();
+    final File temp = Files.createTempFile(
+        (parent != null ? parent : new File(".")).toPath(), file.getName(), ".tmp").toFile();
+    try {
+      try (final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(fingerprint);
+        out.writeInt(records.size());
+        long offset = HEADER_LENGTH + 8L * records.size();
+        for (final byte[] record : records) {
+          out.writeLong(offset);
+          offset += record.length;
+        }
+        for (final byte[] record : records) {
+          out.write(record);
+        }
+      }
+      // Replaced in one step, so a crash or a run opening the snapshot meanwhile never sees half of it
+      Files.move(temp.toPath(), file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      if (temp.exists() && !temp.delete()) {
+        log.DBG("Unable to delete temporary file: {0}", temp);
+      }
+    }
+    log.info("Wrote question snapshot {0} with {1} questions", file, records.size());
+  }
+
+  /**
+   * Returns the MD5 fingerprint of the contents of the <var>sources</var>.
+   */
+  public static byte[] fingerprint(final Place... sources) throws IOException {
+    return fingerprint(Collections.emptyList(), sources);
+  }
+
+  /**
+   * Returns the MD5 fingerprint of the <var>settings</var> and of the contents of the <var>sources</var>.
+   */
+  public static byte[] fingerprint(final List<String> settings, final Place... sources) throws IOException {
+    final MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+    for (final String setting : settings) {
+      md5.update(setting.getBytes(StandardCharsets.UTF_8));
+      md5.update((byte) 0);
+    }
+    final byte[] bytes = new byte[8192];
+    for (final Place source : sources) {
+      try (final InputStream in = source.openInputStream()) {
+        int read;
+        while ((read = in.read(bytes)) != -1) {
+          md5.update(bytes, 0, read);
+        }
+      }
+      // Keeps the boundary between the sources in the fingerprint
+      md5.update((byte) 0);
+    }
+    return md5.digest();
+  }
+
+  /**
+   * Returns the number of questions in this snapshot.
+   */
+  public int size() {
+    return offsets.length;
+  }
+
+  /**
+   * Returns the question at <var>index</var>, decoding it the first time it is asked for.
+   */
+  public synchronized Document get(final int index) {
+    if (questions[index] == null) {
+      final ByteBuffer record = buffer.duplicate();
+      record.position((int) offsets[index]);
+      questions[index] = decode(record);
+    }
+    return questions[index];
+  }
+
+  /**
+   * Returns the questions as a <code>List</code> that decodes each one when it is first read.
+   */
+  public List<Document> asList() {
+    return new AbstractList<Document>() {
+      @Override
+      public Document get(final int index) {
+        return QuestionSnapshot.this.get(index);
+      }
+
+      @Override
+      public int size() {
+        return offsets.length;
+      }
+    };
+  }
+
+  /**
+   * Returns the <var>record</var> of a question as it is encoded again after it is decoded.
+   */
+  static byte[] reencode(final byte[] record) throws IOException {
+    return encode(decode(ByteBuffer.wrap(record)));
+  }
+
+  private static byte[] encode(final Document question) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    writeString(out, question.getDocumentID());
+    writeString(out, question.asRawString());
+    out.writeInt(question.getAnnotatedTypes().size());
+    for (final AnnotationType type : question.getAnnotatedTypes()) {
+      writeString(out, type.value());
+    }
+
+    final List<Token> tokens = question.getTokens();
+    out.writeInt(tokens.size());
+    for (final Token token : tokens) {
+      out.writeInt(token.getStartCharOffset());
+      out.writeInt(token.getEndCharOffset());
+      writeString(out, token.getPOS());
+      writeString(out, token.getStem());
+    }
+
+    final List<Annotation> annotations = new ArrayList<>();
+    for (final Annotation annotation : question.getAnnotations()) {
+      if (annotation instanceof Sentence || annotation instanceof Dependency || annotation instanceof LogicalForm
+          || annotation instanceof TimeFrame || annotation instanceof Concept || annotation instanceof Answer) {
+        annotations.add(annotation);
+      } else {
+        log.warningOnce("Question snapshots do not store {0} annotations", annotation.getClass().getSimpleName());
+      }
+    }
+    out.writeInt(annotations.size());
+    for (final Annotation annotation : annotations) {
+      if (annotation instanceof Sentence) {
+        out.writeByte(SENTENCE);
+        writeSpan(out, annotation);
+      } else if (annotation instanceof Dependency) {
+        final Dependency dependency = (Dependency) annotation;
+        out.writeByte(DEPENDENCY);
+        writeSpan(out, dependency.getGovernor());
+        writeSpan(out, dependency.getDependent());
+        writeString(out, dependency.getType());
+      } else if (annotation instanceof LogicalForm) {
+        final LogicalForm logicalForm = (LogicalForm) annotation;
+        out.writeByte(LOGICAL_FORM);
+        writeSpan(out, annotation);
+        writeTree(out, logicalForm.getLogicalFormTree());
+        writeString(out, logicalForm.simpleLogicalForm());
+      } else if (annotation instanceof TimeFrame) {
+        out.writeByte(TIME_FRAME);
+        writeSpan(out, annotation);
+        writeString(out, ((TimeFrame) annotation).getValue());
+      } else if (annotation instanceof Concept) {
+        final Concept concept = (Concept) annotation;
+        out.writeByte(CONCEPT);
+        writeSpan(out, annotation);
+        writeString(out, concept.getType());
+        writeString(out, concept.getPOS());
+        writeString(out, concept.getCUI());
+        writeString(out, concept.getValue());
+        out.writeBoolean(concept.getScore() != null);
+        out.writeInt(concept.getScore() != null ? concept.getScore() : 0);
+      } else {
+        final Answer answer = (Answer) annotation;
+        out.writeByte(ANSWER);
+        writeSpan(out, annotation);
+        writeString(out, answer.getPatientID());
+        out.writeInt(answer.getResourceIDs().size());
+        for (final String resourceID : answer.getResourceIDs()) {
+          writeString(out, resourceID);
+        }
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Document decode(final ByteBuffer in) {
+    final String documentID = readString(in);
+    final Document question = new Document(readString(in));
+    question.setDocumentID(documentID);
+    final int typeCount = in.getInt();
+    for (int i = 0; i < typeCount; i++) {
+      question.addAnnotatedType(AnnotationType.get(readString(in)));
+    }
+
+    final int tokenCount = in.getInt();
+    for (int i = 0; i < tokenCount; i++) {
+      final Token token = new Token(question, in.getInt(), in.getInt());
+      final String pos = readString(in);
+      if (pos != null) {
+        token.setPOS(pos);
+      }
+      final String stem = readString(in);
+      if (stem != null) {
+        token.setStem(stem);
+      }
+      question.addToken(token);
+    }
+
+    final int annotationCount = in.getInt();
+    for (int i = 0; i < annotationCount; i++) {
+      final byte kind = in.get();
+      switch (kind) {
+        case SENTENCE:
+          new Sentence(readSpan(in, question)).attach();
+          break;
+        case DEPENDENCY:
+          new Dependency(readSpan(in, question), readSpan(in, question), readString(in)).attach();
+          break;
+        case LOGICAL_FORM:
+          new LogicalForm(readDocumentSpan(in, question), readTree(in), readString(in)).attach();
+          break;
+        case TIME_FRAME:
+          new TimeFrame(readDocumentSpan(in, question), readString(in)).attach();
+          break;
+        case CONCEPT:
+          final Text span = readSpan(in, question);
+          final String type = readString(in);
+          final String pos = readString(in);
+          final String cui = readString(in);
+          final String value = readString(in);
+          final boolean hasScore = in.get() != 0;
+          final int score = in.getInt();
+          new Concept(span, type, pos, cui, value, hasScore ? score : null).attach();
+          break;
+        case ANSWER:
+          final Text text = readDocumentSpan(in, question);
+          final String patientID = readString(in);
+          final List<String> resourceIDs = new ArrayList<>();
+          final int resourceCount = in.getInt();
+          for (int j = 0; j < resourceCount; j++) {
+            resourceIDs.add(readString(in));
+          }
+          new Answer(text, patientID, resourceIDs).attach();
+          break;
+        default:
+          throw new IllegalStateException("Unknown annotation in question snapshot: " + kind);
+      }
+    }
+    return question;
+  }
+
+  static void writeSpan(final DataOutputStream out, final Text span) throws IOException {
+    out.writeInt(span.getStartTokenOffset());
+    out.writeInt(span.getEndTokenOffset());
+  }
+
+  static Text readSpan(final ByteBuffer in, final Document question) {
+    final int start = in.getInt();
+    final int end = in.getInt();
+    return question.getToken(start).union(question.getToken(end - 1));
+  }
+
+  /**
+   * Reads a span that {@link ReadQuestions} puts on the whole question, returning the question itself when it
+   * covers it.
+   */
+  private static Text readDocumentSpan(final ByteBuffer in, final Document question) {
+    final int start = in.getInt();
+    final int end = in.getInt();
+    if (start == 0 && end == question.getTokenLength()) {
+      return question;
+    }
+    return question.getToken(start).union(question.getToken(end - 1));
+  }
+
+  static void writeTree(final DataOutputStream out, final TreeNode<String> node) throws IOException {
+    writeString(out, node.getItem());
+    out.writeInt(node.getChildren().size());
+    for (final TreeNode<String> child : node.getChildren()) {
+      writeTree(out, child);
+    }
+  }
+
+  static TreeNode<String> readTree(final ByteBuffer in) {
+    final TreeNode<String> node = new TreeNode<>(readString(in));
+    final int childCount = in.getInt();
+    for (int i = 0; i < childCount; i++) {
+      node.addChild(readTree(in));
+    }
+    return node;
+  }
+
+  /**
+   * Writes the <var>string</var> as its UTF-8 length and bytes, with a length of -1 for <code>null</code>.
+   */
+  static void writeString(final DataOutputStream out, final String string) throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a <code>String</code> written by {@link #writeString}.
+   */
+  static String readString(final ByteBuffer in) {
+    final int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -1,5 +1,6 @@
 package edu.uth.sbmi.olympia.quehry;
 
+import edu.uth.sbmi.olympia.util.Config;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.Place;
 import edu.uth.sbmi.olympia.util.Strings;
@@ -52,4 +53,24 @@ public class ReadLexicon {
     return lexEntries;
   }
 
+  /**
+   * Returns the {@link LexiconEntry}s of the lexicon, checked against the <var>typeRules</var>: from its
+   * {@link CompiledLexicon}, which was checked when it was compiled, if a compiled lexicon
+   * <code>directory</code> is configured, otherwise by parsing and checking the <var>file</var>.
+   * @throws IllegalArgumentException If the lexicon uses a logical operation the type rules have no types for.
+   */
+  public static List<LexiconEntry> loadLexicon(final Place file, final Place typeRules) {
+    if (Config.get(CompiledLexicon.class, "directory", "").toString().isEmpty()) {
+      final List<LexiconEntry> entries = parseLexicon(file);
+      LexiconCompiler.checkOperations(entries, typeRules);
+      return entries;
+    }
+    try {
+      return CompiledLexicon.load(file, typeRules).getEntries();
+    }
+    catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
 }
@@ -9,15 +9,24 @@ import edu.uth.sbmi.olympia.util.Pair;
 import edu.uth.sbmi.olympia.util.Place;
 import edu.uth.sbmi.olympia.util.Strings;
 import edu.uth.sbmi.olympia.util.TreeNode;
-import edu.uth.sbmi.olympia.util.xml.XMLUtil;
-import org.jdom2.Element;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -52,147 +61,284 @@ public class ReadQuestions {
    */
   public List<Document> readQuestions() {
     log.info("Reading Questions from File: {0}", file);
-    final List<Document> questions = new ArrayList<>();
-    try {
-      final Element root = XMLUtil.getDocument(file).getRootElement();
-      for (final Element item : root.getChildren()) {
-        assert item.getName().equals("Item");
-        final String itemID = item.getAttributeValue("id");
-        final List<Element> itemChildren = item.getChildren();
-        assert itemChildren.get(0).getName().equals("OriginalQuestion");
-        for (int j = 1; j < itemChildren.size(); j++) {
-          final Element questionElem = itemChildren.get(j);
-          assert questionElem.getName().equals("Question");
-          final String questionID = questionElem.getAttributeValue("id");
-            
-          final List<String> questionChildNames =
-              XMLUtil.getChildrenNames(questionElem);
-          if (this.readAnswerAnnotations) {
-            assert questionChildNames.equals(QUESTION_CHILDREN_WITH_ANSWER) :
-                questionChildNames;
-          } else {
-            assert questionChildNames.equals(QUESTION_CHILDREN) :
-                questionChildNames;
-          }
-
-          final String lexical =
-              XMLUtil.getOnlyChild(questionElem, "Lexical").getText();
-          final Element tokensElem =
-              XMLUtil.getOnlyChild(questionElem, "Tokens");
-          final Element conceptsElem =
-              XMLUtil.getOnlyChild(questionElem, "Concepts");
-          final String logicalForm =
-              XMLUtil.getOnlyChild(questionElem, "LogicalForm").getText();
-          final String simpleLogicalForm =
-              XMLUtil.getOnlyChild(questionElem, "SimpleLogicalForm").getText();
-
-          final Element logicalFormTreeElem = 
-              XMLUtil.getOnlyChild(questionElem, "LogicalFormTree");
-          assert logicalFormTreeElem.getChildren().size() == 1;
-          final TreeNode<String> logicalFormTree =
-              getLogicalFormTree(logicalFormTreeElem.getChildren().get(0));
-          
-          final Document document = new Document(lexical);
-          document.setDocumentID(itemID + "." + questionID);
-          document.annotate(Sentence.TYPE);
-
-          new LogicalForm(document, logicalFormTree, simpleLogicalForm).attach();
-
-          String timeFrameValue = extractImplicitTimeFrame(logicalFormTree);
-          if (timeFrameValue == null) {
-            timeFrameValue = "status";
-          }
-          new TimeFrame(document, timeFrameValue).attach();
+    final List<Document> questions;
+    try (final Stream<Document> stream = streamQuestions()) {
+      questions = stream.collect(Collectors.toList());
+    }
+    log.info("Loaded {0} Questions", questions.size());
+    return questions;
+  }
 
-          final List<Pair<Integer,Integer>> tokens = new ArrayList<>();
-          for (final Element tokenElem : tokensElem.getChildren()) {
-            assert tokenElem.getName().equals("Token");
-            tokens.add(Pair.of(
-                Integer.valueOf(tokenElem.getAttributeValue("cs")),
-                Integer.valueOf(tokenElem.getAttributeValue("cl"))));
-          }
+  /**
+   * Read the questions and its properties from the XML file, returning them as
+   * a <code>List</code> of {@link Document}s.
+   */
+  public List<Document> readQuestionsWithAnswers() {
+    this.readAnswerAnnotations = true;
+    List<Document> questions = this.readQuestions();
+    this.readAnswerAnnotations = false;
 
-          for (final Element conceptElem : conceptsElem.getChildren()) {
-            assert conceptElem.getName().equals("Concept");
-            final int ts = Integer.valueOf(conceptElem.getAttributeValue("ts"));
-            final int tl = Integer.valueOf(conceptElem.getAttributeValue("tl"));
+    return questions;
+  }
 
-            final int firstTokenStartChar = tokens.get(ts).getFirst();
-            final int lastTokenStartChar = tokens.get(ts + tl - 1).getFirst();
+  /**
+   * Streams the questions from the XML file, reading each one only when it is
+   * needed, so the memory used does not grow with the size of the file. The
+   * <code>Stream</code> should be closed to close the file.
+   */
+  public Stream<Document> streamQuestions() {
+    final QuestionIterator iterator = new QuestionIterator(readAnswerAnnotations);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+        Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iterator::close);
+  }
 
-            final Token firstToken = document.findToken(firstTokenStartChar);
-            final Token lastToken = document.findToken(lastTokenStartChar);
-            final Text span = firstToken.union(lastToken);
+  /**
+   * Streams the questions from the XML file along with their answers.
+   * @see #streamQuestions()
+   */
+  public Stream<Document> streamQuestionsWithAnswers() {
+    this.readAnswerAnnotations = true;
+    final Stream<Document> questions = this.streamQuestions();
+    this.readAnswerAnnotations = false;
 
-            final Concept concept = new Concept(span,
-                conceptElem.getAttributeValue("type"),
-                conceptElem.getAttributeValue("pos"),
-                conceptElem.getAttributeValue("CUI"),
-                conceptElem.getAttributeValue("value"));
-            concept.attach();
-          }
+    return questions;
+  }
 
-          if (this.readAnswerAnnotations) {
-            final Element answerElem =
-                XMLUtil.getOnlyChild(questionElem, "Answer");
+  /**
+   * Reads the questions one <code>Question</code> element at a time.
+   */
+  private class QuestionIterator implements Iterator<Document>, AutoCloseable {
+    private final boolean withAnswers;
+    private final InputStream input;
+    private final XMLStreamReader reader;
+    private String itemID;
+    private Document next;
 
-            final List<String> answerChildNames =
-                XMLUtil.getChildrenNames(answerElem);
-            assert answerChildNames.equals(ANSWER_CHILDREN) :
-                answerChildNames;
+    private QuestionIterator(final boolean withAnswers) {
+      this.withAnswers = withAnswers;
+      try {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.input = file.openInputStream();
+        this.reader = factory.createXMLStreamReader(input);
+      }
+      catch (IOException | XMLStreamException e) {
+        throw new RuntimeException("Unable to read questions from " + file, e);
+      }
+    }
 
-            final String patientID =
-                XMLUtil.getOnlyChild(answerElem, "PatientID").getText();
-            final Element resourcesElem =
-                XMLUtil.getOnlyChild(answerElem, "Resources");
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        next = readNext();
+      }
+      return next != null;
+    }
 
-            final List<String> resourceIDs = new ArrayList<>();
-            for (final Element resource : resourcesElem.getChildren()) {
-              resourceIDs.add(resource.getAttribute("id").getValue());
-            }
+    @Override
+    public Document next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Document question = next;
+      next = null;
+      return question;
+    }
 
-            new Answer(document, patientID, resourceIDs).attach();
+    /**
+     * Advances to the next <code>Question</code> element and reads it,
+     * returning <code>null</code> at the end of the file.
+     */
+    private Document readNext() {
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          final String name = reader.getLocalName();
+          if (name.equals("Item")) {
+            itemID = reader.getAttributeValue(null, "id");
+          } else if (name.equals("Question")) {
+            return readQuestion(itemID, reader, withAnswers);
+          } else {
+            assert name.equals("QuestionSet") || name.equals("OriginalQuestion") : name;
           }
-          
-          document.setDocumentID(questionID);
-          questions.add(document);
         }
+        return null;
+      }
+      catch (XMLStreamException xse) {
+        throw new RuntimeException("Unable to read questions from " + file, xse);
       }
-      log.info("Loaded {0} Questions", questions.size());
     }
-    catch (IOException ioe) {
-      throw new RuntimeException(ioe);
+
+    @Override
+    public void close() {
+      try {
+        reader.close();
+        input.close();
+      }
+      catch (IOException | XMLStreamException e) {
+        throw new RuntimeException(e);
+      }
     }
-    return questions;
   }
 
   /**
-   * Read the questions and its properties from the XML file, returning them as
-   * a <code>List</code> of {@link Document}s.
+   * Reads the <code>Question</code> element the <var>reader</var> is at,
+   * leaving the <var>reader</var> at its end.
    */
-  public List<Document> readQuestionsWithAnswers() {
-    this.readAnswerAnnotations = true;
-    List<Document> questions = this.readQuestions();
-    this.readAnswerAnnotations = false;
+  private Document readQuestion(final String itemID,
+                                final XMLStreamReader reader,
+                                final boolean withAnswers) throws XMLStreamException {
+    final String questionID = reader.getAttributeValue(null, "id");
+    final List<String> questionChildNames = new ArrayList<>();
+    String lexical = null;
+    String simpleLogicalForm = null;
+    TreeNode<String> logicalFormTree = null;
+    final List<Pair<Integer,Integer>> tokens = new ArrayList<>();
+    final List<String[]> concepts = new ArrayList<>();
+    String patientID = null;
+    final List<String> resourceIDs = new ArrayList<>();
 
-    return questions;
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      final String name = reader.getLocalName();
+      questionChildNames.add(name);
+      switch (name) {
+        case "Lexical":
+          lexical = reader.getElementText();
+          break;
+        case "Tokens":
+          while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            assert reader.getLocalName().equals("Token");
+            tokens.add(Pair.of(
+                Integer.valueOf(reader.getAttributeValue(null, "cs")),
+                Integer.valueOf(reader.getAttributeValue(null, "cl"))));
+            skipElement(reader);
+          }
+          break;
+        case "Concepts":
+          while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            assert reader.getLocalName().equals("Concept");
+            concepts.add(new String[] {
+                reader.getAttributeValue(null, "ts"),
+                reader.getAttributeValue(null, "tl"),
+                reader.getAttributeValue(null, "type"),
+                reader.getAttributeValue(null, "pos"),
+                reader.getAttributeValue(null, "CUI"),
+                reader.getAttributeValue(null, "value")});
+            skipElement(reader);
+          }
+          break;
+        case "LogicalFormTree":
+          reader.nextTag();
+          logicalFormTree = getLogicalFormTree(reader);
+          // Only one root Node
+          reader.nextTag();
+          break;
+        case "SimpleLogicalForm":
+          simpleLogicalForm = reader.getElementText();
+          break;
+        case "Answer":
+          final List<String> answerChildNames = new ArrayList<>();
+          while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            answerChildNames.add(reader.getLocalName());
+            if (reader.getLocalName().equals("PatientID")) {
+              patientID = reader.getElementText();
+            } else {
+              while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                resourceIDs.add(reader.getAttributeValue(null, "id"));
+                skipElement(reader);
+              }
+            }
+          }
+          assert answerChildNames.equals(ANSWER_CHILDREN) :
+              answerChildNames;
+          break;
+        default:
+          // LogicalForm, which is not used
+          skipElement(reader);
+      }
+    }
+    if (withAnswers) {
+      assert questionChildNames.equals(QUESTION_CHILDREN_WITH_ANSWER) :
+          questionChildNames;
+    } else {
+      assert questionChildNames.equals(QUESTION_CHILDREN) :
+          questionChildNames;
+    }
+
+    final Document document = new Document(lexical);
+    document.setDocumentID(itemID + "." + questionID);
+    document.annotate(Sentence.TYPE);
+
+    new LogicalForm(document, logicalFormTree, simpleLogicalForm).attach();
+
+    String timeFrameValue = extractImplicitTimeFrame(logicalFormTree);
+    if (timeFrameValue == null) {
+      timeFrameValue = "status";
+    }
+    new TimeFrame(document, timeFrameValue).attach();
+
+    for (final String[] conceptAttrs : concepts) {
+      final int ts = Integer.valueOf(conceptAttrs[0]);
+      final int tl = Integer.valueOf(conceptAttrs[1]);
+
+      final int firstTokenStartChar = tokens.get(ts).getFirst();
+      final int lastTokenStartChar = tokens.get(ts + tl - 1).getFirst();
+
+      final Token firstToken = document.findToken(firstTokenStartChar);
+      final Token lastToken = document.findToken(lastTokenStartChar);
+      final Text span = firstToken.union(lastToken);
+
+      final Concept concept = new Concept(span,
+          conceptAttrs[2],
+          conceptAttrs[3],
+          conceptAttrs[4],
+          conceptAttrs[5]);
+      concept.attach();
+    }
+
+    if (withAnswers) {
+      new Answer(document, patientID, resourceIDs).attach();
+    }
+
+    document.setDocumentID(questionID);
+    return document;
   }
 
   /**
-   * Converts a <code>Node</code> element in the XML to a {@link TreeNode}.
+   * Converts a <code>Node</code> element in the XML to a {@link TreeNode},
+   * leaving the <var>reader</var> at its end.
    */
-  public TreeNode<String> getLogicalFormTree(final Element nodeElem) {
-    assert nodeElem.getName().equals("Node");
+  public TreeNode<String> getLogicalFormTree(final XMLStreamReader reader) throws XMLStreamException {
+    assert reader.getLocalName().equals("Node");
 
-    String v = nodeElem.getAttributeValue("value");
+    String v = reader.getAttributeValue(null, "value");
 
     final TreeNode<String> node = new TreeNode<>(v);
-    for (final Element child : nodeElem.getChildren()) {
-      node.addChild(getLogicalFormTree(child));
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      node.addChild(getLogicalFormTree(reader));
     }
     return node;
   }
 
+  /**
+   * Moves the <var>reader</var> from the start to the end of the current
+   * element.
+   */
+  private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      final int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
   public static String extractImplicitTimeFrame(TreeNode<String> node) {
     if (node.getItem().startsWith("has_")) {
       final List<String> split = Strings.split(node.getItem(), ",");
@@ -0,0 +1,305 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.text.Token;
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds all the reference patterns in a {@link Text} in a single pass. Literal phrases are matched with an
+ * Aho-Corasick automaton, and the remaining patterns are folded into one combined pattern tried only at word
+ * boundaries. The matches are exactly those of calling {@link Text#findAll(Pattern)} with each pattern in turn,
+ * in the same order.
+ */
+public class ReferenceMatcher {
+  private static final Log log = new Log(ReferenceMatcher.class);
+
+  private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+  private static final String WORD_BOUNDARY = "\\b";
+
+  private final String[] types;
+  private final Pattern[] patterns;
+
+  // Aho-Corasick automaton over the ASCII-lowercased literals
+  private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+  private final List<Integer> failures = new ArrayList<>();
+  private final List<int[]> outputs = new ArrayList<>();
+  private final int[] literalLengths;
+
+  // Each remaining pattern is a capturing lookahead of the combined pattern, at groups[i]
+  private final Pattern combined;
+  private final int[] groups;
+  private final boolean boundariesOnly;
+
+  /**
+   * Creates a new <code>ReferenceMatcher</code> for the <var>referencePatterns</var>, keyed by reference type.
+   */
+  public ReferenceMatcher(final Map<String, List<Pattern>> referencePatterns) {
+    final List<String> types = new ArrayList<>();
+    final List<Pattern> patterns = new ArrayList<>();
+    for (final Map.Entry<String, List<Pattern>> entry : referencePatterns.entrySet()) {
+      for (final Pattern pattern : entry.getValue()) {
+        types.add(entry.getKey());
+        patterns.add(pattern);
+      }
+    }
+    this.types = types.toArray(new String[0]);
+    this.patterns = patterns.toArray(new Pattern[0]);
+    this.literalLengths = new int[this.patterns.length];
+    this.groups = new int[this.patterns.length];
+
+    newState();
+    final StringBuilder combined = new StringBuilder();
+    int group = 1;
+    int literalCount = 0;
+    int regexCount = 0;
+    Integer flags = null;
+    boolean boundariesOnly = true;
+    for (int i = 0; i < this.patterns.length; i++) {
+      final String literal = getLiteral(this.patterns[i]);
+      if (literal != null) {
+        addLiteral(literal, i);
+        literalCount++;
+        continue;
+      }
+      if (flags == null) {
+        flags = this.patterns[i].flags();
+      } else if (flags != this.patterns[i].flags()) {
+        throw new IllegalArgumentException("Reference patterns with different flags: " + this.patterns[i]);
+      }
+      boundariesOnly &= this.patterns[i].pattern().startsWith(WORD_BOUNDARY);
+      combined.append("(?:(?=(").append(this.patterns[i].pattern()).append("))|)");
+      groups[i] = group;
+      group += 1 + this.patterns[i].matcher("").groupCount();
+      regexCount++;
+    }
+    buildFailures();
+    this.boundariesOnly = boundariesOnly;
+    this.combined = regexCount == 0 ? null : Pattern.compile(combined.toString(), flags);
+    log.DBG("Compiled {0} literal and {1} regex reference patterns", literalCount, regexCount);
+  }
+
+  /**
+   * Returns all the reference {@link Concept}s in the <var>text</var>, ordered by reference type, then pattern,
+   * then position, as the patterns were given.
+   */
+  public List<Concept> findReferences(final Text text) {
+    final String raw = text.asRawString();
+    final List<List<int[]>> matches = new ArrayList<>(patterns.length);
+    for (int i = 0; i < patterns.length; i++) {
+      matches.add(new ArrayList<>());
+    }
+    final int[] lastEnds = new int[patterns.length];
+    findLiterals(raw, matches, lastEnds);
+    findRegexes(raw, matches, lastEnds);
+
+    final Document document = text.getDocument();
+    final int offset = text.getStartCharOffset();
+    final List<Concept> concepts = new ArrayList<>();
+    for (int i = 0; i < patterns.length; i++) {
+      for (final int[] match : matches.get(i)) {
+        final Text span = toSpan(document, match[0] + offset, match[1] + offset);
+        if (span != null) {
+          concepts.add(new Concept(span, types[i]));
+        }
+      }
+    }
+    return concepts;
+  }
+
+  /**
+   * Runs the automaton over the <var>raw</var> text. Every candidate occurrence is confirmed with its own
+   * pattern, so the word boundaries and case folding are exactly those of the regex.
+   */
+  private void findLiterals(final String raw, final List<List<int[]>> matches, final int[] lastEnds) {
+    final Matcher[] matchers = new Matcher[patterns.length];
+    int state = 0;
+    for (int position = 0; position < raw.length(); position++) {
+      final char c = foldCase(raw.charAt(position));
+      while (state != 0 && !transitions.get(state).containsKey(c)) {
+        state = failures.get(state);
+      }
+      final Integer next = transitions.get(state).get(c);
+      state = next == null ? 0 : next;
+      for (final int i : outputs.get(state)) {
+        final int start = position + 1 - literalLengths[i];
+        // Occurrences come in order of their end, which for a fixed length is also the order of their start
+        if (start < lastEnds[i]) {
+          continue;
+        }
+        if (matchers[i] == null) {
+          matchers[i] = patterns[i].matcher(raw);
+          matchers[i].useTransparentBounds(true).useAnchoringBounds(false);
+        }
+        final Matcher matcher = matchers[i].region(start, raw.length());
+        if (matcher.lookingAt()) {
+          matches.get(i).add(new int[] {matcher.start(), matcher.end()});
+          lastEnds[i] = matcher.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * Tries the combined pattern at every word boundary of the <var>raw</var> text, or at every position if some
+   * pattern does not start with one. Each pattern keeps its own end, so a pattern only skips positions covered
+   * by its own previous match, as {@link Matcher#find()} does.
+   */
+  private void findRegexes(final String raw, final List<List<int[]>> matches, final int[] lastEnds) {
+    if (combined == null) {
+      return;
+    }
+    final Matcher matcher = combined.matcher(raw);
+    matcher.useTransparentBounds(true).useAnchoringBounds(false);
+    for (int position = 0; position <= raw.length(); position++) {
+      if (boundariesOnly && !isWordBoundary(raw, position)) {
+        continue;
+      }
+      matcher.region(position, raw.length());
+      if (!matcher.lookingAt()) {
+        continue;
+      }
+      for (int i = 0; i < patterns.length; i++) {
+        if (groups[i] == 0 || position < lastEnds[i] || matcher.start(groups[i]) < 0) {
+          continue;
+        }
+        matches.get(i).add(new int[] {matcher.start(groups[i]), matcher.end(groups[i])});
+        lastEnds[i] = Math.max(matcher.end(groups[i]), position + 1);
+      }
+    }
+  }
+
+  /**
+   * Returns the span of tokens from <var>start</var> to <var>end</var>, or <code>null</code> if either end
+   * falls inside a token.
+   */
+  private static Text toSpan(final Document document, final int start, final int end) {
+    final Token first = document.findToken(start, Document.TokenSearch.STRICT);
+    if (first == null || first.getStartCharOffset() != start) {
+      return null;
+    }
+    final Token last = document.findToken(end - 1, Document.TokenSearch.STRICT);
+    if (last == null || last.getEndCharOffset() != end) {
+      return null;
+    }
+    return first.union(last);
+  }
+
+  /**
+   * Returns the lowercased literal text of the <var>pattern</var> if it is a plain or quoted phrase between word
+   * boundaries matched case-insensitively, or <code>null</code> otherwise.
+   */
+  private static String getLiteral(final Pattern pattern) {
+    final String regex = pattern.pattern();
+    if (pattern.flags() != Pattern.CASE_INSENSITIVE
+        || !regex.startsWith(WORD_BOUNDARY)
+        || !regex.endsWith(WORD_BOUNDARY)
+        || regex.length() <= 2 * WORD_BOUNDARY.length()) {
+      return null;
+    }
+    String literal = regex.substring(WORD_BOUNDARY.length(), regex.length() - WORD_BOUNDARY.length());
+    if (literal.startsWith("\\Q") && literal.endsWith("\\E") && literal.indexOf("\\E") == literal.length() - 2) {
+      // Quoted with Pattern.quote
+      literal = literal.substring(2, literal.length() - 2);
+      if (literal.isEmpty()) {
+        return null;
+      }
+    } else {
+      for (int i = 0; i < literal.length(); i++) {
+        if (META_CHARACTERS.indexOf(literal.charAt(i)) >= 0) {
+          return null;
+        }
+      }
+    }
+    final StringBuilder folded = new StringBuilder(literal.length());
+    for (int i = 0; i < literal.length(); i++) {
+      folded.append(foldCase(literal.charAt(i)));
+    }
+    return folded.toString();
+  }
+
+  /**
+   * Lowercases ASCII letters only, as {@link Pattern#CASE_INSENSITIVE} does without
+   * {@link Pattern#UNICODE_CASE}.
+   */
+  private static char foldCase(final char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * A cheap over-approximation of <code>\b</code>: true wherever an ASCII letter, digit or underscore meets
+   * other ASCII, and next to any non-ASCII character, whose word class depends on the JDK. The combined pattern
+   * checks the exact boundary itself.
+   */
+  private static boolean isWordBoundary(final String raw, final int position) {
+    final char before = position > 0 ? raw.charAt(position - 1) : ' ';
+    final char after = position < raw.length() ? raw.charAt(position) : ' ';
+    return before > 127 || after > 127 || isWordCharacter(before) != isWordCharacter(after);
+  }
+
+  private static boolean isWordCharacter(final char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  private int newState() {
+    transitions.add(new HashMap<>());
+    failures.add(0);
+    outputs.add(new int[0]);
+    return transitions.size() - 1;
+  }
+
+  private void addLiteral(final String literal, final int index) {
+    int state = 0;
+    for (int i = 0; i < literal.length(); i++) {
+      final Integer next = transitions.get(state).get(literal.charAt(i));
+      if (next == null) {
+        final int created = newState();
+        transitions.get(state).put(literal.charAt(i), created);
+        state = created;
+      } else {
+        state = next;
+      }
+    }
+    outputs.set(state, append(outputs.get(state), index));
+    literalLengths[index] = literal.length();
+  }
+
+  /**
+   * Sets the failure links breadth-first, merging the outputs of each state's failure state into its own.
+   */
+  private void buildFailures() {
+    final Queue<Integer> queue = new LinkedList<>(transitions.get(0).values());
+    while (!queue.isEmpty()) {
+      final int state = queue.remove();
+      for (final Map.Entry<Character, Integer> transition : transitions.get(state).entrySet()) {
+        final int child = transition.getValue();
+        int failure = failures.get(state);
+        while (failure != 0 && !transitions.get(failure).containsKey(transition.getKey())) {
+          failure = failures.get(failure);
+        }
+        final Integer target = transitions.get(failure).get(transition.getKey());
+        failures.set(child, target == null || target == child ? 0 : target);
+        for (final int output : outputs.get(failures.get(child))) {
+          outputs.set(child, append(outputs.get(child), output));
+        }
+        queue.add(child);
+      }
+    }
+  }
+
+  private static int[] append(final int[] array, final int value) {
+    final int[] appended = new int[array.length + 1];
+    System.arraycopy(array, 0, appended, 0, array.length);
+    appended[array.length] = value;
+    return appended;
+  }
+}
@@ -0,0 +1,76 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stand-in for the FHIR driver and server that replays recorded responses, for benchmarking without a FHIR
+ * server or API key. Each response is a file in the recording directory named after a digest of its query, as
+ * written by {@link #record}. Queries that were never recorded have no response. Latency and failures are added
+ * by a {@link FaultInjector}.
+ */
+public class ReplayFHIRBackend implements FHIRBackend {
+  private static final Log log = new Log(ReplayFHIRBackend.class);
+
+  private final File recording;
+  private final FaultInjector faultInjector;
+
+  /**
+   * Creates a new <code>ReplayFHIRBackend</code> replaying the responses in the <var>recording</var> directory.
+   * @throws IllegalArgumentException If <var>recording</var> is not a directory.
+   */
+  public ReplayFHIRBackend(final File recording, final FaultInjector faultInjector) {
+    if (!recording.isDirectory()) {
+      throw new IllegalArgumentException("Not a directory: " + recording);
+    }
+    this.recording = recording;
+    this.faultInjector = faultInjector;
+  }
+
+  @Override
+  public FHIRResponse execute(final FHIRQuery query) throws IOException, InterruptedException {
+    faultInjector.inject("FHIR");
+    final File file = new File(recording, getFileName(query));
+    if (!file.exists()) {
+      log.DBG("No recorded response for {0}", query);
+      return null;
+    }
+    return FHIRResponseParser.parse(Place.fromFile(file));
+  }
+
+  /**
+   * Saves the driver's <var>output</var> file for the <var>query</var> to the <var>recording</var> directory.
+   */
+  public static void record(final File recording, final FHIRQuery query, final File output) throws IOException {
+    if (!recording.isDirectory() && !recording.mkdirs()) {
+      throw new IOException("Unable to create recording directory: " + recording);
+    }
+    Files.copy(output.toPath(), new File(recording, getFileName(query)).toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Returns the name of the file the response to the <var>query</var> is recorded in.
+   */
+  static String getFileName(final FHIRQuery query) {
+    final String key = query.getPatientID() + "\n" + query.getCurrentTime() + "\n" + query.getLogicalFormXML();
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder();
+      for (final byte b : digest) {
+        name.append(String.format("%02x", b));
+      }
+      return name.append(".json").toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
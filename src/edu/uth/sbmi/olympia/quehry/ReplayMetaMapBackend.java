@@ -0,0 +1,66 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for mmserver that replays recorded MetaMap output, for benchmarking without a MetaMap install. The
+ * recording is a {@link ConceptCache} file, such as the one written by earlier runs against a real server.
+ * A text not recorded with the requested options fails, as it did on the server that made the recording, so the
+ * client moves on to its next options until it reaches the ones it was recorded with. Latency and failures are
+ * added by a {@link FaultInjector}.
+ */
+public class ReplayMetaMapBackend implements MetaMapBackend {
+  private static final Log log = new Log(ReplayMetaMapBackend.class);
+
+  private final ConceptCache recording;
+  private final FaultInjector faultInjector;
+
+  /**
+   * Creates a new <code>ReplayMetaMapBackend</code> replaying the output of the given <var>version</var> of
+   * MetaMap in the <var>recording</var> file.
+   */
+  public ReplayMetaMapBackend(final File recording, final String version, final FaultInjector faultInjector)
+      throws IOException {
+    this.recording = new ConceptCache(recording, 0, version);
+    this.faultInjector = faultInjector;
+  }
+
+  @Override
+  public List<ConceptRecord> process(final String text, final String options) throws Exception {
+    faultInjector.inject("MetaMap");
+    return replay(text, options);
+  }
+
+  @Override
+  public List<List<ConceptRecord>> process(final List<String> texts, final String options) throws Exception {
+    faultInjector.inject("MetaMap batch");
+    final List<List<ConceptRecord>> records = new ArrayList<>();
+    for (final String text : texts) {
+      records.add(replay(text, options));
+    }
+    return records;
+  }
+
+  /**
+   * Returns the records of the <var>text</var> recorded with the <var>options</var>.
+   * @throws IllegalStateException If there are none.
+   */
+  private List<ConceptRecord> replay(final String text, final String options) {
+    final List<ConceptRecord> records = recording.get(text, options);
+    if (records == null) {
+      log.DBG("No recorded MetaMap output for options {0}: {1}", options, text);
+      throw new IllegalStateException("No recorded MetaMap output for options " + options + ": " + text);
+    }
+    return records;
+  }
+
+  @Override
+  public void close() throws IOException {
+    recording.close();
+  }
+}
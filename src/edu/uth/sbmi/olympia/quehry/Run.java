@@ -1,14 +1,12 @@
 package edu.uth.sbmi.olympia.quehry;
 
 import edu.uth.sbmi.olympia.text.*;
-import edu.uth.sbmi.olympia.text.io.XMLDocumentReader;
-import edu.uth.sbmi.olympia.text.io.XMLDocumentWriter;
 import edu.uth.sbmi.olympia.util.Timer;
 import edu.uth.sbmi.olympia.util.*;
-import edu.uth.sbmi.olympia.util.io.CSV;
 import edu.uth.sbmi.olympia.util.xml.XMLUtil;
 import org.jdom2.Element;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.function.Function;
@@ -22,9 +20,17 @@ import java.util.stream.Collectors;
 public class Run {
   private static final Log log = new Log(Run.class);
 
-  private final Place dependencyCache = Place.fromFile(
+  // The annotations a question snapshot keeps, whose annotators are part of its fingerprint
+  private static final String[] SNAPSHOT_ANNOTATOR_TYPES = {"TOKEN", "SENTENCE", "POS", "DEPENDENCY"};
+
+  // Imported into the dependency cache the first time it is created
+  private final Place legacyDependencyCache = Place.fromFile(
       "resources/edu/uth/sbmi/olympia/quehry/dependency_cache.xml");
-  private Set<String> conceptCodesInEHR;
+  private DependencyCache dependencyCache;
+  // Stage results from earlier runs, if a directory is configured
+  private final StageStore stageStore = StageStore.fromConfig();
+  private CUISet conceptCodesInEHR;
+  private PatientCUIIndex patientConceptCodes;
 
   /**
    * Processes the end-to-end system.
@@ -32,19 +38,32 @@ public class Run {
   public void process() throws Exception {
     // Load Lexicon
     final Place lexFile = Config.get(Run.class, "lexicon").toPlace();
-    final List<LexiconEntry> lexEntries = ReadLexicon.parseLexicon(lexFile);
-    
+    try (final LexiconRegistry lexicons = new LexiconRegistry(lexFile,
+        Config.get(LogicalTreeFilteringRules.class, "typeRules").toPlace())) {
+      if (Config.get(LexiconRegistry.class, "watch", "false").toBoolean()) {
+        lexicons.watch();
+      }
+      process(lexFile, lexicons);
+    }
+  }
+
+  /**
+   * Processes the end-to-end system with the lexicon from <var>lexFile</var>, as loaded in <var>lexicons</var>.
+   * The whole run uses the version current when it starts, so every configuration, training and evaluation see
+   * the same lexicon even if a new version is swapped in meanwhile.
+   */
+  private void process(final Place lexFile, final LexiconRegistry lexicons) throws Exception {
+    final LexiconRegistry.Version lexicon = lexicons.getCurrent();
+    log.info("Using lexicon version {0} for the whole run", lexicon.getNumber());
     // Load Questions
     final Place questionFile =
         Config.get(Run.class, "questions").toPlace();
-    final ReadQuestions questionReader = new ReadQuestions(questionFile);
-    List<Document> questions = questionReader.readQuestionsWithAnswers();
+    List<Document> questions = readQuestions(questionFile, lexFile);
 
     // Load Questions with additional annotated concepts
     final Place questionsWithAdditionalConceptsFile =
         Config.get(Run.class, "questionsWithAdditionalConcepts").toPlace();
-    final ReadQuestions questionsWithAdditionalConceptsReader = new ReadQuestions(questionsWithAdditionalConceptsFile);
-    List<Document> questionsWithAdditionalConcepts = questionsWithAdditionalConceptsReader.readQuestionsWithAnswers();
+    List<Document> questionsWithAdditionalConcepts = readQuestions(questionsWithAdditionalConceptsFile, lexFile);
 
     questions = questions.stream().skip(10).limit(5).collect(Collectors.toList());
 
@@ -60,7 +79,7 @@ public class Run {
     // Generate LogicalTrees for the questions with original concept annotations
     final Map<String, Boolean> ltCoverageWithGoldConcepts = new HashMap<>();
     final Map<Document, List<LogicalTree>> logicalTrees =
-        generateLogicalTrees(questions, lexEntries, ltCoverageWithGoldConcepts, false);
+        generateLogicalTrees(questions, lexicon, ltCoverageWithGoldConcepts, false);
 
     final Pair<Map<Document, List<LogicalTree>>, List<Document>> filteredPair =
         filterLogicalTreesAndQuestionsWithNoGold(logicalTrees, questions);
@@ -70,9 +89,8 @@ public class Run {
     final Timer timer = Timer.get(Run.class, "leave-one-out");
     timer.start();
     final MachineLogicalTreeScorer scorer = new SVMLogicalTreeScorer();
-    scorer.train(filteredLogicalTreesOnlyGold); // Pre-computing all the features
     final Pair<Double, Map<String, LogicalFormPrediction>> lfAccAndPredPairWithGoldConcepts =
-        scorer.leaveOneOut(logicalTrees, filteredLogicalTreesOnlyGold, logicalTrees);
+        evaluate(scorer, logicalTrees, filteredLogicalTreesOnlyGold, logicalTrees);
     final Map<String, LogicalFormPrediction> lfPredictionsWithGoldConcepts =
             lfAccAndPredPairWithGoldConcepts.getSecond();
     timer.stop();
@@ -83,17 +101,12 @@ public class Run {
     List<Document> questionsCopyWithoutOriginalConcepts =
         questions.stream().map(Document::new).collect(Collectors.toList());
 
-    annotateDependency(questionsCopyWithoutOriginalConcepts);
-
-    // Annotate concepts for these duplicated questions
-    try (ConceptExtractor conceptExtractor = new ConceptExtractor()) {
-      log.info("Automatically annotating concepts...");
-      for (Document question: questionsCopyWithoutOriginalConcepts) {
-        log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
-        conceptExtractor.annotateConcepts(question);
-        log.DBG("All concepts:");
-        printConcepts(question);
-      }
+    // Annotate dependencies and concepts for these duplicated questions
+    annotateDependencyAndConcepts(questionsCopyWithoutOriginalConcepts);
+    for (Document question: questionsCopyWithoutOriginalConcepts) {
+      log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
+      log.DBG("All concepts:");
+      printConcepts(question);
     }
 
     log.info("Calculating recall before filtering the concepts...");
@@ -111,33 +124,33 @@ public class Run {
             .thenComparing(concept -> concept.getText().getCharLength(), Comparator.reverseOrder())
             .thenComparing(concept -> concept.getText().asRawString())
             .thenComparing(Concept::getCUI);
-    final List<Document> questionsCopyWithTopRankedMetaMapConcept =
-        getQuestionsCopyWithConceptsSatisfyingCondition(
-            questions, questionsCopyWithoutOriginalConcepts, conceptScoreComparator);
+    final List<ConceptOverlay> topRankedConceptOverlays =
+        getConceptOverlaysSatisfyingCondition(questionsCopyWithoutOriginalConcepts, conceptScoreComparator);
+    final List<Document> questionsWithTopRankedMetaMapConcept = ConceptOverlay.questions(topRankedConceptOverlays);
+    ConceptOverlay.applyAll(topRankedConceptOverlays);
 
     log.info("  Selected top ranked concepts:");
-    for (Document question: questionsCopyWithTopRankedMetaMapConcept) {
+    for (Document question: questionsWithTopRankedMetaMapConcept) {
       log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
       printConcepts(question);
     }
 
     log.info("Calculating recall after selecting the top ranked concept...");
-    calculateRecallForAnnotatedConcepts(questionsCopyWithTopRankedMetaMapConcept, questionsWithAdditionalConcepts);
+    calculateRecallForAnnotatedConcepts(questionsWithTopRankedMetaMapConcept, questionsWithAdditionalConcepts);
 
     log.info("Generate LogicalTrees for questions with the top ranked concept...");
     final Map<String, Boolean> ltCoverageWithTopRankedConcept = new HashMap<>();
     final Map<Document, List<LogicalTree>> logicalTreesTopRankedConcept =
         generateLogicalTrees(
-            questionsCopyWithTopRankedMetaMapConcept, lexEntries, ltCoverageWithTopRankedConcept, true);
+            questionsWithTopRankedMetaMapConcept, lexicon, ltCoverageWithTopRankedConcept, true);
 
     log.info("Performing leave-one-out evaluation for the questions with top ranked concept...");
     final Pair<Map<Document, List<LogicalTree>>, List<Document>> filteredPairTopRankedConcept =
         filterLogicalTreesAndQuestionsWithNoGold(
-            logicalTreesTopRankedConcept, questionsCopyWithTopRankedMetaMapConcept);
+            logicalTreesTopRankedConcept, questionsWithTopRankedMetaMapConcept);
     final Map<Document, List<LogicalTree>> logicalTreesTopRankedConceptOnlyGold =
         filteredPairTopRankedConcept.getFirst();
     final MachineLogicalTreeScorer scorerEndToEndTopRankedConcept = new SVMLogicalTreeScorer();
-    scorerEndToEndTopRankedConcept.train(logicalTreesTopRankedConceptOnlyGold);
 
     final Map<String, List<LogicalTree>> documentIDtoLogicalTrees =
         logicalTrees.entrySet().stream().collect(Collectors.toMap(
@@ -153,10 +166,12 @@ public class Run {
             ));
 
     final Pair<Double, Map<String, LogicalFormPrediction>> lfAccAndPredPairWithTopRankedConcept =
-        scorerEndToEndTopRankedConcept.leaveOneOut(
+        evaluate(scorerEndToEndTopRankedConcept,
             logicalTreesWithAdditionalConcepts, logicalTreesTopRankedConceptOnlyGold, logicalTreesTopRankedConcept);
     final Map<String, LogicalFormPrediction> lfPredictionsWithTopRankedConcept =
         lfAccAndPredPairWithTopRankedConcept.getSecond();
+    ConceptOverlay.removeAll(topRankedConceptOverlays);
+    setConceptOverlays(lfPredictionsWithTopRankedConcept, topRankedConceptOverlays);
 
 
     log.info("Using the longest concept from MetaMap");
@@ -165,48 +180,56 @@ public class Run {
             .thenComparing(Concept::getScore, Comparator.reverseOrder())
             .thenComparing(concept -> concept.getText().asRawString())
             .thenComparing(Concept::getCUI);
-    final List<Document> questionsCopyWithLongestMetaMapConcept =
-        getQuestionsCopyWithConceptsSatisfyingCondition(
-            questions, questionsCopyWithoutOriginalConcepts, conceptLengthComparator);
+    final List<ConceptOverlay> longestConceptOverlays =
+        getConceptOverlaysSatisfyingCondition(questionsCopyWithoutOriginalConcepts, conceptLengthComparator);
+    final List<Document> questionsWithLongestMetaMapConcept = ConceptOverlay.questions(longestConceptOverlays);
+    ConceptOverlay.applyAll(longestConceptOverlays);
 
     log.info("  Selected longest concepts:");
-    for (Document question: questionsCopyWithLongestMetaMapConcept) {
+    for (Document question: questionsWithLongestMetaMapConcept) {
       log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
       printConcepts(question);
     }
 
     log.info("Calculating recall after selecting the longest concept...");
-    calculateRecallForAnnotatedConcepts(questionsCopyWithLongestMetaMapConcept, questionsWithAdditionalConcepts);
+    calculateRecallForAnnotatedConcepts(questionsWithLongestMetaMapConcept, questionsWithAdditionalConcepts);
 
     log.info("Generate LogicalTrees for questions with the longest concept...");
     final Map<String, Boolean> ltCoverageWithLongestConcept = new HashMap<>();
     final Map<Document, List<LogicalTree>> logicalTreesLongestConcept =
         generateLogicalTrees(
-            questionsCopyWithLongestMetaMapConcept, lexEntries, ltCoverageWithLongestConcept, true);
+            questionsWithLongestMetaMapConcept, lexicon, ltCoverageWithLongestConcept, true);
 
     log.info("Performing leave-one-out evaluation for the questions with longest concept...");
     final Pair<Map<Document, List<LogicalTree>>, List<Document>> filteredPairLongestConcept =
         filterLogicalTreesAndQuestionsWithNoGold(
-            logicalTreesLongestConcept, questionsCopyWithLongestMetaMapConcept);
+            logicalTreesLongestConcept, questionsWithLongestMetaMapConcept);
     final Map<Document, List<LogicalTree>> logicalTreesLongestConceptOnlyGold =
         filteredPairLongestConcept.getFirst();
     final MachineLogicalTreeScorer scorerEndToEndLongestConcept = new SVMLogicalTreeScorer();
-    scorerEndToEndLongestConcept.train(logicalTreesLongestConceptOnlyGold);
 
     final Pair<Double, Map<String, LogicalFormPrediction>> lfAccAndPredPairWithLongestConcept =
-        scorerEndToEndLongestConcept.leaveOneOut(
+        evaluate(scorerEndToEndLongestConcept,
             logicalTreesWithAdditionalConcepts, logicalTreesLongestConceptOnlyGold, logicalTreesLongestConcept);
     final Map<String, LogicalFormPrediction> lfPredictionsWithLongestConcept =
         lfAccAndPredPairWithLongestConcept.getSecond();
+    ConceptOverlay.removeAll(longestConceptOverlays);
+    setConceptOverlays(lfPredictionsWithLongestConcept, longestConceptOverlays);
 
 
     log.info("Filtering concepts based on the ones present in EHR...");
     // Loading the concepts present in EHR
     final Place conceptCodesInEHRFile = Config.get(Run.class, "conceptCodesInEHR").toPlace();
-    final CSV conceptCodesInEHRCsv = new CSV(conceptCodesInEHRFile);
-    this.conceptCodesInEHR =
-        conceptCodesInEHRCsv.getAllUniqueValuesInColumn(conceptCodesInEHRCsv.getHeaderIndex("code"));
-    for (Document question: questionsCopyWithoutOriginalConcepts) {
+    this.conceptCodesInEHR = CUISet.load(conceptCodesInEHRFile, "code");
+    // Optionally, the codes in each patient's own record
+    final String patientConceptCodesFile = Config.get(Run.class, "patientConceptCodes", "").toString();
+    if (!patientConceptCodesFile.isEmpty()) {
+      this.patientConceptCodes =
+          PatientCUIIndex.load(Config.get(Run.class, "patientConceptCodes").toPlace(), "patient", "code");
+    }
+    for (int i = 0; i < questionsCopyWithoutOriginalConcepts.size(); i++) {
+      final Document question = questionsCopyWithoutOriginalConcepts.get(i);
+      final CUISet codesInEHR = getConceptCodesInEHR(questions.get(i));
       log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
       final List<Concept> metaMapConcepts =
           question.getAnnotations(Concept.class).stream().filter(c -> c.getCUI() != null).collect(Collectors.toList());
@@ -216,7 +239,7 @@ public class Run {
           ConceptExtractor.prioritizeReferencesOverMetaMapConcepts(metaMapConcepts, references);
 
       final List<Concept> metaMapConceptsInEHR =
-          metaMapConceptsFiltered.stream().filter(c -> conceptCodesInEHR.contains(c.getCUI()))
+          metaMapConceptsFiltered.stream().filter(c -> codesInEHR.contains(c.getCUICode()))
               .collect(Collectors.toList());
       List<Concept> metaMapConceptsCandidates;
       if (metaMapConceptsInEHR.size() == 0) {
@@ -243,28 +266,29 @@ public class Run {
     // Generate LogicalTrees for the questions with automatically annotated concepts
     final Map<String, Boolean> ltCoverageWithAllMMConcepts = new HashMap<>();
     final Map<Document, List<LogicalTree>> logicalTreesAutoAnnotated =
-            generateLogicalTrees(questionsCopyWithoutOriginalConcepts, lexEntries, ltCoverageWithAllMMConcepts, true);
+            generateLogicalTrees(questionsCopyWithoutOriginalConcepts, lexicon, ltCoverageWithAllMMConcepts, true);
 
     log.info("Performing leave-one-out evaluation for the auto-annotated questions...");
     final Pair<Map<Document, List<LogicalTree>>, List<Document>> filteredPairAutoAnnotated =
         filterLogicalTreesAndQuestionsWithNoGold(logicalTreesAutoAnnotated, questionsCopyWithoutOriginalConcepts);
     final Map<Document, List<LogicalTree>> logicalTreesAutoAnnotatedOnlyGold = filteredPairAutoAnnotated.getFirst();
     final MachineLogicalTreeScorer scorerEndToEnd = new SVMLogicalTreeScorer();
-    scorerEndToEnd.train(logicalTreesAutoAnnotatedOnlyGold);
 
     final Pair<Double, Map<String, LogicalFormPrediction>> lfAccAndPredPairWithAllMMConcepts =
-        scorerEndToEnd.leaveOneOut(
+        evaluate(scorerEndToEnd,
             logicalTreesWithAdditionalConcepts, logicalTreesAutoAnnotatedOnlyGold, logicalTreesAutoAnnotated);
     final Map<String, LogicalFormPrediction> lfPredictionsWithAllMMConcepts = lfAccAndPredPairWithAllMMConcepts.getSecond();
 
 
     log.info("Using the longest concept from MetaMap (after filtering the concepts based on EHR)");
-    final List<Document> questionsCopyWithLongestMetaMapConceptPostEHRFiltering =
-        getQuestionsCopyWithConceptsSatisfyingCondition(
-            questions, questionsCopyWithoutOriginalConcepts, conceptLengthComparator);
+    final List<ConceptOverlay> longestConceptPostEHRFilteringOverlays =
+        getConceptOverlaysSatisfyingCondition(questionsCopyWithoutOriginalConcepts, conceptLengthComparator);
+    final List<Document> questionsWithLongestMetaMapConceptPostEHRFiltering =
+        ConceptOverlay.questions(longestConceptPostEHRFilteringOverlays);
+    ConceptOverlay.applyAll(longestConceptPostEHRFilteringOverlays);
 
     log.info("  Selected longest concepts (post EHR filtering):");
-    for (Document question: questionsCopyWithLongestMetaMapConceptPostEHRFiltering) {
+    for (Document question: questionsWithLongestMetaMapConceptPostEHRFiltering) {
       log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
       printConcepts(question);
     }
@@ -273,27 +297,28 @@ public class Run {
     final Map<String, Boolean> ltCoverageWithLongestConceptPostEHRFiltering = new HashMap<>();
     final Map<Document, List<LogicalTree>> logicalTreesLongestConceptPostEHRFiltering =
         generateLogicalTrees(
-            questionsCopyWithLongestMetaMapConceptPostEHRFiltering,
-            lexEntries,
+            questionsWithLongestMetaMapConceptPostEHRFiltering,
+            lexicon,
             ltCoverageWithLongestConceptPostEHRFiltering,
             true);
 
     log.info("Performing leave-one-out evaluation for the questions with longest concept (post EHR filtering)...");
     final Pair<Map<Document, List<LogicalTree>>, List<Document>> filteredPairLongestConceptPostEHRFiltering =
         filterLogicalTreesAndQuestionsWithNoGold(
-            logicalTreesLongestConceptPostEHRFiltering, questionsCopyWithLongestMetaMapConceptPostEHRFiltering);
+            logicalTreesLongestConceptPostEHRFiltering, questionsWithLongestMetaMapConceptPostEHRFiltering);
     final Map<Document, List<LogicalTree>> logicalTreesLongestConceptPostEHRFilteringOnlyGold =
         filteredPairLongestConceptPostEHRFiltering.getFirst();
     final MachineLogicalTreeScorer scorerEndToEndLongestConceptPostEHRFiltering = new SVMLogicalTreeScorer();
-    scorerEndToEndLongestConceptPostEHRFiltering.train(logicalTreesLongestConceptPostEHRFilteringOnlyGold);
 
     final Pair<Double, Map<String, LogicalFormPrediction>> lfAccAndPredPairWithLongestConceptPostEHRFiltering =
-        scorerEndToEndLongestConceptPostEHRFiltering.leaveOneOut(
+        evaluate(scorerEndToEndLongestConceptPostEHRFiltering,
             logicalTreesWithAdditionalConcepts,
             logicalTreesLongestConceptPostEHRFilteringOnlyGold,
             logicalTreesLongestConceptPostEHRFiltering);
     final Map<String, LogicalFormPrediction> lfPredictionsWithLongestConceptPostEHRFiltering =
         lfAccAndPredPairWithLongestConceptPostEHRFiltering.getSecond();
+    ConceptOverlay.removeAll(longestConceptPostEHRFilteringOverlays);
+    setConceptOverlays(lfPredictionsWithLongestConceptPostEHRFiltering, longestConceptPostEHRFilteringOverlays);
 
 
     // Building a TimeFrame classifier
@@ -344,28 +369,69 @@ public class Run {
               tfPredictions.get(question.getDocumentID()).getFirst(),
               tfPredictions.get(question.getDocumentID()).getSecond());
       predictionMap.put(question.getDocumentID(), prediction);
+    }
+
+    // Execute the runner-up trees of each predicted logical form ahead of time, so their responses are stored
+    final SpeculativeFHIRExecutor speculativeExecutor =
+        Config.get(Run.class, "speculativeFHIR", "false").toBoolean() ? new SpeculativeFHIRExecutor() : null;
+    try {
+      if (Config.get(Run.class, "batchFHIRByPatient", "false").toBoolean()) {
+        final FHIRBatchExecutor fhirBatch = new FHIRBatchExecutor();
+        for (Document question: questions) {
+          predictionMap.get(question.getDocumentID()).submitQueries(fhirBatch);
+        }
+        fhirBatch.executeAll();
+        for (Document question: questions) {
+          predictionMap.get(question.getDocumentID()).collectResponses(fhirBatch);
+        }
+      }
+      if (speculativeExecutor != null) {
+        for (Document question: questions) {
+          predictionMap.get(question.getDocumentID()).prefetchResponses(speculativeExecutor);
+        }
+      }
 
-      predictionsSet.addContent(predictionMap.get(question.getDocumentID()).getXML());
+      for (Document question: questions) {
+        predictionsSet.addContent(predictionMap.get(question.getDocumentID()).getXML());
+      }
+    } finally {
+      if (speculativeExecutor != null) {
+        speculativeExecutor.close();
+      }
     }
 
 
     final Place xmlFile = Place.fromFile("resources/edu/uth/sbmi/olympia/quehry/system_predictions.xml");
     XMLUtil.writeFile(predictionsSet, xmlFile);
+    if (lexicons.getCurrent() != lexicon) {
+      log.warning("Lexicon version {0} was loaded during the run, which used version {1} throughout",
+          lexicons.getCurrent().getNumber(), lexicon.getNumber());
+    }
+  }
+
+  /**
+   * Gives each of the <var>predictions</var> the overlay of its question, so the concepts of its configuration are
+   * the ones its FHIR query reads once the overlays have been removed.
+   */
+  private void setConceptOverlays(final Map<String, LogicalFormPrediction> predictions,
+                                  final List<ConceptOverlay> overlays) {
+    for (final ConceptOverlay overlay : overlays) {
+      final LogicalFormPrediction prediction = predictions.get(overlay.getQuestion().getDocumentID());
+      if (prediction != null) {
+        prediction.setConceptOverlay(overlay);
+      }
+    }
   }
 
-  private List<Document> getQuestionsCopyWithConceptsSatisfyingCondition(
-      List<Document> questionsOriginal,
+  /**
+   * Returns a {@link ConceptOverlay} for each of the <var>questionsWithAllAnnotatedConcepts</var>, keeping the
+   * concept that comes first by the <var>conceptScoreComparator</var> and the references. The overlays share the
+   * questions, so only one configuration of them can be applied at a time.
+   */
+  private List<ConceptOverlay> getConceptOverlaysSatisfyingCondition(
       List<Document> questionsWithAllAnnotatedConcepts,
       Comparator<Concept> conceptScoreComparator) {
-    final List<Document> questionsCopyWithConceptsSatisfyingCondition =
-        questionsOriginal.stream().map(Document::new).collect(Collectors.toList());
-
-    annotateDependency(questionsCopyWithConceptsSatisfyingCondition);
-
-    final Map<String, Document> questionsCopyDocIDMap =
-        questionsCopyWithConceptsSatisfyingCondition.stream().collect(Collectors.toMap(
-            Document::getDocumentID, Function.identity()
-        ));
+    final List<ConceptOverlay> overlays = new ArrayList<>();
 
     for (final Document question: questionsWithAllAnnotatedConcepts) {
       log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
@@ -391,13 +457,9 @@ public class Run {
       log.DBG("metaMapConceptsCandidates (after sort):");
       printConcepts(metaMapConceptsCandidates);
 
-      Document questionWithSelectedConcept =
-          questionsCopyDocIDMap.get(question.getDocumentID());
-
       final List<Concept> conceptSatisfyingConditionList;
       if (conceptSatisfyingCondition != null) {
         conceptSatisfyingConditionList = Collections.singletonList(conceptSatisfyingCondition);
-        copyConceptToQuestion(conceptSatisfyingCondition, questionWithSelectedConcept);
       } else {
         conceptSatisfyingConditionList = Collections.emptyList();
       }
@@ -405,23 +467,30 @@ public class Run {
       log.DBG("conceptSatisfyingCondition:");
       printConcepts(conceptSatisfyingConditionList);
 
-      // Also add references to this question
-      for (final Concept reference: references) {
-        copyConceptToQuestion(reference, questionWithSelectedConcept);
-      }
+      // Also keep the references of this question
+      final List<Concept> overlayConcepts = new ArrayList<>(conceptSatisfyingConditionList);
+      overlayConcepts.addAll(references);
+      overlays.add(new ConceptOverlay(question, overlayConcepts));
     }
 
-    return questionsCopyWithConceptsSatisfyingCondition;
+    return overlays;
   }
 
-  private void copyConceptToQuestion(final Concept concept, final Document question) {
-    final Text conceptText = concept.getText();
-    final Token firstToken = question.getToken(conceptText.getStartTokenOffset());
-    final Token lastToken = question.getToken(conceptText.getEndTokenOffset() - 1);
-    final Text conceptSpan = firstToken.union(lastToken);
-
-    Concept conceptCopy = new Concept(conceptSpan, concept);
-    conceptCopy.attach();
+  /**
+   * Returns the codes in the record of the patient the <var>question</var> is about, if a per-patient index is
+   * configured and has the patient, or else all the codes in the EHR.
+   */
+  private CUISet getConceptCodesInEHR(final Document question) {
+    if (patientConceptCodes != null) {
+      final List<Answer> answers = question.getAnnotations(Answer.class);
+      if (answers.size() == 1) {
+        final CUISet patientCodes = patientConceptCodes.get(answers.get(0).getPatientID());
+        if (patientCodes != null) {
+          return patientCodes;
+        }
+      }
+    }
+    return conceptCodesInEHR;
   }
 
   private Pair<Map<String, Boolean>, Map<String, Boolean>> calculateRecallForAnnotatedConcepts(
@@ -458,7 +527,8 @@ public class Run {
         // To check if this boundary is covered by the auto-annotated concepts
         final Concept goldConcept = congruentConcepts.get(0);
         // To check if any of the gold CUIs are covered by the auto-annotated concepts
-        final Set<String> goldCUIs = congruentConcepts.stream().map(Concept::getCUI).collect(Collectors.toSet());
+        final CUISet goldCUIs =
+            CUISet.of(congruentConcepts.stream().map(Concept::getCUI).collect(Collectors.toList()));
 
         log.DBG("Gold boundary: {0}", goldConcept);
         log.DBG("Additional CUIs:");
@@ -475,7 +545,7 @@ public class Run {
             log.DBG("  Boundary-level match");
             DBG_doesAutoConceptMatchBoundary = true;
           }
-          if (goldCUIs.contains(autoConcept.getCUI())) {
+          if (goldCUIs.contains(autoConcept.getCUICode())) {
             // A match at CUI level
             DBG_doesAutoConceptMatchCUI = true;
             log.DBG("  CUI-level match");
@@ -537,32 +607,45 @@ public class Run {
 
   private Map<Document, List<LogicalTree>> generateLogicalTrees(
       List<Document> questions,
-      List<LexiconEntry> lexEntries,
+      LexiconRegistry.Version lexicon,
       Map<String, Boolean> logicalTreeCoverage,
       boolean allowConceptTokensMatching) {
-    // Create LexiconMatchTrees for each Document
-    log.info("Creating LexiconMatchTrees...");
-    final LexiconMatchTreeGenerator lexTreeGenerator =
-            new LexiconMatchTreeGenerator(lexEntries, allowConceptTokensMatching);
+
+    // Take both kinds of trees from the stage store if they were generated for the same lexicon and questions
+    final StageStore.Key stageKey = stageStore == null ? null
+        : RunStages.generationKey(questions, lexicon, allowConceptTokensMatching);
+    final StageStore.Codec<Pair<Map<Document,List<LexiconMatchTree>>,Map<Document,List<LogicalTree>>>> codec =
+        RunStages.generationCodec(questions, lexicon.getEntries());
+    final Pair<Map<Document,List<LexiconMatchTree>>,Map<Document,List<LogicalTree>>> stored =
+        stageKey == null ? null : stageStore.load(stageKey, codec);
     final Map<Document,List<LexiconMatchTree>> lexiconMatchTrees =
-            new LinkedHashMap<>();
-    for (final Document question : questions) {
-      log.DBG("Question: {0}", question.getDocumentID());
-      final Sentence sentence = question.getOnlyCongruent(Sentence.class);
-      final List<LexiconMatchTree> lexMatchTrees = new ArrayList<>(lexTreeGenerator.generate(sentence));
-      if (lexMatchTrees.isEmpty()) {
-        log.DBG("No lexicon match trees for question");
+        stored != null ? stored.getFirst() : new LinkedHashMap<>();
+    final Map<Document,List<LogicalTree>> logicalTrees =
+        stored != null ? stored.getSecond() : new LinkedHashMap<>();
+
+    // Create LexiconMatchTrees for each Document
+    if (stored == null) {
+      log.info("Creating LexiconMatchTrees...");
+      // Only the concepts differ between the calls for one lexicon version, so the rest is shared through its cache
+      final LexiconMatchTreeGenerator lexTreeGenerator = new LexiconMatchTreeGenerator(
+          lexicon.getGenerationCache(), allowConceptTokensMatching, lexicon.getTypeRules());
+      for (final Document question : questions) {
+        log.DBG("Question: {0}", question.getDocumentID());
+        final Sentence sentence = question.getOnlyCongruent(Sentence.class);
+        final List<LexiconMatchTree> lexMatchTrees = new ArrayList<>(lexTreeGenerator.generate(sentence));
+        if (lexMatchTrees.isEmpty()) {
+          log.DBG("No lexicon match trees for question");
+        }
+        lexiconMatchTrees.put(question, lexMatchTrees);
       }
-      lexiconMatchTrees.put(question, lexMatchTrees);
     }
 
     // Create LogicalTrees
     int DBG_questions_without_gold = 0;
     log.info("Creating LogicalTrees...");
-    final Map<Document,List<LogicalTree>> logicalTrees = new LinkedHashMap<>();
 
     final LogicalTreeGenerator logicalTreeGenerator =
-            new SimpleDependencyBasedLogicalTreeGenerator();
+            new SimpleDependencyBasedLogicalTreeGenerator(lexicon.getTypeRules(), lexicon.getGenerationCache());
     final Set<String> DBG = new TreeSet<>();
     for (final Document question : questions) {
       log.DBG("Question {0}: {1}", question.getDocumentID(), question.wrap());
@@ -587,9 +670,11 @@ public class Run {
         }
       }
 
-      logicalTrees.put(question,
-              logicalTreeGenerator.getLogicalTrees(
-                      lexiconMatchTrees.get(question)));
+      if (stored == null) {
+        logicalTrees.put(question,
+                logicalTreeGenerator.getLogicalTrees(
+                        lexiconMatchTrees.get(question)));
+      }
       final Map<String,Set<String>> matches = new TreeMap<>();
       final Map<String,Set<String>> tokenMatches = new TreeMap<>();
       for (final LexiconMatchTree lexMatchTree : lexiconMatchTrees.get(question)) {
@@ -680,9 +765,40 @@ public class Run {
             DBG_haveGold, questions.size(),
             100.0 * DBG_haveGold / questions.size());
 
+    if (stageKey != null && stored == null) {
+      stageStore.store(stageKey, codec, Pair.of(lexiconMatchTrees, logicalTrees));
+    }
+
     return logicalTrees;
   }
 
+  /**
+   * Performs the leave-one-out evaluation of the <var>scorer</var>, unless an evaluation of the same version of
+   * the scorer on the same logical trees is stored.
+   */
+  private Pair<Double, Map<String, LogicalFormPrediction>> evaluate(
+      final MachineLogicalTreeScorer scorer,
+      final Map<Document, List<LogicalTree>> logicalTreesOriginal,
+      final Map<Document, List<LogicalTree>> logicalTreesToTrain,
+      final Map<Document, List<LogicalTree>> logicalTreesToTest) {
+    final StageStore.Key key = stageStore == null ? null
+        : RunStages.evaluationKey(scorer, logicalTreesOriginal, logicalTreesToTrain, logicalTreesToTest);
+    if (key != null) {
+      final Pair<Double, Map<String, LogicalFormPrediction>> stored =
+          stageStore.load(key, RunStages.evaluationCodec(logicalTreesToTest));
+      if (stored != null) {
+        log.info("Accuracy: {0}%  (stored)", stored.getFirst());
+        return stored;
+      }
+    }
+    final Pair<Double, Map<String, LogicalFormPrediction>> evaluation =
+        scorer.leaveOneOut(logicalTreesOriginal, logicalTreesToTrain, logicalTreesToTest);
+    if (key != null) {
+      stageStore.store(key, RunStages.evaluationCodec(logicalTreesToTest), evaluation);
+    }
+    return evaluation;
+  }
+
   private Pair<Map<Document, List<LogicalTree>>, List<Document>> filterLogicalTreesAndQuestionsWithNoGold(
       final Map<Document,List<LogicalTree>> logicalTrees, final List<Document> questions) {
     Map<Document, List<LogicalTree>> logicalTreesFiltered = new HashMap<>(logicalTrees);
@@ -705,61 +821,121 @@ public class Run {
   }
 
   /**
-   * Annotates the {@link Dependency}s, or loads from a cache if available.
+   * Reads the questions with their answers from the <var>questionFile</var>. If a snapshot <code>directory</code>
+   * is configured, they are read from a {@link QuestionSnapshot} there instead, with their dependencies already
+   * annotated. The snapshot is rebuilt when the <var>questionFile</var>, the <var>lexFile</var> or the annotators
+   * that tokenize and parse the questions change.
+   */
+  private List<Document> readQuestions(final Place questionFile, final Place lexFile) throws IOException {
+    if (Config.get(QuestionSnapshot.class, "directory", "").toString().isEmpty()) {
+      return new ReadQuestions(questionFile).readQuestionsWithAnswers();
+    }
+    final File directory = Config.get(QuestionSnapshot.class, "directory").toPlace().toFile();
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create snapshot directory: " + directory);
+    }
+    final File snapshotFile = new File(directory, questionFile.getName() + ".snapshot");
+    final List<String> annotators = new ArrayList<>();
+    for (final String type : SNAPSHOT_ANNOTATOR_TYPES) {
+      annotators.add(type + "=" + Config.get("edu.uth.sbmi.olympia.text.annotator." + type, "").toString());
+    }
+    final byte[] fingerprint = QuestionSnapshot.fingerprint(annotators, questionFile, lexFile);
+    final QuestionSnapshot snapshot = QuestionSnapshot.open(snapshotFile, fingerprint);
+    if (snapshot != null) {
+      return snapshot.asList();
+    }
+    final List<Document> questions = new ReadQuestions(questionFile).readQuestionsWithAnswers();
+    annotateDependency(questions);
+    QuestionSnapshot.write(snapshotFile, fingerprint, questions);
+    return questions;
+  }
+
+  /**
+   * Annotates the {@link Dependency}s, or loads from a cache if available. Questions not in the cache are
+   * parsed on the configured number of <code>parserThreads</code>.
    */
   private void annotateDependency(final List<Document> questions) {
-    final Map<String,Document> cached = new LinkedHashMap<>();
-    if (dependencyCache.exists()) {
-      final XMLDocumentReader xmlReader = new XMLDocumentReader();
-      try {
-        for (final Document question : xmlReader.readAll(dependencyCache)) {
-          cached.put(question.asRawString(), question);
+    getDependencyCache().annotate(questions, getParserThreads());
+  }
+
+  /**
+   * Returns the configured number of threads that parse the questions not in the {@link DependencyCache}.
+   */
+  private static int getParserThreads() {
+    return Config.get(DependencyCache.class, "parserThreads", "1").toInteger();
+  }
+
+  /**
+   * Annotates the dependencies and concepts of the <var>questions</var>. Concepts stored for the same questions
+   * and concept settings are attached instead of annotated, without starting the concept backend.
+   */
+  private void annotateDependencyAndConcepts(final List<Document> questions) throws Exception {
+    final StageStore.Key key = stageStore == null ? null : RunStages.conceptsKey(questions);
+    if (key != null) {
+      final List<List<Concept>> storedConcepts = stageStore.load(key, RunStages.conceptsCodec(questions));
+      if (storedConcepts != null) {
+        annotateDependency(questions);
+        for (final List<Concept> concepts : storedConcepts) {
+          for (final Concept concept : concepts) {
+            concept.attach();
+          }
         }
-      }
-      catch (IOException ioe) {
-        throw new RuntimeException(ioe);
+        return;
       }
     }
-    
-    log.info("Loaded {0} Questions from Dependency Cache", cached.size());
-    boolean updateCache = false;
-    for (final Document question : questions) {
-      if (cached.containsKey(question.asRawString())) {
-        final Document cachedQuestion = cached.get(question.asRawString());
-        assert cachedQuestion.getTokenLength() == question.getTokenLength();
-        // change the cached question for replacing each concept words with "concept" or "patient" etc.
-        final List<Token> tokens = question.getTokens();
-        for (final Dependency dependency :
-             cachedQuestion.getSub(Dependency.class)) {
-          final Text govCache = dependency.getGovernor();
-          final Text depCache = dependency.getDependent();
-          final Text gov = tokens.get(govCache.getStartTokenOffset()).union(
-                           tokens.get(govCache.getEndTokenOffset()-1));
-          final Text dep = tokens.get(depCache.getStartTokenOffset()).union(
-                           tokens.get(depCache.getEndTokenOffset()-1));
-          assert gov.asRawString().equals(govCache.asRawString());
-          assert dep.asRawString().equals(depCache.asRawString());
-          new Dependency(gov, dep, dependency.getType()).attach();
-        }
-        question.addAnnotatedType(Dependency.TYPE);
+    final int fallbackCount;
+    try (ConceptExtractor conceptExtractor = new ConceptExtractor()) {
+      if (Config.get(Run.class, "pipelineAnnotation", "false").toBoolean()) {
+        log.info("Annotating dependencies and concepts in a pipeline...");
+        annotateDependencyAndConcepts(questions, conceptExtractor);
+      } else {
+        annotateDependency(questions);
+        log.info("Automatically annotating concepts...");
+        conceptExtractor.annotateConcepts(questions);
       }
-      else {
-        log.info("  Not in Dependency Cache: {1}: {0}", question.asRawString(),
-            question.getDocumentID());
-        question.annotate(Dependency.TYPE);
-        cached.put(question.asRawString(), question);
-        updateCache = true;
+      fallbackCount = conceptExtractor.getFallbackCount();
+    }
+    if (key != null) {
+      // Like the concept cache, the stage only keeps concepts the backend itself found
+      if (fallbackCount > 0) {
+        log.warning("Not storing the concepts: {0} questions got fallback concepts", fallbackCount);
+      } else {
+        stageStore.store(key, RunStages.conceptsCodec(questions), RunStages.getConcepts(questions));
       }
     }
-    if (updateCache) {
-      log.info("Updating Dependency Cache");
+  }
+
+  /**
+   * Annotates the dependencies of the <var>questions</var> while their concepts are annotated by the
+   * <var>conceptExtractor</var>, using the configured number of <code>conceptWorkers</code>. The dependencies
+   * are parsed a batch of <code>parserThreads</code> questions at a time, one question per parser thread.
+   */
+  private void annotateDependencyAndConcepts(final List<Document> questions,
+                                             final ConceptExtractor conceptExtractor) throws Exception {
+    final AnnotationPipeline pipeline = new AnnotationPipeline(
+        Config.get(Run.class, "conceptWorkers", "2").toInteger(),
+        Config.get(Run.class, "pipelineQueueSize", "50").toInteger());
+    final int parserThreads = getParserThreads();
+    pipeline.run(questions, Math.max(1, parserThreads),
+        batch -> getDependencyCache().annotate(batch, parserThreads), conceptExtractor::annotateConcepts);
+  }
+
+  /**
+   * Returns the dependency cache, loading it on first use.
+   */
+  private DependencyCache getDependencyCache() {
+    if (dependencyCache == null) {
       try {
-        new XMLDocumentWriter().writeAll(cached.values(), dependencyCache);
+        dependencyCache = new DependencyCache(
+            Config.get(DependencyCache.class, "file",
+                "file:resources/edu/uth/sbmi/olympia/quehry/dependency_cache.tsv").toPlace().toFile(),
+            legacyDependencyCache);
       }
       catch (IOException ioe) {
         throw new RuntimeException(ioe);
       }
     }
+    return dependencyCache;
   }
 
   /**
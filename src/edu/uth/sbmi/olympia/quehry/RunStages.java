@@ -0,0 +1,386 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.DependencyTree;
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.text.Sentence;
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.text.Token;
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Pair;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link StageStore} keys and codecs of the stages {@link Run} stores: the concepts annotated on the
+ * questions, the {@link LexiconMatchTree}s and {@link LogicalTree}s generated for them, and the leave-one-out
+ * evaluation of a scorer. Each key covers what its stage reads, so a change to the scorer's features reuses the
+ * stored concepts and trees, and a change to the lexicon reuses the stored concepts.
+ */
+public class RunStages {
+  private static final Log log = new Log(RunStages.class);
+
+  // Bump a stage's version when a change to its code alters its results
+  static final int CONCEPTS_VERSION = 1;
+  static final int GENERATION_VERSION = 1;
+  static final int EVALUATION_VERSION = 2;
+
+  private RunStages() { }
+
+  /**
+   * Returns the key of the concepts the configured concept backend annotates on the <var>questions</var>.
+   */
+  public static StageStore.Key conceptsKey(final List<Document> questions) throws IOException {
+    final StageStore.Key key = StageStore.key("concepts", CONCEPTS_VERSION)
+        .add(Config.get(ConceptExtractor.class, "backend", "metamap").toString())
+        .add(Config.get(ConceptExtractor.class, "referencePatterns").toPlace())
+        .add(Config.get(MetaMapClient.class, "specialTermsToExclude").toPlace())
+        .add(Config.get(MetaMapClient.class, "mmServerVersion", "").toString())
+        .add(Config.get(MetaMapClient.class, "fallbackDictionary", "").toString())
+        .add(Config.get(MetaMapLiteClient.class, "indexDir", "").toString())
+        .add(questions.size());
+    for (final Document question : questions) {
+      key.add(question.getDocumentID()).add(question.asRawString());
+      for (final Token token : question.getTokens()) {
+        key.add(token.getStartCharOffset()).add(token.getEndCharOffset());
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Returns the {@link Concept}s of each of the <var>questions</var>.
+   */
+  public static List<List<Concept>> getConcepts(final List<Document> questions) {
+    final List<List<Concept>> concepts = new ArrayList<>(questions.size());
+    for (final Document question : questions) {
+      concepts.add(question.getAnnotations(Concept.class));
+    }
+    return concepts;
+  }
+
+  /**
+   * Returns the codec of the concepts of each of the <var>questions</var>. The concepts read are on the
+   * questions but not attached to them.
+   */
+  public static StageStore.Codec<List<List<Concept>>> conceptsCodec(final List<Document> questions) {
+    return new StageStore.Codec<List<List<Concept>>>() {
+      @Override
+      public void write(final DataOutputStream out, final List<List<Concept>> concepts) throws IOException {
+        out.writeInt(concepts.size());
+        for (final List<Concept> questionConcepts : concepts) {
+          out.writeInt(questionConcepts.size());
+          for (final Concept concept : questionConcepts) {
+            QuestionSnapshot.writeSpan(out, concept);
+            QuestionSnapshot.writeString(out, concept.getType());
+            QuestionSnapshot.writeString(out, concept.getPOS());
+            QuestionSnapshot.writeString(out, concept.getCUI());
+            QuestionSnapshot.writeString(out, concept.getValue());
+            out.writeBoolean(concept.getScore() != null);
+            out.writeInt(concept.getScore() != null ? concept.getScore() : 0);
+          }
+        }
+      }
+
+      @Override
+      public List<List<Concept>> read(final ByteBuffer in) {
+        checkQuestionCount(in, questions);
+        final List<List<Concept>> concepts = new ArrayList<>(questions.size());
+        for (final Document question : questions) {
+          final int conceptCount = in.getInt();
+          final List<Concept> questionConcepts = new ArrayList<>(conceptCount);
+          for (int i = 0; i < conceptCount; i++) {
+            final Text span = QuestionSnapshot.readSpan(in, question);
+            final String type = QuestionSnapshot.readString(in);
+            final String pos = QuestionSnapshot.readString(in);
+            final String cui = QuestionSnapshot.readString(in);
+            final String value = QuestionSnapshot.readString(in);
+            final boolean hasScore = in.get() != 0;
+            final int score = in.getInt();
+            questionConcepts.add(new Concept(span, type, pos, cui, value, hasScore ? score : null));
+          }
+          concepts.add(questionConcepts);
+        }
+        return concepts;
+      }
+    };
+  }
+
+  /**
+   * Returns the key of the trees generated for the <var>questions</var>, as they are annotated now, with the
+   * <var>lexicon</var>.
+   */
+  public static StageStore.Key generationKey(final List<Document> questions,
+                                             final LexiconRegistry.Version lexicon,
+                                             final boolean allowConceptTokensMatching) {
+    final StageStore.Key key = StageStore.key("generation", GENERATION_VERSION)
+        .add(lexicon.getFingerprint())
+        .add(allowConceptTokensMatching)
+        .add(questions.size());
+    for (final Document question : questions) {
+      key.add(GenerationCache.key(question.getOnlyCongruent(Sentence.class)));
+      addConcepts(key, question);
+    }
+    return key;
+  }
+
+  /**
+   * Returns the codec of the {@link LexiconMatchTree}s and {@link LogicalTree}s generated for each of the
+   * <var>questions</var> with the lexicon <var>entries</var>. Lexicon matches are stored as the index of their
+   * entry and their token offsets in the sentence, and logical trees as the index of their match tree and their
+   * tree.
+   */
+  public static StageStore.Codec<Pair<Map<Document,List<LexiconMatchTree>>,Map<Document,List<LogicalTree>>>>
+      generationCodec(final List<Document> questions, final List<LexiconEntry> entries) {
+    final Map<LexiconEntry,Integer> entryIndex = new IdentityHashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      entryIndex.put(entries.get(i), i);
+    }
+    return new StageStore.Codec<Pair<Map<Document,List<LexiconMatchTree>>,Map<Document,List<LogicalTree>>>>() {
+      @Override
+      public void write(final DataOutputStream out,
+                        final Pair<Map<Document,List<LexiconMatchTree>>,Map<Document,List<LogicalTree>>> generated)
+          throws IOException {
+        out.writeInt(questions.size());
+        for (final Document question : questions) {
+          final int start = question.getOnlyCongruent(Sentence.class).getStartTokenOffset();
+          final List<LexiconMatchTree> matchTrees = generated.getFirst().get(question);
+          out.writeInt(matchTrees.size());
+          for (final LexiconMatchTree matchTree : matchTrees) {
+            out.writeInt(matchTree.getLexiconMatches().size());
+            for (final LexiconMatch match : matchTree.getLexiconMatches()) {
+              final Integer index = entryIndex.get(match.getEntry());
+              if (index == null) {
+                // A default entry for a token the lexicon does not cover
+                out.writeInt(-1);
+                out.writeInt(match.getEntry().getLineNumber());
+              } else {
+                out.writeInt(index);
+              }
+              out.writeInt(match.getTokens().size());
+              for (final Token token : match.getTokens()) {
+                out.writeInt(token.getTokenOffset() - start);
+              }
+            }
+          }
+          final List<LogicalTree> logicalTrees = generated.getSecond().get(question);
+          out.writeInt(logicalTrees.size());
+          for (final LogicalTree logicalTree : logicalTrees) {
+            out.writeInt(indexOf(matchTrees, logicalTree.getLexiconMatchTree()));
+            QuestionSnapshot.writeTree(out, logicalTree.getRoot());
+          }
+        }
+      }
+
+      @Override
+      public Pair<Map<Document,List<LexiconMatchTree>>,Map<Document,List<LogicalTree>>> read(final ByteBuffer in) {
+        checkQuestionCount(in, questions);
+        final Map<Document,List<LexiconMatchTree>> lexiconMatchTrees = new LinkedHashMap<>();
+        final Map<Document,List<LogicalTree>> logicalTrees = new LinkedHashMap<>();
+        for (final Document question : questions) {
+          final Sentence sentence = question.getOnlyCongruent(Sentence.class);
+          final List<Token> tokens = sentence.getTokens();
+          final DependencyTree depTree = new DependencyTree(sentence);
+          final List<LexiconMatchTree> matchTrees = new ArrayList<>();
+          final int matchTreeCount = in.getInt();
+          for (int i = 0; i < matchTreeCount; i++) {
+            final LexiconMatchTree matchTree = new LexiconMatchTree(depTree);
+            final int matchCount = in.getInt();
+            for (int j = 0; j < matchCount; j++) {
+              final int index = in.getInt();
+              final int lineNum = index < 0 ? in.getInt() : 0;
+              final List<Token> matchTokens = new ArrayList<>();
+              final int tokenCount = in.getInt();
+              for (int k = 0; k < tokenCount; k++) {
+                matchTokens.add(tokens.get(in.getInt()));
+              }
+              final LexiconEntry entry;
+              if (index < 0) {
+                final String token = matchTokens.get(0).asRawString();
+                entry = new LexiconEntry(lineNum + ":" + token, token, "null", lineNum);
+              } else {
+                entry = entries.get(index);
+              }
+              matchTree.addLexiconMatch(new LexiconMatch(entry, Collections.unmodifiableList(matchTokens)));
+            }
+            matchTrees.add(matchTree);
+          }
+          final List<LogicalTree> questionLogicalTrees = new ArrayList<>();
+          final int logicalTreeCount = in.getInt();
+          for (int i = 0; i < logicalTreeCount; i++) {
+            final LexiconMatchTree matchTree = matchTrees.get(in.getInt());
+            questionLogicalTrees.add(new LogicalTree(QuestionSnapshot.readTree(in), matchTree));
+          }
+          lexiconMatchTrees.put(question, matchTrees);
+          logicalTrees.put(question, questionLogicalTrees);
+        }
+        return Pair.of(lexiconMatchTrees, logicalTrees);
+      }
+    };
+  }
+
+  /**
+   * Returns the key of the leave-one-out evaluation of the <var>scorer</var> with the given logical trees, as
+   * taken by {@link MachineLogicalTreeScorer#leaveOneOut}.
+   */
+  public static StageStore.Key evaluationKey(final MachineLogicalTreeScorer scorer,
+                                             final Map<Document,List<LogicalTree>> logicalTreesOriginal,
+                                             final Map<Document,List<LogicalTree>> logicalTreesToTrain,
+                                             final Map<Document,List<LogicalTree>> logicalTreesToTest) {
+    final StageStore.Key key = StageStore.key("evaluation", EVALUATION_VERSION)
+        .add(scorer.getClass().getName())
+        .add(scorer.getVersion());
+    addLogicalTrees(key, logicalTreesOriginal);
+    addLogicalTrees(key, logicalTreesToTrain);
+    addLogicalTrees(key, logicalTreesToTest);
+    return key;
+  }
+
+  /**
+   * Returns the codec of a leave-one-out evaluation of the questions in <var>logicalTreesToTest</var>. Each
+   * prediction is stored as the index of its predicted tree among the candidates of its question, followed by the
+   * indices of the candidates in rank order; its concepts are taken from the predicted tree again when it is
+   * read.
+   */
+  public static StageStore.Codec<Pair<Double,Map<String,LogicalFormPrediction>>> evaluationCodec(
+      final Map<Document,List<LogicalTree>> logicalTreesToTest) {
+    return new StageStore.Codec<Pair<Double,Map<String,LogicalFormPrediction>>>() {
+      @Override
+      public void write(final DataOutputStream out, final Pair<Double,Map<String,LogicalFormPrediction>> evaluation)
+          throws IOException {
+        out.writeDouble(evaluation.getFirst());
+        out.writeInt(evaluation.getSecond().size());
+        for (final Map.Entry<String,LogicalFormPrediction> entry : evaluation.getSecond().entrySet()) {
+          final LogicalFormPrediction prediction = entry.getValue();
+          final List<LogicalTree> candidates = logicalTreesToTest.get(prediction.getQuestion());
+          QuestionSnapshot.writeString(out, entry.getKey());
+          out.writeInt(indexOf(candidates, prediction.getPredictedLogicalTree()));
+          out.writeBoolean(prediction.isPredictedLogicalTreeMatchGold());
+          out.writeBoolean(prediction.isPredictedConceptsMatchGoldCUI());
+          out.writeBoolean(prediction.isPredictedConceptsMatchGoldBoundary());
+          final Map<LogicalTree,Integer> candidateIndices = new IdentityHashMap<>();
+          for (int i = 0; i < candidates.size(); i++) {
+            candidateIndices.put(candidates.get(i), i);
+          }
+          out.writeInt(prediction.getRankedLogicalTrees().size());
+          for (final LogicalTree ranked : prediction.getRankedLogicalTrees()) {
+            out.writeInt(candidateIndices.get(ranked));
+          }
+        }
+      }
+
+      @Override
+      public Pair<Double,Map<String,LogicalFormPrediction>> read(final ByteBuffer in) {
+        final Map<String,Document> questions = new HashMap<>();
+        for (final Document question : logicalTreesToTest.keySet()) {
+          questions.put(question.getDocumentID(), question);
+        }
+        final double accuracy = in.getDouble();
+        final Map<String,LogicalFormPrediction> predictions = new LinkedHashMap<>();
+        final int predictionCount = in.getInt();
+        for (int i = 0; i < predictionCount; i++) {
+          final String documentID = QuestionSnapshot.readString(in);
+          final Document question = questions.get(documentID);
+          if (question == null) {
+            throw new IllegalStateException("No logical trees for stored prediction: " + documentID);
+          }
+          final int index = in.getInt();
+          final boolean predictedLogicalTreeMatchGold = in.get() != 0;
+          final boolean predictedConceptsMatchGoldCUI = in.get() != 0;
+          final boolean predictedConceptsMatchGoldBoundary = in.get() != 0;
+          final List<LogicalTree> rankedLogicalTrees = new ArrayList<>();
+          final int rankedCount = in.getInt();
+          for (int rank = 0; rank < rankedCount; rank++) {
+            rankedLogicalTrees.add(logicalTreesToTest.get(question).get(in.getInt()));
+          }
+          final LogicalTree predictedLogicalTree = index < 0 ? null : logicalTreesToTest.get(question).get(index);
+          final List<Concept> predictedConcepts = predictedLogicalTree == null ? new ArrayList<>()
+              : LogicalTree.getMedicalConcepts(predictedLogicalTree, question);
+          final LogicalFormPrediction prediction = new LogicalFormPrediction(
+              question,
+              predictedLogicalTree,
+              predictedLogicalTreeMatchGold,
+              predictedConcepts,
+              predictedConceptsMatchGoldCUI,
+              predictedConceptsMatchGoldBoundary);
+          prediction.setRankedLogicalTrees(rankedLogicalTrees);
+          predictions.put(documentID, prediction);
+        }
+        return Pair.of(accuracy, predictions);
+      }
+    };
+  }
+
+  /**
+   * Adds the questions and candidate trees in <var>logicalTrees</var> to the <var>key</var>, ordered by question
+   * ID, as the scorer trains on them in whatever order the map has.
+   */
+  private static void addLogicalTrees(final StageStore.Key key, final Map<Document,List<LogicalTree>> logicalTrees) {
+    final List<Document> questions = new ArrayList<>(logicalTrees.keySet());
+    questions.sort(Comparator.comparing(Document::getDocumentID));
+    key.add(questions.size());
+    for (final Document question : questions) {
+      key.add(question.getDocumentID()).add(question.asRawString());
+      final Collection<LogicalForm> logicalForms = question.getSub(LogicalForm.class);
+      key.add(logicalForms.size());
+      for (final LogicalForm logicalForm : logicalForms) {
+        key.add(logicalForm.simpleLogicalForm());
+      }
+      addConcepts(key, question);
+      key.add(logicalTrees.get(question).size());
+      for (final LogicalTree logicalTree : logicalTrees.get(question)) {
+        key.add(logicalTree.getRoot().treeString());
+        final List<LexiconMatch> matches = logicalTree.getLexiconMatchTree().getLexiconMatches();
+        key.add(matches.size());
+        for (final LexiconMatch match : matches) {
+          key.add(match.getEntry().getID()).add(match.getEntry().getLogicalForm());
+          for (final Token token : match.getTokens()) {
+            key.add(token.getTokenOffset());
+          }
+        }
+      }
+    }
+  }
+
+  private static void addConcepts(final StageStore.Key key, final Document question) {
+    final List<Concept> concepts = question.getAnnotations(Concept.class);
+    key.add(concepts.size());
+    for (final Concept concept : concepts) {
+      key.add(concept.getStartTokenOffset()).add(concept.getEndTokenOffset())
+          .add(concept.getType()).add(concept.getCUI()).add(concept.getValue());
+    }
+  }
+
+  private static void checkQuestionCount(final ByteBuffer in, final List<Document> questions) {
+    final int count = in.getInt();
+    if (count != questions.size()) {
+      throw new IllegalStateException("Stored result is for " + count + " questions, not " + questions.size());
+    }
+  }
+
+  /**
+   * Returns the index of the <var>item</var> itself in the <var>list</var>, or -1 if it is not there.
+   */
+  private static <T> int indexOf(final List<T> list, final T item) {
+    if (item == null) {
+      return -1;
+    }
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i) == item) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
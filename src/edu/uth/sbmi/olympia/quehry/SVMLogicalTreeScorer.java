@@ -8,6 +8,9 @@ import edu.uth.sbmi.olympia.ml.svm_multi.LibLinearSVM;
 import edu.uth.sbmi.olympia.util.Log;
 import edu.uth.sbmi.olympia.util.TreeNode;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -21,6 +24,15 @@ import java.util.TreeSet;
 public class SVMLogicalTreeScorer extends MachineLogicalTreeScorer {
   private static final Log log = new Log(SVMLogicalTreeScorer.class);
 
+  // Bump when changing the features below
+  private static final int VERSION = 1;
+
+  // LibLinear keeps the random generator of its solvers in a static field, so each thread trains with a copy of
+  // LibLinear of its own, loaded by its own class loader
+  private static final ThreadLocal<ClassLoader> LIBLINEAR_LOADERS =
+      ThreadLocal.withInitial(() -> new IsolatingClassLoader(LibLinearSVM.class.getClassLoader(),
+          LibLinearSVM.class.getName(), "liblinear."));
+
   private SVMMulti<LogicalTree> svm;
 
   /**
@@ -29,13 +41,47 @@ public class SVMLogicalTreeScorer extends MachineLogicalTreeScorer {
   @Override
   protected SVMMulti<LogicalTree> getClassifier() {
     if (svm == null) {
-      svm = new LibLinearSVM<LogicalTree>();
+      svm = newLibLinearSVM();
       svm.setTargetFeature(getTargetFeature());
       svm.setFeatures(getFeatures());
     }
     return svm;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getVersion() {
+    return VERSION;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected SVMLogicalTreeScorer newFold() {
+    final SVMLogicalTreeScorer fold = new SVMLogicalTreeScorer();
+    fold.svm = newLibLinearSVM();
+    fold.svm.setTargetFeature(getClassifier().getTargetFeature());
+    fold.svm.setFeatures(getClassifier().getFeatures());
+    return fold;
+  }
+
+  /**
+   * Returns a new {@link LibLinearSVM} from the copy of LibLinear of the current thread. It is to be trained on
+   * the same thread.
+   */
+  @SuppressWarnings("unchecked")
+  private static SVMMulti<LogicalTree> newLibLinearSVM() {
+    try {
+      return (SVMMulti<LogicalTree>) LIBLINEAR_LOADERS.get().loadClass(LibLinearSVM.class.getName()).newInstance();
+    }
+    catch (ReflectiveOperationException roe) {
+      throw new RuntimeException(roe);
+    }
+  }
+
   /**
    * Returns the {@link Feature}s to use for this
    * <code>SVMLogicalTreeScorer</code>.
@@ -106,4 +152,61 @@ public class SVMLogicalTreeScorer extends MachineLogicalTreeScorer {
     return features;
   }
 
+  /**
+   * Class loader that loads its own copy of the classes whose names start with one of the given prefixes, from
+   * the class files of its parent, and leaves every other class to its parent.
+   */
+  private static class IsolatingClassLoader extends ClassLoader {
+    private final String[] prefixes;
+
+    private IsolatingClassLoader(final ClassLoader parent, final String... prefixes) {
+      super(parent);
+      this.prefixes = prefixes;
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+      if (!isIsolated(name)) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+          loaded = findClass(name);
+        }
+        if (resolve) {
+          resolveClass(loaded);
+        }
+        return loaded;
+      }
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+      try (final InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+        if (in == null) {
+          throw new ClassNotFoundException(name);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          bytes.write(buffer, 0, read);
+        }
+        return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+      }
+      catch (IOException ioe) {
+        throw new ClassNotFoundException(name, ioe);
+      }
+    }
+
+    private boolean isIsolated(final String name) {
+      for (final String prefix : prefixes) {
+        if (name.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
 }
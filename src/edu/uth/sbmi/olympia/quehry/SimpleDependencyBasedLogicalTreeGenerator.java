@@ -28,8 +28,35 @@ import java.util.Set;
 public class SimpleDependencyBasedLogicalTreeGenerator extends LogicalTreeGenerator {
   private static final Log log = new Log(SimpleDependencyBasedLogicalTreeGenerator.class);
 
-  private final LogicalTreeFilteringRules logicalTreeFilter =
-      new LogicalTreeFilteringRules();
+  private final LogicalTreeFilteringRules logicalTreeFilter;
+  private final GenerationCache cache;
+
+  /**
+   * Creates a new <code>SimpleDependencyBasedLogicalTreeGenerator</code> with
+   * the configured type rules.
+   */
+  public SimpleDependencyBasedLogicalTreeGenerator() {
+    this(new LogicalTreeFilteringRules());
+  }
+
+  /**
+   * Creates a new <code>SimpleDependencyBasedLogicalTreeGenerator</code>
+   * filtering the trees with the given <var>typeRules</var>.
+   */
+  public SimpleDependencyBasedLogicalTreeGenerator(final LogicalTreeFilteringRules typeRules) {
+    this(typeRules, null);
+  }
+
+  /**
+   * Creates a new <code>SimpleDependencyBasedLogicalTreeGenerator</code>
+   * filtering the trees with the given <var>typeRules</var> and reusing the
+   * generated trees in the <var>cache</var>.
+   */
+  public SimpleDependencyBasedLogicalTreeGenerator(final LogicalTreeFilteringRules typeRules,
+                                                   final GenerationCache cache) {
+    this.logicalTreeFilter = typeRules;
+    this.cache = cache;
+  }
 
   /**
    * {@inheritDoc}
@@ -63,7 +90,8 @@ public class SimpleDependencyBasedLogicalTreeGenerator extends LogicalTreeGenera
       return new ArrayList<>();
     }
 
-    final List<TreeNode<String>> trees = runGenerationRules(nullPrunedTree);
+    final List<TreeNode<String>> trees = cache == null ? runGenerationRules(nullPrunedTree) :
+        cache.getGeneratedTrees(nullPrunedTree, this::runGenerationRules);
     log.fine("Generated {0} LogicalTrees", trees.size());
     log.DBG("Generated {0} LogicalTrees", trees.size());
 
@@ -0,0 +1,156 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Text;
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of the token spans of a set of {@link Concept}s from one document, answering containment queries by
+ * binary search instead of comparing every pair of concepts. As with {@link Text#isSuper(Text)}, a span is
+ * <i>within</i> another if it starts no earlier and ends no later, so congruent spans are within each other.
+ */
+public class SpanIndex {
+  private static final Log log = new Log(SpanIndex.class);
+
+  // Sorted by start token offset, ties in the order given
+  private final Concept[] concepts;
+  private final int[] order;
+  private final int[] starts;
+  private final int[] ends;
+  // Positions of the concepts with the latest and second latest ends among concepts[0..i]
+  private final int[] latest;
+  private final int[] secondLatest;
+
+  /**
+   * Creates a new <code>SpanIndex</code> of the <var>concepts</var>. A concept given more than once is indexed
+   * once.
+   */
+  public SpanIndex(final Collection<Concept> concepts) {
+    final Set<Concept> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    final List<Concept> distinct = new ArrayList<>(concepts.size());
+    for (final Concept concept : concepts) {
+      if (seen.add(concept)) {
+        distinct.add(concept);
+      }
+    }
+    final List<Integer> sorted = new ArrayList<>(distinct.size());
+    for (int i = 0; i < distinct.size(); i++) {
+      sorted.add(i);
+    }
+    // List.sort is stable, so concepts with the same start keep their order
+    sorted.sort((i1, i2) -> Integer.compare(start(distinct.get(i1)), start(distinct.get(i2))));
+
+    final int size = distinct.size();
+    this.concepts = new Concept[size];
+    this.order = new int[size];
+    this.starts = new int[size];
+    this.ends = new int[size];
+    this.latest = new int[size];
+    this.secondLatest = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = sorted.get(i);
+      this.concepts[i] = distinct.get(order[i]);
+      starts[i] = start(this.concepts[i]);
+      ends[i] = end(this.concepts[i]);
+      if (i == 0) {
+        latest[i] = 0;
+        secondLatest[i] = -1;
+      } else if (ends[i] > ends[latest[i - 1]]) {
+        latest[i] = i;
+        secondLatest[i] = latest[i - 1];
+      } else {
+        latest[i] = latest[i - 1];
+        secondLatest[i] = secondLatest[i - 1] == -1 || ends[i] > ends[secondLatest[i - 1]]
+            ? i : secondLatest[i - 1];
+      }
+    }
+  }
+
+  /**
+   * Returns the number of distinct concepts in this index.
+   */
+  public int size() {
+    return concepts.length;
+  }
+
+  /**
+   * Returns true if the <var>span</var> is within the span of any indexed concept.
+   */
+  public boolean isWithinAny(final Text span) {
+    final int last = lastStartingBy(span.getStartTokenOffset());
+    return last >= 0 && ends[latest[last]] >= span.getEndTokenOffset();
+  }
+
+  /**
+   * Returns true if the <var>concept</var> is within the span of any indexed concept other than itself.
+   */
+  public boolean isWithinOther(final Concept concept) {
+    final int last = lastStartingBy(start(concept));
+    if (last < 0) {
+      return false;
+    }
+    final int candidate = concepts[latest[last]] != concept ? latest[last] : secondLatest[last];
+    return candidate >= 0 && ends[candidate] >= end(concept);
+  }
+
+  /**
+   * Returns the indexed concept with the most characters that is within the <var>span</var>, the first given
+   * on ties, or <code>null</code> if there is none.
+   */
+  public Concept getLongestWithin(final Text span) {
+    final int spanEnd = span.getEndTokenOffset();
+    int longest = -1;
+    for (int i = firstStartingFrom(span.getStartTokenOffset()); i < concepts.length && starts[i] <= spanEnd; i++) {
+      if (ends[i] > spanEnd) {
+        continue;
+      }
+      if (longest == -1 || compareLength(i, longest) > 0
+          || (compareLength(i, longest) == 0 && order[i] < order[longest])) {
+        longest = i;
+      }
+    }
+    return longest == -1 ? null : concepts[longest];
+  }
+
+  /**
+   * Returns the position of the last concept starting at or before the <var>offset</var>, or -1.
+   */
+  private int lastStartingBy(final int offset) {
+    int low = 0;
+    int high = starts.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (starts[mid] <= offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - 1;
+  }
+
+  /**
+   * Returns the position of the first concept starting at or after the <var>offset</var>.
+   */
+  private int firstStartingFrom(final int offset) {
+    return lastStartingBy(offset - 1) + 1;
+  }
+
+  private int compareLength(final int i, final int j) {
+    return Integer.compare(concepts[i].getText().getCharLength(), concepts[j].getText().getCharLength());
+  }
+
+  private static int start(final Concept concept) {
+    return concept.getText().getStartTokenOffset();
+  }
+
+  private static int end(final Concept concept) {
+    return concept.getText().getEndTokenOffset();
+  }
+}
@@ -0,0 +1,227 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.text.Document;
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serving mode that executes the top-k scored {@link LogicalTree}s of a question concurrently instead of only
+ * the best one. The answer of the highest ranked tree that returns something is used; once the deadline passes
+ * the best answer received so far is used instead. Queries still in flight are cancelled, which kills their
+ * FHIR driver processes. An evaluation keeps the answer of its predicted tree instead, and only uses
+ * {@link #prefetchRunnersUp} to execute the runner-up trees ahead of time.
+ */
+public class SpeculativeFHIRExecutor implements AutoCloseable {
+  private static final Log log = new Log(SpeculativeFHIRExecutor.class);
+
+  private final int topK;
+  private final long deadlineMillis;
+  private final ExecutorService executor;
+
+  /**
+   * Creates a new <code>SpeculativeFHIRExecutor</code> using the configured <code>topK</code>,
+   * <code>deadlineMillis</code> and <code>threads</code>.
+   */
+  public SpeculativeFHIRExecutor() {
+    this(Config.get(SpeculativeFHIRExecutor.class, "topK", "3").toInteger(),
+        Config.get(SpeculativeFHIRExecutor.class, "deadlineMillis", "10000").toInteger(),
+        Config.get(SpeculativeFHIRExecutor.class, "threads", "6").toInteger());
+  }
+
+  /**
+   * Creates a new <code>SpeculativeFHIRExecutor</code> running up to <var>topK</var> trees per question on
+   * <var>threads</var> threads and waiting at most <var>deadlineMillis</var> for the best answer.
+   * @throws IllegalArgumentException If any of the arguments is not positive.
+   */
+  public SpeculativeFHIRExecutor(final int topK, final long deadlineMillis, final int threads) {
+    if (topK < 1 || deadlineMillis < 1 || threads < 1) {
+      throw new IllegalArgumentException("topK, deadlineMillis and threads must be positive");
+    }
+    this.topK = topK;
+    this.deadlineMillis = deadlineMillis;
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "speculative-fhir-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Answers the <var>question</var> by executing the top-k of the candidate <var>logicalTrees</var>, as ranked
+   * by the <var>scorer</var>, concurrently.
+   * @return the {@link LogicalTree} whose answer was used and its {@link FHIRResponse}, or <code>null</code> if
+   *     there are no candidates or no query finished before the deadline.
+   */
+  public Pair<LogicalTree, FHIRResponse> answer(
+      final LogicalTreeScorer scorer,
+      final List<LogicalTree> logicalTrees,
+      final Document question,
+      final TimeFrame timeFrame) {
+    if (logicalTrees.isEmpty()) {
+      return null;
+    }
+    final List<LogicalTree> ranked = new ArrayList<>();
+    for (final Pair<LogicalTree, Double> candidate : scorer.getTopPredictions(logicalTrees, topK)) {
+      ranked.add(candidate.getFirst());
+    }
+    return answer(ranked, question, timeFrame);
+  }
+
+  /**
+   * Answers the <var>question</var> by executing the top-k of the <var>rankedLogicalTrees</var>, already
+   * ranked best first, concurrently.
+   * @return the {@link LogicalTree} whose answer was used and its {@link FHIRResponse}, or <code>null</code> if
+   *     there are no candidates or no query finished before the deadline.
+   */
+  public Pair<LogicalTree, FHIRResponse> answer(
+      final List<LogicalTree> rankedLogicalTrees,
+      final Document question,
+      final TimeFrame timeFrame) {
+    if (rankedLogicalTrees.isEmpty()) {
+      return null;
+    }
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+    // Queries are built here: only the driver calls run on the pool, so the question is never shared
+    final List<LogicalTree> ranked = rankedLogicalTrees.subList(0, Math.min(topK, rankedLogicalTrees.size()));
+    final List<Future<FHIRResponse>> futures = new ArrayList<>();
+    for (final LogicalTree candidate : ranked) {
+      final FHIRQuery query = FHIRClient.createQuery(candidate, question, timeFrame, false);
+      futures.add(executor.submit(() -> FHIRClient.execute(query)));
+    }
+
+    try {
+      // Wait for the candidates in rank order; a lower ranked answer is only used after the deadline
+      for (int rank = 0; rank < futures.size(); rank++) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          break;
+        }
+        final FHIRResponse response = getQuietly(futures.get(rank), remaining);
+        if (hasAnswer(response)) {
+          log.DBG("Using answer of rank {0} of {1}", rank + 1, futures.size());
+          return Pair.of(ranked.get(rank), response);
+        }
+      }
+
+      log.DBG("No useful answer from the top {0} trees before the deadline", futures.size());
+      Pair<LogicalTree, FHIRResponse> fallback = null;
+      for (int rank = 0; rank < futures.size(); rank++) {
+        final Future<FHIRResponse> future = futures.get(rank);
+        if (future.isDone() && !future.isCancelled()) {
+          final FHIRResponse response = getQuietly(future, 0);
+          if (hasAnswer(response)) {
+            return Pair.of(ranked.get(rank), response);
+          }
+          if (fallback == null && response != null) {
+            fallback = Pair.of(ranked.get(rank), response);
+          }
+        }
+      }
+      return fallback;
+    } finally {
+      for (final Future<FHIRResponse> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Starts executing the <var>logicalTree</var> for the <var>question</var>.
+   * @return the future response of the <var>logicalTree</var>, or <code>null</code> if it has no FHIR query.
+   */
+  public Future<FHIRResponse> submit(
+      final LogicalTree logicalTree,
+      final Document question,
+      final TimeFrame timeFrame) {
+    // Queries are built here: only the driver calls run on the pool, so the question is never shared
+    final FHIRQuery query = FHIRClient.createQuery(logicalTree, question, timeFrame, false);
+    return query == null ? null : executor.submit(() -> FHIRClient.execute(query));
+  }
+
+  /**
+   * Starts executing the best of the <var>rankedLogicalTrees</var> other than the <var>logicalTree</var>, so
+   * there are top-k trees in all. Their responses are not returned, only stored for later runs, such as one
+   * with a different scorer.
+   */
+  public void prefetchRunnersUp(
+      final LogicalTree logicalTree,
+      final List<LogicalTree> rankedLogicalTrees,
+      final Document question,
+      final TimeFrame timeFrame) {
+    int submitted = 1;
+    for (final LogicalTree candidate : rankedLogicalTrees) {
+      if (submitted >= topK) {
+        break;
+      }
+      if (candidate != logicalTree) {
+        submit(candidate, question, timeFrame);
+        submitted++;
+      }
+    }
+  }
+
+  /**
+   * Waits for the <var>response</var> returned by {@link #submit}. Returns <code>null</code> if its query
+   * failed or was cancelled.
+   */
+  public static FHIRResponse getResponse(final Future<FHIRResponse> response) {
+    return getQuietly(response, Long.MAX_VALUE);
+  }
+
+  /**
+   * Waits up to <var>timeoutNanos</var> for the <var>future</var>. Returns <code>null</code> if it failed, was
+   * cancelled or did not finish in time.
+   */
+  private static FHIRResponse getQuietly(final Future<FHIRResponse> future, final long timeoutNanos) {
+    try {
+      return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException | CancellationException e) {
+      return null;
+    } catch (ExecutionException e) {
+      log.warning("FHIR query failed: {0}", e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the <var>response</var> has a non-empty answer.
+   */
+  private static boolean hasAnswer(final FHIRResponse response) {
+    if (response == null || response.getAnswer() == null) {
+      return false;
+    }
+    final FHIRAnswer answer = response.getAnswer();
+    if (answer instanceof FHIRAnswer.Sequence) {
+      return ((FHIRAnswer.Sequence) answer).size() > 0;
+    } else if (answer instanceof FHIRAnswer.Record) {
+      return ((FHIRAnswer.Record) answer).size() > 0;
+    } else {
+      return !answer.toString().isEmpty();
+    }
+  }
+
+  /**
+   * Cancels the queries in flight and stops the threads.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,251 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Config;
+import edu.uth.sbmi.olympia.util.Log;
+import edu.uth.sbmi.olympia.util.Place;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+
+/**
+ * Content-addressed store of the results of the stages of an experiment. Each result is kept under a
+ * {@link Key}: the SHA-256 of the stage's name, its version and everything the stage reads. A stage is only
+ * computed again when one of its inputs changes or its version is bumped, so changing a later stage, such as the
+ * scorer's features, reuses the results of the stages before it. Results are written to a temporary file and
+ * moved into place, so an interrupted run never leaves a partial result behind.
+ */
+public class StageStore {
+  private static final Log log = new Log(StageStore.class);
+
+  private final File directory;
+
+  /**
+   * Reads and writes the result of one stage.
+   */
+  public interface Codec<T> {
+    void write(DataOutputStream out, T value) throws IOException;
+
+    T read(ByteBuffer in);
+  }
+
+  /**
+   * The key of a stage result, built up from the stage's inputs. Strings and byte arrays are added with their
+   * length, so the boundaries between the inputs are part of the key.
+   */
+  public static class Key {
+    private final String stage;
+    private final MessageDigest sha256;
+    private String hex = null;
+
+    private Key(final String stage, final int version) {
+      this.stage = stage;
+      try {
+        this.sha256 = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException nsae) {
+        throw new RuntimeException(nsae);
+      }
+      add(stage).add(version);
+    }
+
+    /**
+     * Returns the name of the stage.
+     */
+    public String getStage() {
+      return stage;
+    }
+
+    /**
+     * Adds the <var>bytes</var> to this key.
+     */
+    public Key add(final byte[] bytes) {
+      add(bytes.length);
+      update(bytes);
+      return this;
+    }
+
+    /**
+     * Adds the <var>string</var> to this key, with <code>null</code> kept apart from the empty string.
+     */
+    public Key add(final String string) {
+      if (string == null) {
+        return add(-1);
+      }
+      return add(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds the <var>value</var> to this key.
+     */
+    public Key add(final long value) {
+      return update(ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    /**
+     * Adds the <var>value</var> to this key.
+     */
+    public Key add(final boolean value) {
+      return add(value ? 1 : 0);
+    }
+
+    /**
+     * Adds the contents of the <var>source</var> to this key.
+     */
+    public Key add(final Place source) throws IOException {
+      return add(QuestionSnapshot.fingerprint(source));
+    }
+
+    private Key update(final byte[] bytes) {
+      if (hex != null) {
+        throw new IllegalStateException("Key already computed: " + stage + "/" + hex);
+      }
+      sha256.update(bytes);
+      return this;
+    }
+
+    /**
+     * Returns the SHA-256 of this key as hexadecimal. Nothing can be added to the key after.
+     */
+    @Override
+    public String toString() {
+      if (hex == null) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : sha256.digest()) {
+          sb.append(String.format("%02x", b));
+        }
+        hex = sb.toString();
+      }
+      return hex;
+    }
+  }
+
+  /**
+   * Creates a new <code>StageStore</code> keeping its results in the <var>directory</var>.
+   */
+  public StageStore(final File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the store in the configured <code>directory</code>, or <code>null</code> if none is configured.
+   */
+  public static StageStore fromConfig() {
+    if (Config.get(StageStore.class, "directory", "").toString().isEmpty()) {
+      return null;
+    }
+    return new StageStore(Config.get(StageStore.class, "directory").toPlace().toFile());
+  }
+
+  /**
+   * Returns a new {@link Key} for the given <var>version</var> of the <var>stage</var>.
+   */
+  public static Key key(final String stage, final int version) {
+    return new Key(stage, version);
+  }
+
+  /**
+   * Returns the file the result with the given <var>key</var> is kept in, whether or not it exists.
+   */
+  public File getFile(final Key key) {
+    return new File(new File(directory, key.getStage()), key.toString());
+  }
+
+  /**
+   * Returns the result with the given <var>key</var>, or <code>null</code> if it is not stored or can no longer
+   * be read.
+   */
+  public <T> T load(final Key key, final Codec<T> codec) {
+    final File file = getFile(key);
+    if (!file.exists()) {
+      log.info("Computing stage {0}: no stored result {1}", key.getStage(), key);
+      return null;
+    }
+    try {
+      final T value = codec.read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+      log.info("Reusing stored result {1} of stage {0}", key.getStage(), key);
+      return value;
+    }
+    catch (IOException | RuntimeException e) {
+      log.warning("Unable to read stored result {0}, computing it again: {1}", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the <var>value</var> under the given <var>key</var>. A failure to store it is only logged, as the
+   * result is still there to use.
+   */
+  public <T> void store(final Key key, final Codec<T> codec, final T value) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      final DataOutputStream out = new DataOutputStream(bytes);
+      codec.write(out, value);
+      out.flush();
+      final byte[] written = bytes.toByteArray();
+      ModuleTests.checkStoredStage(key.getStage(), codec, written);
+      write(key, new ByteArrayInputStream(written));
+    }
+    catch (IOException ioe) {
+      log.warning("Unable to store result {0} of stage {1}: {2}", key, key.getStage(), ioe);
+    }
+  }
+
+  /**
+   * Stores a copy of the <var>file</var> under the given <var>key</var>.
+   */
+  public void storeFile(final Key key, final File file) throws IOException {
+    try (final InputStream in = Files.newInputStream(file.toPath())) {
+      write(key, in);
+    }
+  }
+
+  /**
+   * Returns the result with the given <var>key</var>, computing it with <var>compute</var> and storing it if it
+   * is not stored yet.
+   */
+  public <T> T computeIfAbsent(final Key key, final Codec<T> codec, final Supplier<T> compute) {
+    T value = load(key, codec);
+    if (value == null) {
+      value = compute.get();
+      store(key, codec, value);
+    }
+    return value;
+  }
+
+  private void write(final Key key, final InputStream in) throws IOException {
+    final File file = getFile(key);
+    final File stageDirectory = file.getParentFile();
+    if (!stageDirectory.isDirectory() && !stageDirectory.mkdirs()) {
+      throw new IOException("Unable to create stage directory: " + stageDirectory);
+    }
+    final File temp = File.createTempFile(key.toString(), ".tmp", stageDirectory);
+    try (final BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      if (temp.exists() && !temp.delete()) {
+        log.DBG("Unable to delete temporary file: {0}", temp);
+      }
+    }
+  }
+}
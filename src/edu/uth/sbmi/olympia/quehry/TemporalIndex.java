@@ -0,0 +1,150 @@
+package edu.uth.sbmi.olympia.quehry;
+
+import edu.uth.sbmi.olympia.util.Log;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Sorted effective-time index over a patient's resources, answering latest-before queries with a binary search
+ * instead of a scan of the whole resource list.
+ */
+public class TemporalIndex<T> {
+  private static final Log log = new Log(TemporalIndex.class);
+
+  /**
+   * FHIR date/dateTime values, e.g., <code>2018</code>, <code>2018-12-12</code>, <code>2018-12-12T12</code>
+   * or <code>2018-12-12T12:30:00.000+05:00</code>. Missing fields default to their lowest value and missing
+   * offsets to UTC.
+   */
+  private static final DateTimeFormatter FHIR_TIME_FORMAT = new DateTimeFormatterBuilder()
+      .appendPattern("uuuu")
+      .optionalStart().appendPattern("-MM")
+      .optionalStart().appendPattern("-dd")
+      .optionalStart().appendPattern("'T'HH")
+      .optionalStart().appendPattern(":mm")
+      .optionalStart().appendPattern(":ss")
+      .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+      .optionalEnd().optionalEnd().optionalEnd().optionalEnd().optionalEnd()
+      .optionalStart().appendOffset("+HH:MM", "Z").optionalEnd()
+      .parseDefaulting(ChronoField.MONTH_OF_YEAR, 1)
+      .parseDefaulting(ChronoField.DAY_OF_MONTH, 1)
+      .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+      .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+      .parseDefaulting(ChronoField.SECOND_OF_MINUTE, 0)
+      .toFormatter();
+
+  private final long[] times;
+  private final List<T> items;
+
+  /**
+   * Creates a new <code>TemporalIndex</code> over the <var>resources</var>, using <var>timeOf</var> to get the
+   * effective time of each one. Resources without a parsable effective time are left out of the index.
+   */
+  public TemporalIndex(final Collection<T> resources, final Function<T, String> timeOf) {
+    final List<Entry<T>> entries = new ArrayList<>(resources.size());
+    for (final T resource : resources) {
+      final Long time = parseTime(timeOf.apply(resource));
+      if (time != null) {
+        entries.add(new Entry<>(time, resource));
+      }
+    }
+    if (entries.size() < resources.size()) {
+      log.DBG("{0} of {1} resources have no effective time", resources.size() - entries.size(), resources.size());
+    }
+    // Stable sort: resources with equal times keep their original order
+    entries.sort(Comparator.comparingLong(e -> e.time));
+
+    this.times = new long[entries.size()];
+    final List<T> sortedItems = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      this.times[i] = entries.get(i).time;
+      sortedItems.add(entries.get(i).item);
+    }
+    this.items = Collections.unmodifiableList(sortedItems);
+  }
+
+  /**
+   * Returns the number of indexed resources.
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /**
+   * Returns the most recent resource whose effective time is not after <var>time</var>, or <code>null</code>
+   * if there is none. Among resources with the same time the last one given is returned.
+   */
+  public T latestBefore(final long time) {
+    final int index = upperBound(time) - 1;
+    return index >= 0 ? items.get(index) : null;
+  }
+
+  /**
+   * Returns the index of the first time that is after <var>time</var>.
+   */
+  private int upperBound(final long time) {
+    int low = 0;
+    int high = times.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (times[mid] <= time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Parses a FHIR date/dateTime into epoch milliseconds. Returns <code>null</code> if <var>time</var> is
+   * <code>null</code> or not a valid date.
+   */
+  public static Long parseTime(final String time) {
+    if (time == null || time.isEmpty()) {
+      return null;
+    }
+    try {
+      final TemporalAccessor parsed = FHIR_TIME_FORMAT.parse(time.trim());
+      final ZoneOffset offset = parsed.isSupported(ChronoField.OFFSET_SECONDS)
+          ? ZoneOffset.ofTotalSeconds(parsed.get(ChronoField.OFFSET_SECONDS))
+          : ZoneOffset.UTC;
+      final Instant instant = LocalDateTime.from(parsed).toInstant(offset);
+      return instant.toEpochMilli();
+    } catch (DateTimeParseException e) {
+      log.DBG("Unable to parse time: {0}", time);
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TemporalIndex{size=" + items.size()
+        + (times.length > 0 ? ", from=" + Instant.ofEpochMilli(times[0])
+            + ", to=" + Instant.ofEpochMilli(times[times.length - 1]) : "")
+        + "}";
+  }
+
+  private static class Entry<T> {
+    private final long time;
+    private final T item;
+
+    private Entry(final long time, final T item) {
+      this.time = time;
+      this.item = item;
+    }
+  }
+}